@@ -1,5 +1,6 @@
 package com.skraba.avro.enchiridion.core;
 
+import com.skraba.avro.enchiridion.core.schema.SchemaParseCacheTest.SchemaParseCache;
 import com.skraba.avro.enchiridion.resources.AvroTestResources;
 import com.skraba.avro.enchiridion.testkit.AvroVersion;
 import java.io.Closeable;
@@ -114,10 +115,21 @@ public class AvroUtil {
       return Schema.createUnion(types);
     }
 
+    /**
+     * @return A new schema parsed from the JSON, that can be modified by the caller.
+     */
     public Schema parse(String jsonString) {
       return new Schema.Parser().parse(jsonString);
     }
 
+    /**
+     * @return A schema parsed from the JSON, shared with all of the other callers and from the
+     *     {@link SchemaParseCache}. It must not be modified.
+     */
+    public Schema parseShared(String jsonString) {
+      return SchemaParseCache.get().parse(jsonString, this::parse);
+    }
+
     public Schema parse(JsObject json) {
       return new Schema.Parser().parse(Json.stringify(json));
     }
@@ -242,11 +254,11 @@ public class AvroUtil {
         case 'd':
           return Schema.create(Schema.Type.DOUBLE);
         case 'e':
-          return api().parse(AvroTestResources.SimpleEnum());
+          return api().parseShared(AvroTestResources.SimpleEnum());
         case 'f':
           return Schema.create(Schema.Type.FLOAT);
         case 'F':
-          return api().parse(AvroTestResources.SimpleFixed());
+          return api().parseShared(AvroTestResources.SimpleFixed());
         case 'i':
           return Schema.create(Schema.Type.INT);
         case 'l':
@@ -0,0 +1,599 @@
+package com.skraba.avro.enchiridion.core;
+
+import static com.skraba.avro.enchiridion.core.AvroUtil.qqify;
+import static com.skraba.avro.enchiridion.core.SerializeToJsonTest.toJson;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import com.skraba.avro.enchiridion.resources.AvroTestResources;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Conversion;
+import org.apache.avro.Conversions;
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericFixed;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.util.RandomData;
+import org.apache.avro.util.Utf8;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests and helpers for writing Avro JSON from a plan compiled once per schema.
+ *
+ * <p>The {@link org.apache.avro.io.JsonEncoder} used by {@link SerializeToJsonTest#toJson} checks
+ * every value against a grammar generated from the schema. A {@link JsonWriterPlan} does this work
+ * once: the schema is compiled into a tree of writers, where every record field name and union
+ * branch name is already escaped and encoded as UTF-8. Writing a datum only follows the tree and
+ * appends bytes to a reusable buffer.
+ *
+ * <p>The output is identical to the JSON encoder (without pretty printing).
+ */
+public class JsonWriterPlanTest {
+
+  /** Write the datum as Avro JSON using a compiled plan. */
+  public static <T> String toJsonWithPlan(GenericData model, Schema schema, T datum) {
+    return new String(JsonWriterPlan.compile(model, schema).write(datum), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testRecipes() {
+    Schema schema = AvroUtil.api().parse(AvroTestResources.Recipe());
+    JsonWriterPlan plan = JsonWriterPlan.compile(GenericData.get(), schema);
+    for (Object datum : new RandomData(schema, 200, 0L)) {
+      String expected = toJson(GenericData.get(), schema, datum);
+      assertThat(new String(plan.write(datum), StandardCharsets.UTF_8), is(expected));
+    }
+  }
+
+  @Test
+  public void testStringsAndBytes() {
+    Schema string = SchemaBuilder.builder().stringType();
+    for (String s :
+        Arrays.asList(
+            "",
+            "Hello world!",
+            "quote\" backslash\\ slash/",
+            "\b\t\n\f\r\u0000\u001f\u007f",
+            "café € 😀  ")) {
+      assertThat(toJsonWithPlan(null, string, s), is(toJson(null, string, s)));
+      assertThat(toJsonWithPlan(null, string, new Utf8(s)), is(toJson(null, string, s)));
+    }
+
+    Schema bytes = SchemaBuilder.builder().bytesType();
+    byte[] all = new byte[256];
+    for (int i = 0; i < all.length; i++) all[i] = (byte) i;
+    assertThat(
+        toJsonWithPlan(null, bytes, ByteBuffer.wrap(all)),
+        is(toJson(null, bytes, ByteBuffer.wrap(all))));
+
+    // Buffers without an accessible array, and with a position, are written the same way.
+    ByteBuffer readOnly = ByteBuffer.wrap(all).asReadOnlyBuffer();
+    readOnly.position(10);
+    ByteBuffer direct = ByteBuffer.allocateDirect(all.length).put(all);
+    direct.position(20);
+    for (ByteBuffer bb : Arrays.asList(readOnly, direct)) {
+      int position = bb.position();
+      String expected = toJson(null, bytes, ByteBuffer.wrap(all, position, all.length - position));
+      assertThat(toJsonWithPlan(null, bytes, bb), is(expected));
+      assertThat(bb.position(), is(position));
+    }
+
+    Schema fixed = SchemaBuilder.builder().fixed("f4").size(4);
+    GenericFixed f4 = new GenericData.Fixed(fixed, new byte[] {0x10, 0x20, (byte) 0xe9, 0x40});
+    assertThat(toJsonWithPlan(null, fixed, f4), is(toJson(null, fixed, f4)));
+  }
+
+  @Test
+  public void testNumbers() {
+    Schema record =
+        AvroUtil.api()
+            .parse(
+                qqify(
+                    "{'type':'record','name':'N','fields':["
+                        + "{'name':'i','type':'int'},{'name':'l','type':'long'},"
+                        + "{'name':'f','type':'float'},{'name':'d','type':'double'},"
+                        + "{'name':'b','type':'boolean'},{'name':'n','type':'null'}]}"));
+    for (double d :
+        new double[] {0, -0.0, 1.1, -1e-300, 1e300, Double.NaN, Double.NEGATIVE_INFINITY}) {
+      GenericRecord datum =
+          new GenericRecordBuilder(record)
+              .set("i", (int) d)
+              .set("l", (long) d)
+              .set("f", (float) d)
+              .set("d", d)
+              .set("b", d > 0)
+              .set("n", null)
+              .build();
+      assertThat(
+          toJsonWithPlan(GenericData.get(), record, datum),
+          is(toJson(GenericData.get(), record, datum)));
+    }
+  }
+
+  @Test
+  public void testUnionsMapsAndLogicalTypes() {
+    Schema decimal = LogicalTypes.decimal(5, 2).addToSchema(SchemaBuilder.builder().bytesType());
+    Schema enumSchema = AvroUtil.api().parse(AvroTestResources.SimpleEnum());
+    Schema schema =
+        SchemaBuilder.record("U")
+            .fields()
+            .name("u")
+            .type()
+            .unionOf()
+            .nullType()
+            .and()
+            .type(enumSchema)
+            .and()
+            .map()
+            .values()
+            .longType()
+            .endUnion()
+            .noDefault()
+            .name("price")
+            .type(decimal)
+            .noDefault()
+            .endRecord();
+
+    GenericData model = AvroUtil.api().withDecimalConversions();
+    Map<String, Long> map = new LinkedHashMap<>();
+    map.put("one", 1L);
+    map.put("\"two\"", 2L);
+
+    for (Object u :
+        Arrays.asList(
+            null, new GenericData.EnumSymbol(enumSchema, "e2"), map, new LinkedHashMap<>())) {
+      GenericRecord datum =
+          new GenericRecordBuilder(schema)
+              .set("u", u)
+              .set("price", new BigDecimal("123.45"))
+              .build();
+      assertThat(toJsonWithPlan(model, schema, datum), is(toJson(model, schema, datum)));
+    }
+  }
+
+  @Test
+  public void testRecursiveAndEmpty() {
+    Schema schema =
+        AvroUtil.api()
+            .parse(
+                qqify(
+                    "{'type':'record','name':'Node','fields':["
+                        + "{'name':'empty','type':{'type':'record','name':'E','fields':[]}},"
+                        + "{'name':'next','type':['null','Node']}]}"));
+    GenericRecord empty = new GenericData.Record(schema.getField("empty").schema());
+    GenericRecord tail =
+        new GenericRecordBuilder(schema).set("empty", empty).set("next", null).build();
+    GenericRecord head =
+        new GenericRecordBuilder(schema).set("empty", empty).set("next", tail).build();
+    assertThat(
+        toJsonWithPlan(GenericData.get(), schema, head),
+        is(toJson(GenericData.get(), schema, head)));
+    assertThat(
+        toJsonWithPlan(null, schema, head),
+        is(qqify("{'empty':{},'next':{'Node':{'empty':{},'next':null}}}")));
+  }
+
+  /**
+   * A JSON writer compiled for one schema.
+   *
+   * <p>The plan itself is immutable and can be shared between threads, but each thread should use
+   * its own {@link JsonBuffer} to write into.
+   */
+  public static class JsonWriterPlan {
+
+    private final GenericData model;
+
+    private final ValueWriter root;
+
+    /** The buffer used by {@link #write(Object)}, reused by the same thread. */
+    private final ThreadLocal<JsonBuffer> buffers = ThreadLocal.withInitial(JsonBuffer::new);
+
+    private JsonWriterPlan(GenericData model, ValueWriter root) {
+      this.model = model;
+      this.root = root;
+    }
+
+    /**
+     * @param model The model used to find logical type conversions and resolve unions, or null for
+     *     the default {@link GenericData}.
+     * @param schema The schema of the datum to write.
+     * @return A plan for writing datum with this schema as Avro JSON.
+     */
+    public static JsonWriterPlan compile(GenericData model, Schema schema) {
+      GenericData m = model == null ? GenericData.get() : model;
+      return new JsonWriterPlan(m, new Compiler(m).compile(schema));
+    }
+
+    /** Write the datum as UTF-8 encoded Avro JSON into the buffer. */
+    public void write(Object datum, JsonBuffer out) {
+      root.write(datum, out);
+    }
+
+    /**
+     * @return The datum as UTF-8 encoded Avro JSON in a new byte array.
+     */
+    public byte[] write(Object datum) {
+      JsonBuffer out = buffers.get();
+      out.reset();
+      write(datum, out);
+      return out.toByteArray();
+    }
+
+    /** Writes one type of value. */
+    private interface ValueWriter {
+      void write(Object datum, JsonBuffer out);
+    }
+
+    /** Turns a schema into a tree of {@link ValueWriter}s. */
+    private static class Compiler {
+
+      private final GenericData model;
+
+      /** Named schemas already compiled, to handle recursive schemas. */
+      private final Map<Schema, ValueWriter> named = new IdentityHashMap<>();
+
+      Compiler(GenericData model) {
+        this.model = model;
+      }
+
+      ValueWriter compile(Schema schema) {
+        ValueWriter raw = compileRaw(schema);
+        if (schema.getLogicalType() == null) return raw;
+        Conversion<Object> cnv = model.getConversionFor(schema.getLogicalType());
+        if (cnv == null) return raw;
+        return (datum, out) ->
+            raw.write(
+                cnv.getConvertedType().isInstance(datum)
+                    ? Conversions.convertToRawType(datum, schema, schema.getLogicalType(), cnv)
+                    : datum,
+                out);
+      }
+
+      private ValueWriter compileRaw(Schema schema) {
+        switch (schema.getType()) {
+          case NULL:
+            return (datum, out) -> out.writeAscii("null");
+          case BOOLEAN:
+            return (datum, out) -> out.writeAscii((Boolean) datum ? "true" : "false");
+          case INT:
+          case LONG:
+            return (datum, out) -> out.writeLong(((Number) datum).longValue());
+          case FLOAT:
+            // The JSON encoder promotes floats to double before writing, turning -0.0 into 0.0.
+            return (datum, out) -> out.writeDouble(((Number) datum).floatValue() + 0.0);
+          case DOUBLE:
+            return (datum, out) -> out.writeDouble(((Number) datum).doubleValue());
+          case STRING:
+            return (datum, out) -> out.writeString(datum);
+          case BYTES:
+            return (datum, out) -> out.writeLatin1((ByteBuffer) datum);
+          case FIXED:
+            return (datum, out) -> {
+              byte[] bytes = ((GenericFixed) datum).bytes();
+              out.writeLatin1(bytes, 0, bytes.length);
+            };
+          case ENUM:
+            {
+              // All of the symbols are pre-escaped.
+              Map<String, byte[]> symbols = new LinkedHashMap<>();
+              for (String symbol : schema.getEnumSymbols()) symbols.put(symbol, quoted(symbol));
+              return (datum, out) -> {
+                byte[] symbol = symbols.get(datum.toString());
+                if (symbol == null) throw new AvroTypeException("Unknown symbol " + datum);
+                out.write(symbol);
+              };
+            }
+          case ARRAY:
+            {
+              ValueWriter element = compile(schema.getElementType());
+              return (datum, out) -> {
+                out.write('[');
+                boolean first = true;
+                for (Object e : (Collection<?>) datum) {
+                  if (!first) out.write(',');
+                  element.write(e, out);
+                  first = false;
+                }
+                out.write(']');
+              };
+            }
+          case MAP:
+            {
+              ValueWriter value = compile(schema.getValueType());
+              return (datum, out) -> {
+                out.write('{');
+                boolean first = true;
+                for (Map.Entry<?, ?> e : ((Map<?, ?>) datum).entrySet()) {
+                  if (!first) out.write(',');
+                  out.writeString(e.getKey());
+                  out.write(':');
+                  value.write(e.getValue(), out);
+                  first = false;
+                }
+                out.write('}');
+              };
+            }
+          case UNION:
+            return compileUnion(schema);
+          case RECORD:
+            return compileRecord(schema);
+          default:
+            throw new AvroTypeException("Unsupported type: " + schema);
+        }
+      }
+
+      private ValueWriter compileUnion(Schema schema) {
+        List<Schema> types = schema.getTypes();
+        ValueWriter[] branches = new ValueWriter[types.size()];
+        // Every non-null value is wrapped in an object with the branch name: {"name":value}
+        byte[][] prefixes = new byte[types.size()][];
+        for (int i = 0; i < branches.length; i++) {
+          branches[i] = compile(types.get(i));
+          prefixes[i] = concat("{", quoted(types.get(i).getFullName()), ":");
+        }
+        return (datum, out) -> {
+          int branch = model.resolveUnion(schema, datum);
+          if (types.get(branch).getType() == Schema.Type.NULL) {
+            out.writeAscii("null");
+          } else {
+            out.write(prefixes[branch]);
+            branches[branch].write(datum, out);
+            out.write('}');
+          }
+        };
+      }
+
+      private ValueWriter compileRecord(Schema schema) {
+        ValueWriter existing = named.get(schema);
+        if (existing != null) return existing;
+
+        // Register the record before compiling its fields, in case it contains itself.
+        List<Schema.Field> fields = schema.getFields();
+        ValueWriter[] writers = new ValueWriter[fields.size()];
+        byte[][] prefixes = new byte[fields.size()][];
+        ValueWriter record =
+            (datum, out) -> {
+              IndexedRecord r = (IndexedRecord) datum;
+              // The first field prefix opens the object, unless there aren't any fields.
+              if (writers.length == 0) out.write('{');
+              for (int i = 0; i < writers.length; i++) {
+                out.write(prefixes[i]);
+                writers[i].write(r.get(i), out);
+              }
+              out.write('}');
+            };
+        named.put(schema, record);
+
+        // The field name, including the separator or start of the object: {"name": or ,"name":
+        for (int i = 0; i < writers.length; i++) {
+          prefixes[i] = concat(i == 0 ? "{" : ",", quoted(fields.get(i).name()), ":");
+          writers[i] = compile(fields.get(i).schema());
+        }
+        return record;
+      }
+
+      /**
+       * @return The string as a quoted, escaped, UTF-8 encoded JSON string.
+       */
+      private static byte[] quoted(String s) {
+        JsonBuffer out = new JsonBuffer();
+        out.writeString(s);
+        return out.toByteArray();
+      }
+
+      private static byte[] concat(String start, byte[] middle, String end) {
+        JsonBuffer out = new JsonBuffer();
+        out.writeAscii(start);
+        out.write(middle);
+        out.writeAscii(end);
+        return out.toByteArray();
+      }
+    }
+  }
+
+  /**
+   * A growable byte buffer with methods to append JSON, escaped the same way as the Jackson
+   * generator in the Avro {@link org.apache.avro.io.JsonEncoder}.
+   */
+  public static class JsonBuffer {
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    /** For each ASCII character, 0 if it doesn't need escaping, or the escape character. */
+    private static final byte[] ESCAPES = new byte[128];
+
+    static {
+      for (int i = 0; i < 0x20; i++) ESCAPES[i] = 'u';
+      ESCAPES['"'] = '"';
+      ESCAPES['\\'] = '\\';
+      ESCAPES['\b'] = 'b';
+      ESCAPES['\t'] = 't';
+      ESCAPES['\n'] = 'n';
+      ESCAPES['\f'] = 'f';
+      ESCAPES['\r'] = 'r';
+    }
+
+    private byte[] buf = new byte[256];
+
+    private int count = 0;
+
+    /** Reused to copy the contents of buffers without an accessible array. */
+    private byte[] scratch = new byte[0];
+
+    public void reset() {
+      count = 0;
+    }
+
+    public int size() {
+      return count;
+    }
+
+    public byte[] toByteArray() {
+      return Arrays.copyOf(buf, count);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+      out.write(buf, 0, count);
+    }
+
+    private void ensure(int extra) {
+      if (count + extra > buf.length)
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+    }
+
+    void write(int b) {
+      ensure(1);
+      buf[count++] = (byte) b;
+    }
+
+    void write(byte[] bytes) {
+      ensure(bytes.length);
+      System.arraycopy(bytes, 0, buf, count, bytes.length);
+      count += bytes.length;
+    }
+
+    void writeAscii(String s) {
+      ensure(s.length());
+      for (int i = 0; i < s.length(); i++) buf[count++] = (byte) s.charAt(i);
+    }
+
+    void writeLong(long l) {
+      writeAscii(Long.toString(l));
+    }
+
+    void writeDouble(double d) {
+      // Non-finite numbers are quoted.
+      if (Double.isFinite(d)) writeAscii(Double.toString(d));
+      else {
+        write('"');
+        writeAscii(Double.toString(d));
+        write('"');
+      }
+    }
+
+    /** Write a quoted, escaped string. */
+    void writeString(Object datum) {
+      if (datum instanceof Utf8) {
+        Utf8 utf8 = (Utf8) datum;
+        writeUtf8(utf8.getBytes(), utf8.getByteLength());
+      } else writeString(datum.toString());
+    }
+
+    private void writeString(String s) {
+      write('"');
+      ensure(s.length());
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        if (c < 0x80) writeAsciiChar(c);
+        else if (c < 0x800) {
+          ensure(2);
+          buf[count++] = (byte) (0xC0 | (c >> 6));
+          buf[count++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isSurrogate(c)) {
+          // Jackson writes supplementary characters as an escaped surrogate pair.
+          writeEscapedChar(c);
+        } else {
+          ensure(3);
+          buf[count++] = (byte) (0xE0 | (c >> 12));
+          buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+          buf[count++] = (byte) (0x80 | (c & 0x3F));
+        }
+      }
+      write('"');
+    }
+
+    /** Write a quoted, escaped string from bytes that are already UTF-8 encoded. */
+    private void writeUtf8(byte[] bytes, int length) {
+      write('"');
+      ensure(length);
+      for (int i = 0; i < length; i++) {
+        byte b = bytes[i];
+        if (b >= 0) writeAsciiChar(b);
+        else if ((b & 0xF8) == 0xF0 && i + 3 < length) {
+          // Supplementary characters are written as an escaped surrogate pair, like a String.
+          int cp =
+              ((b & 0x07) << 18)
+                  | ((bytes[++i] & 0x3F) << 12)
+                  | ((bytes[++i] & 0x3F) << 6)
+                  | (bytes[++i] & 0x3F);
+          writeEscapedChar(Character.highSurrogate(cp));
+          writeEscapedChar(Character.lowSurrogate(cp));
+        } else {
+          // Other multibyte characters are copied as is.
+          ensure(1);
+          buf[count++] = b;
+        }
+      }
+      write('"');
+    }
+
+    /** Write the bytes as a quoted string where every byte is one ISO-8859-1 character. */
+    void writeLatin1(byte[] bytes, int offset, int length) {
+      write('"');
+      ensure(length);
+      for (int i = offset; i < offset + length; i++) {
+        int c = bytes[i] & 0xFF;
+        if (c < 0x80) writeAsciiChar(c);
+        else {
+          ensure(2);
+          buf[count++] = (byte) (0xC0 | (c >> 6));
+          buf[count++] = (byte) (0x80 | (c & 0x3F));
+        }
+      }
+      write('"');
+    }
+
+    /** Write the remaining bytes as a quoted ISO-8859-1 string, without modifying the buffer. */
+    void writeLatin1(ByteBuffer bb) {
+      if (bb.hasArray()) {
+        writeLatin1(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+        return;
+      }
+      // Read-only and direct buffers are copied.
+      int length = bb.remaining();
+      if (scratch.length < length) scratch = new byte[length];
+      bb.duplicate().get(scratch, 0, length);
+      writeLatin1(scratch, 0, length);
+    }
+
+    private void writeAsciiChar(int c) {
+      byte escape = ESCAPES[c];
+      if (escape == 0) {
+        ensure(1);
+        buf[count++] = (byte) c;
+      } else if (escape == 'u') {
+        writeEscapedChar(c);
+      } else {
+        ensure(2);
+        buf[count++] = '\\';
+        buf[count++] = escape;
+      }
+    }
+
+    /** Write the character as a JSON escape with four uppercase hex digits. */
+    private void writeEscapedChar(int c) {
+      ensure(6);
+      buf[count++] = '\\';
+      buf[count++] = 'u';
+      buf[count++] = HEX[(c >> 12) & 0xF];
+      buf[count++] = HEX[(c >> 8) & 0xF];
+      buf[count++] = HEX[(c >> 4) & 0xF];
+      buf[count++] = HEX[c & 0xF];
+    }
+  }
+}
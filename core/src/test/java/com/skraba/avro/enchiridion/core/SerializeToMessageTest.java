@@ -3,18 +3,27 @@ package com.skraba.avro.enchiridion.core;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 
+import com.skraba.avro.enchiridion.core.schema.FingerprintCacheTest.FingerprintCache;
+import com.skraba.avro.enchiridion.resources.AvroTestResources;
 import com.skraba.avro.enchiridion.testkit.AvroVersion;
 import com.skraba.avro.enchiridion.testkit.EnabledForAvroVersion;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import org.apache.avro.Schema;
 import org.apache.avro.SchemaBuilder;
 import org.apache.avro.SchemaNormalization;
 import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.EncoderFactory;
 import org.apache.avro.message.BinaryMessageDecoder;
 import org.apache.avro.message.BinaryMessageEncoder;
 import org.apache.avro.message.MessageDecoder;
 import org.apache.avro.message.MessageEncoder;
+import org.apache.avro.util.RandomData;
 import org.junit.jupiter.api.Test;
 
 /**
@@ -28,6 +37,9 @@ import org.junit.jupiter.api.Test;
     reason = "The single object encoding message format was introduced in 1.8.")
 public class SerializeToMessageTest {
 
+  /** The last encoder used by {@link #toMessage(GenericData, Schema, Object, ByteBuffer)}. */
+  private static final ThreadLocal<ByteBufferMessageEncoder<?>> LAST_ENCODER = new ThreadLocal<>();
+
   public static <T> byte[] toMessage(GenericData model, Schema schema, T datum) {
     try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
       MessageEncoder<T> encoder = new BinaryMessageEncoder<>(model, schema);
@@ -51,6 +63,29 @@ public class SerializeToMessageTest {
     return fromMessage(model, schema, toMessage(model, schema, datum));
   }
 
+  /**
+   * Serialize the datum to single object encoding directly into the buffer.
+   *
+   * <p>The last encoder used on each thread is kept and reused as long as the model and schema are
+   * the same instances.
+   *
+   * @return The number of bytes written at the position of the buffer, or -1 if the buffer didn't
+   *     have enough space remaining.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> int toMessage(GenericData model, Schema schema, T datum, ByteBuffer buffer) {
+    ByteBufferMessageEncoder<?> encoder = LAST_ENCODER.get();
+    if (encoder == null || encoder.model != model || encoder.schema != schema) {
+      encoder = new ByteBufferMessageEncoder<T>(model, schema);
+      LAST_ENCODER.set(encoder);
+    }
+    try {
+      return ((ByteBufferMessageEncoder<T>) encoder).encode(datum, buffer);
+    } catch (IOException ioe) {
+      throw new RuntimeException((ioe));
+    }
+  }
+
   @Test
   public void testRoundTripSerializeIntegerToMessage() {
     Schema schema = SchemaBuilder.builder().intType();
@@ -77,4 +112,157 @@ public class SerializeToMessageTest {
     assertThat(roundTripMessage(GenericData.get(), schema, 0), is(0));
     assertThat(roundTripMessage(GenericData.get(), schema, -1), is(-1));
   }
+
+  @EnabledForAvroVersion(
+      startingFrom = AvroVersion.avro_1_9,
+      reason = "RandomData moved in Avro 1.9.x")
+  @Test
+  public void testSerializeToByteBuffer() throws IOException {
+    Schema schema = AvroUtil.api().parse(AvroTestResources.Recipe());
+    ByteBufferMessageEncoder<Object> encoder =
+        new ByteBufferMessageEncoder<>(GenericData.get(), schema);
+
+    // The header is the same as the one written by the standard encoder.
+    assertThat(encoder.getHeader().length, is(10));
+    assertThat(encoder.getHeader()[0] & 0xFF, is(0xc3));
+    assertThat(encoder.getHeader()[1] & 0xFF, is(0x01));
+
+    // The same buffer is reused for all of the messages, and is only grown when necessary.
+    ByteBuffer buffer = ByteBuffer.allocate(16);
+    int overflows = 0;
+    for (Object datum : new RandomData(schema, 100, 0L)) {
+      buffer.clear();
+      int length;
+      while ((length = encoder.encode(datum, buffer)) < 0) {
+        // The position is restored after an overflow, but the contents after it may have been
+        // overwritten, so the message is retried from the start with a bigger buffer.
+        assertThat(buffer.position(), is(0));
+        buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+        overflows++;
+      }
+      buffer.flip();
+      assertThat(length, is(buffer.remaining()));
+
+      // The message in the buffer is identical to the one from the standard encoder.
+      byte[] expected = toMessage(GenericData.get(), schema, datum);
+      assertThat(buffer, is(ByteBuffer.wrap(expected)));
+      assertThat(fromMessage(GenericData.get(), schema, expected), is(datum));
+    }
+    assertThat(overflows > 0, is(true));
+
+    // Messages can be written one after another in the same buffer, or in a direct buffer.
+    Schema intSchema = SchemaBuilder.builder().intType();
+    ByteBuffer direct = ByteBuffer.allocateDirect(32);
+    assertThat(toMessage(GenericData.get(), intSchema, 1, direct), is(11));
+    assertThat(toMessage(GenericData.get(), intSchema, -1, direct), is(11));
+    assertThat(direct.position(), is(22));
+    assertThat(toMessage(GenericData.get(), intSchema, 0, direct), is(-1));
+    assertThat(direct.position(), is(22));
+  }
+
+  /**
+   * A single object encoder that writes into a buffer provided by the caller, instead of copying
+   * through an intermediate {@link ByteArrayOutputStream}.
+   *
+   * <p>The ten byte header (marker and schema fingerprint) is calculated once, when the encoder is
+   * created. This class is not thread-safe, but it's cheap to create one per thread.
+   *
+   * @param <T> The type of datum being encoded.
+   */
+  public static class ByteBufferMessageEncoder<T> {
+
+    /** The single object encoding marker, followed by the CRC-64-AVRO fingerprint. */
+    private final byte[] header;
+
+    private final GenericData model;
+
+    private final Schema schema;
+
+    private final DatumWriter<T> writer;
+
+    private final ByteBufferOutputStream out = new ByteBufferOutputStream();
+
+    private BinaryEncoder encoder = null;
+
+    public ByteBufferMessageEncoder(GenericData model, Schema schema) {
+      long fp = FingerprintCache.parsingFingerprint64(schema);
+      header = new byte[10];
+      header[0] = (byte) 0xC3;
+      header[1] = (byte) 0x01;
+      // The fingerprint is little-endian.
+      for (int i = 2; i < header.length; i++) {
+        header[i] = (byte) (fp & 0xFF);
+        fp >>= 8;
+      }
+      this.model = model;
+      this.schema = schema;
+      writer = new GenericDatumWriter<>(schema, model);
+    }
+
+    /**
+     * @return A copy of the header written before every message.
+     */
+    public byte[] getHeader() {
+      return header.clone();
+    }
+
+    /**
+     * Write a message for the datum into the buffer, starting at its current position.
+     *
+     * @param datum The datum to encode.
+     * @param buffer The buffer to write into. If the message fits, its position is advanced past
+     *     the message. Otherwise, its position is unchanged (but the contents after the position
+     *     may have been overwritten).
+     * @return The number of bytes written, or -1 if the buffer is too small for the message.
+     * @throws IOException If the datum couldn't be serialized.
+     */
+    public int encode(T datum, ByteBuffer buffer) throws IOException {
+      int start = buffer.position();
+      if (buffer.remaining() < header.length) return -1;
+      buffer.put(header);
+      out.buffer = buffer;
+      try {
+        // The direct encoder writes straight through to the stream without buffering.
+        encoder = EncoderFactory.get().directBinaryEncoder(out, encoder);
+        writer.write(datum, encoder);
+      } catch (BufferOverflowSignal e) {
+        buffer.position(start);
+        return -1;
+      } finally {
+        out.buffer = null;
+      }
+      return buffer.position() - start;
+    }
+
+    /**
+     * Thrown internally when the buffer is full. Since the single instance is shared, it has no
+     * stack trace and doesn't record suppressed exceptions.
+     */
+    private static class BufferOverflowSignal extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      private static final BufferOverflowSignal INSTANCE = new BufferOverflowSignal();
+
+      private BufferOverflowSignal() {
+        super(null, null, false, false);
+      }
+    }
+
+    /** An output stream that writes into the current buffer. */
+    private static class ByteBufferOutputStream extends OutputStream {
+      private ByteBuffer buffer;
+
+      @Override
+      public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) throw BufferOverflowSignal.INSTANCE;
+        buffer.put((byte) b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        if (buffer.remaining() < len) throw BufferOverflowSignal.INSTANCE;
+        buffer.put(b, off, len);
+      }
+    }
+  }
 }
@@ -0,0 +1,279 @@
+package com.skraba.avro.enchiridion.core;
+
+import static com.skraba.avro.enchiridion.core.AvroUtil.qqify;
+import static com.skraba.avro.enchiridion.core.SerializeToBytesTest.fromBytes;
+import static com.skraba.avro.enchiridion.core.SerializeToBytesTest.toBytes;
+import static com.skraba.avro.enchiridion.core.SerializeToJsonTest.toJson;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.skraba.avro.enchiridion.resources.AvroTestResources;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.io.JsonDecoder;
+import org.apache.avro.util.RandomData;
+import org.apache.avro.util.Utf8;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests and helpers to convert between Avro JSON and binary without creating any datum.
+ *
+ * <p>The simple way to do this is {@link SerializeToJsonTest#fromJson} followed by {@link
+ * SerializeToBytesTest#toBytes}, but every value is materialized as a Java object only to be thrown
+ * away immediately. A {@link JsonToBinaryTranscoder} reads a value from the {@link JsonDecoder} and
+ * writes it to the {@link BinaryEncoder} in the same step, following the schema.
+ */
+public class TranscodeTest {
+
+  /** Transcode the Avro JSON string to binary. */
+  public static byte[] jsonToBytes(Schema schema, String json) {
+    try {
+      return new JsonToBinaryTranscoder(schema).transcode(json);
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  @Test
+  public void testPrimitives() {
+    Schema schema = SchemaBuilder.builder().intType();
+    assertThat(jsonToBytes(schema, "1234567"), is(toBytes(schema, 1_234_567)));
+
+    schema = SchemaBuilder.builder().stringType();
+    assertThat(jsonToBytes(schema, "\"Hello world!\""), is(toBytes(schema, "Hello world!")));
+
+    schema = SchemaBuilder.builder().fixed("f4").size(4);
+    assertThat(
+        jsonToBytes(schema, "\"\\u0010 0@\""),
+        is(toBytes(schema, new GenericData.Fixed(schema, new byte[] {0x10, 0x20, 0x30, 0x40}))));
+
+    schema = AvroUtil.api().parse(AvroTestResources.SimpleEnum());
+    assertThat(
+        jsonToBytes(schema, "\"e3\""),
+        is(toBytes(schema, new GenericData.EnumSymbol(schema, "e3"))));
+  }
+
+  @Test
+  public void testFieldOrder() {
+    Schema schema = AvroUtil.api().parse(AvroTestResources.SimpleRecord());
+    byte[] expected = toBytes(schema, fromBytes(schema, 2, 6, 'o', 'n', 'e'));
+
+    // The JSON decoder accepts fields in any order, but the binary is always in schema order.
+    assertThat(jsonToBytes(schema, qqify("{'id':1,'name':'one'}")), is(expected));
+    assertThat(jsonToBytes(schema, qqify("{'name':'one','id':1}")), is(expected));
+
+    // Errors in the JSON are reported by the decoder.
+    assertThrows(
+        AvroTypeException.class, () -> jsonToBytes(schema, qqify("{'id':'one','name':1}")));
+  }
+
+  @Test
+  public void testCollectionsAndUnions() {
+    Schema schema = AvroUtil.api().parse(AvroTestResources.Recipe());
+    JsonToBinaryTranscoder transcoder = new JsonToBinaryTranscoder(schema);
+
+    // The same transcoder can be reused for many values, and the binary output is identical to
+    // writing the datum directly.
+    for (Object datum : new RandomData(schema, 100, 0L)) {
+      String json = toJson(GenericData.get(), schema, datum);
+      byte[] expected = toBytes(schema, datum);
+      try {
+        assertThat(transcoder.transcode(json), is(expected));
+      } catch (IOException ioe) {
+        throw new RuntimeException(ioe);
+      }
+      GenericRecord read = fromBytes(schema, expected);
+      assertThat(read, is(datum));
+    }
+
+    // Maps and bytes.
+    Schema map = SchemaBuilder.map().values().bytesType();
+    assertThat(
+        jsonToBytes(map, qqify("{'a':'\\u0001','b':'','c':'\\u0002\\u0003'}")),
+        is(new byte[] {6, 2, 'a', 2, 1, 2, 'b', 0, 2, 'c', 4, 2, 3, 0}));
+    assertThat(jsonToBytes(map, "{}"), is(new byte[] {0}));
+  }
+
+  /**
+   * Reads Avro JSON and writes Avro binary for one schema, without creating any datum.
+   *
+   * <p>In the binary format, an array or map is prefixed by its item count, which is unknown until
+   * the end of the JSON array or object is reached. The items are transcoded into a scratch buffer
+   * (one per nesting level, reused) and copied to the output once the count is known. This produces
+   * exactly the same bytes as a {@link org.apache.avro.generic.GenericDatumWriter}.
+   *
+   * <p>This class is not thread-safe.
+   */
+  public static class JsonToBinaryTranscoder {
+
+    private final Schema schema;
+
+    private JsonDecoder in = null;
+
+    private BinaryEncoder out = null;
+
+    /** Reused for all of the strings read. */
+    private Utf8 utf8 = new Utf8();
+
+    /** Reused for all of the bytes read. */
+    private ByteBuffer bytes = null;
+
+    /** Reused for the fixed values read, by size. */
+    private byte[] fixed = new byte[0];
+
+    /** Scratch buffers and encoders for the items in arrays and maps, by nesting level. */
+    private final List<Scratch> scratch = new ArrayList<>();
+
+    public JsonToBinaryTranscoder(Schema schema) {
+      this.schema = schema;
+    }
+
+    /** Transcode one JSON value to a new byte array. */
+    public byte[] transcode(String json) throws IOException {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      if (in == null) in = DecoderFactory.get().jsonDecoder(schema, json);
+      else in.configure(json);
+      transcode(baos);
+      return baos.toByteArray();
+    }
+
+    /** Transcode one JSON value from the input stream to the output stream. */
+    public void transcode(InputStream json, OutputStream binary) throws IOException {
+      if (in == null) in = DecoderFactory.get().jsonDecoder(schema, json);
+      else in.configure(json);
+      transcode(binary);
+    }
+
+    private void transcode(OutputStream binary) throws IOException {
+      out = EncoderFactory.get().binaryEncoder(binary, out);
+      transcode(schema, in, out, 0);
+      out.flush();
+    }
+
+    /**
+     * Read one value of the given schema from the decoder, and write it to the encoder.
+     *
+     * @param depth The number of arrays and maps that contain this value.
+     */
+    private void transcode(Schema s, Decoder in, Encoder out, int depth) throws IOException {
+      switch (s.getType()) {
+        case NULL:
+          in.readNull();
+          out.writeNull();
+          break;
+        case BOOLEAN:
+          out.writeBoolean(in.readBoolean());
+          break;
+        case INT:
+          out.writeInt(in.readInt());
+          break;
+        case LONG:
+          out.writeLong(in.readLong());
+          break;
+        case FLOAT:
+          out.writeFloat(in.readFloat());
+          break;
+        case DOUBLE:
+          out.writeDouble(in.readDouble());
+          break;
+        case STRING:
+          utf8 = in.readString(utf8);
+          out.writeString(utf8);
+          break;
+        case BYTES:
+          bytes = in.readBytes(bytes);
+          out.writeBytes(bytes);
+          break;
+        case FIXED:
+          if (fixed.length != s.getFixedSize()) fixed = new byte[s.getFixedSize()];
+          in.readFixed(fixed);
+          out.writeFixed(fixed);
+          break;
+        case ENUM:
+          out.writeEnum(in.readEnum());
+          break;
+        case UNION:
+          int branch = in.readIndex();
+          out.writeIndex(branch);
+          transcode(s.getTypes().get(branch), in, out, depth);
+          break;
+        case RECORD:
+          // The JSON decoder takes care of fields that appear out of order.
+          for (Schema.Field f : s.getFields()) transcode(f.schema(), in, out, depth);
+          break;
+        case ARRAY:
+          {
+            Scratch items = scratch(depth);
+            long count = 0;
+            for (long n = in.readArrayStart(); n != 0; n = in.arrayNext()) {
+              for (long i = 0; i < n; i++)
+                transcode(s.getElementType(), in, items.encoder, depth + 1);
+              count += n;
+            }
+            out.writeArrayStart();
+            out.setItemCount(count);
+            items.writeTo(out);
+            out.writeArrayEnd();
+            break;
+          }
+        case MAP:
+          {
+            Scratch items = scratch(depth);
+            long count = 0;
+            for (long n = in.readMapStart(); n != 0; n = in.mapNext()) {
+              for (long i = 0; i < n; i++) {
+                utf8 = in.readString(utf8);
+                items.encoder.writeString(utf8);
+                transcode(s.getValueType(), in, items.encoder, depth + 1);
+              }
+              count += n;
+            }
+            out.writeMapStart();
+            out.setItemCount(count);
+            items.writeTo(out);
+            out.writeMapEnd();
+            break;
+          }
+        default:
+          throw new AvroTypeException("Unsupported type: " + s);
+      }
+    }
+
+    /**
+     * @return The scratch buffer for the given nesting level, emptied and ready to use.
+     */
+    private Scratch scratch(int depth) {
+      while (scratch.size() <= depth) scratch.add(new Scratch());
+      Scratch s = scratch.get(depth);
+      s.reset();
+      return s;
+    }
+
+    /** A growable buffer with an encoder, where the contents can be copied without a new array. */
+    private static class Scratch extends ByteArrayOutputStream {
+      private final BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(this, null);
+
+      /** Copy the contents of the buffer as raw bytes to the encoder. */
+      private void writeTo(Encoder out) throws IOException {
+        encoder.flush();
+        out.writeFixed(buf, 0, count);
+      }
+    }
+  }
+}
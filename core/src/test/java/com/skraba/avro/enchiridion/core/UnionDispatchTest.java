@@ -0,0 +1,248 @@
+package com.skraba.avro.enchiridion.core;
+
+import static com.skraba.avro.enchiridion.core.SerializeToBytesTest.toBytes;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.skraba.avro.enchiridion.core.schema.FingerprintCacheTest.WeakSchemaMap;
+import com.skraba.avro.enchiridion.resources.AvroTestResources;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntBiFunction;
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.Conversions;
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.UnresolvedUnionException;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.util.RandomData;
+import org.apache.avro.util.Utf8;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests and helpers for resolving the union branch of a datum quickly.
+ *
+ * <p>{@link GenericData#resolveUnion(Schema, Object)} finds the name of the datum type and looks it
+ * up in the union every time. The result only depends on the Java class of the datum, and for
+ * records, enums and fixed, the name of its schema. A {@link UnionDispatch} remembers the branch
+ * for each of these in a table for each union, so that it's only resolved the slow way once.
+ */
+public class UnionDispatchTest {
+
+  @Test
+  public void testResolveUnion() {
+    Schema enumSchema = AvroUtil.api().parse(AvroTestResources.SimpleEnum());
+    Schema record = AvroUtil.api().parse(AvroTestResources.SimpleRecord());
+    Schema union =
+        SchemaBuilder.unionOf()
+            .nullType()
+            .and()
+            .stringType()
+            .and()
+            .longType()
+            .and()
+            .type(enumSchema)
+            .and()
+            .type(record)
+            .and()
+            .array()
+            .items()
+            .intType()
+            .and()
+            .map()
+            .values()
+            .intType()
+            .endUnion();
+
+    UnionDispatch dispatch = new UnionDispatch(GenericData.get());
+    for (Object datum :
+        Arrays.asList(
+            null,
+            "a",
+            new Utf8("b"),
+            1L,
+            new GenericData.EnumSymbol(enumSchema, "e1"),
+            new GenericRecordBuilder(record).set("id", 1L).set("name", "one").build(),
+            new ArrayList<>(),
+            new GenericData.Array<>(0, union.getTypes().get(5)),
+            new HashMap<>())) {
+      // The first lookup is the slow way, the second is from the table.
+      int expected = GenericData.get().resolveUnion(union, datum);
+      assertThat(dispatch.resolve(union, datum), is(expected));
+      assertThat(dispatch.resolve(union, datum), is(expected));
+    }
+    assertThat(dispatch.size(), is(1));
+
+    // The tables are found by the identity of the union, and an equal copy has its own table.
+    Schema copy = new Schema.Parser().parse(union.toString());
+    assertThat(dispatch.resolve(copy, "a"), is(GenericData.get().resolveUnion(union, "a")));
+    assertThat(dispatch.size(), is(2));
+
+    // Failures aren't remembered, and are always thrown.
+    assertThrows(UnresolvedUnionException.class, () -> dispatch.resolve(union, 1));
+    assertThrows(UnresolvedUnionException.class, () -> dispatch.resolve(union, 1));
+
+    // Records with the same class but a different schema name are distinguished.
+    Schema other = SchemaBuilder.record("Other").fields().requiredLong("id").endRecord();
+    Schema union2 = SchemaBuilder.unionOf().type(record).and().type(other).endUnion();
+    assertThat(dispatch.resolve(union2, new GenericData.Record(other)), is(1));
+    assertThat(dispatch.resolve(union2, new GenericData.Record(record)), is(0));
+    assertThat(dispatch.resolve(union2, new GenericData.Record(other)), is(1));
+  }
+
+  @Test
+  public void testLogicalTypes() {
+    Schema decimal = LogicalTypes.decimal(5, 2).addToSchema(SchemaBuilder.builder().bytesType());
+    Schema union = SchemaBuilder.unionOf().nullType().and().type(decimal).endUnion();
+
+    // The same datum class resolves differently depending on the conversions in the model.
+    UnionDispatchData model = new UnionDispatchData();
+    model.addLogicalTypeConversion(new Conversions.DecimalConversion());
+    assertThat(model.resolveUnion(union, new BigDecimal("1.00")), is(1));
+    assertThat(model.resolveUnion(union, ByteBuffer.allocate(1)), is(1));
+    assertThrows(
+        AvroRuntimeException.class,
+        () -> new UnionDispatchData().resolveUnion(union, new BigDecimal("1.00")));
+  }
+
+  @Test
+  public void testWriteRecipes() throws IOException {
+    Schema schema = AvroUtil.api().parse(AvroTestResources.Recipe());
+    UnionDispatchData model = new UnionDispatchData();
+    GenericDatumWriter<Object> writer = new GenericDatumWriter<>(schema, model);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    BinaryEncoder encoder = null;
+    for (Object datum : new RandomData(schema, 100, 0L)) {
+      baos.reset();
+      encoder = EncoderFactory.get().binaryEncoder(baos, encoder);
+      writer.write(datum, encoder);
+      encoder.flush();
+      assertThat(baos.toByteArray(), is(toBytes(schema, datum)));
+    }
+    // One table for each distinct union in the schema.
+    assertThat(model.getDispatch().size() > 0, is(true));
+  }
+
+  /**
+   * A cache of the union branch for each type of datum.
+   *
+   * <p>There is one table for each distinct union schema. Each table is keyed by the class of the
+   * datum, and for datum that have their own schema (like records), the full name of that schema.
+   * The tables are found by the identity of the union schema, and are dropped after the union
+   * schema is garbage collected.
+   */
+  public static class UnionDispatch {
+
+    /** A shared instance for {@link GenericData#get()}. */
+    private static final UnionDispatch INSTANCE = new UnionDispatch(GenericData.get());
+
+    /** Used to resolve the branch for the first time. */
+    private final ToIntBiFunction<Schema, Object> resolver;
+
+    private final WeakSchemaMap<Table> tables = new WeakSchemaMap<>();
+
+    /**
+     * @param model The model that resolves the union the slow way.
+     */
+    public UnionDispatch(GenericData model) {
+      this(model::resolveUnion);
+    }
+
+    private UnionDispatch(ToIntBiFunction<Schema, Object> resolver) {
+      this.resolver = resolver;
+    }
+
+    /** Get the shared dispatch for {@link GenericData#get()}. */
+    public static UnionDispatch get() {
+      return INSTANCE;
+    }
+
+    /** A cached replacement for {@link GenericData#resolveUnion(Schema, Object)}. */
+    public int resolve(Schema union, Object datum) {
+      Table table = tables.computeIfAbsent(union, k -> new Table());
+      return table.resolve(union, datum);
+    }
+
+    /**
+     * @return The number of union tables.
+     */
+    public int size() {
+      return tables.size();
+    }
+
+    /** The branches for one union. */
+    private class Table {
+
+      /** The branch for null, or -1 if it hasn't been resolved yet. */
+      private volatile int nullBranch = -1;
+
+      /**
+       * The branch for each class of datum. The value is either an Integer, or for datum that are
+       * {@link GenericContainer}s, a map from their schema name to the Integer.
+       */
+      private final ConcurrentHashMap<Class<?>, Object> byClass = new ConcurrentHashMap<>();
+
+      int resolve(Schema union, Object datum) {
+        if (datum == null) {
+          if (nullBranch < 0) nullBranch = resolver.applyAsInt(union, null);
+          return nullBranch;
+        }
+
+        Object cached = byClass.get(datum.getClass());
+        if (cached instanceof Integer) return (Integer) cached;
+        if (cached != null) {
+          @SuppressWarnings("unchecked")
+          ConcurrentHashMap<String, Integer> byName = (ConcurrentHashMap<String, Integer>) cached;
+          Integer branch = byName.get(((GenericContainer) datum).getSchema().getFullName());
+          if (branch != null) return branch;
+        }
+
+        // Resolve the branch the slow way, which throws an exception if there isn't one.
+        int branch = resolver.applyAsInt(union, datum);
+        if (datum instanceof GenericContainer) {
+          @SuppressWarnings("unchecked")
+          ConcurrentHashMap<String, Integer> byName =
+              (ConcurrentHashMap<String, Integer>)
+                  byClass.computeIfAbsent(datum.getClass(), k -> new ConcurrentHashMap<>());
+          byName.put(((GenericContainer) datum).getSchema().getFullName(), branch);
+        } else {
+          byClass.put(datum.getClass(), branch);
+        }
+        return branch;
+      }
+    }
+  }
+
+  /**
+   * A {@link GenericData} model that uses a {@link UnionDispatch} to resolve unions, for example
+   * when writing datum with a {@link GenericDatumWriter}.
+   *
+   * <p>The conversions should be added before any union is resolved.
+   */
+  public static class UnionDispatchData extends GenericData {
+
+    private final UnionDispatch dispatch = new UnionDispatch(super::resolveUnion);
+
+    public UnionDispatch getDispatch() {
+      return dispatch;
+    }
+
+    @Override
+    public int resolveUnion(Schema union, Object datum) {
+      return dispatch.resolve(union, datum);
+    }
+  }
+}
@@ -0,0 +1,373 @@
+package com.skraba.avro.enchiridion.core.evolution;
+
+import static com.skraba.avro.enchiridion.core.evolution.BasicTest.SIMPLE_V1;
+import static com.skraba.avro.enchiridion.testkit.AvroAssertions.assertThat;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+import com.skraba.avro.enchiridion.core.schema.FingerprintCacheTest.FingerprintCache;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.SchemaCompatibility;
+import org.apache.avro.SchemaCompatibility.SchemaCompatibilityType;
+import org.apache.avro.SchemaCompatibility.SchemaPairCompatibility;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests and helpers to check the compatibility of many versions of a schema.
+ *
+ * <p>Checking if a new schema version can read the data written by all of the previous versions
+ * calls {@link SchemaCompatibility#checkReaderWriterCompatibility} once per version, and the same
+ * pairs are usually checked over and over again. A {@link CompatibilityService} remembers the
+ * result for each pair of schemas by fingerprint, and checks a whole history in parallel.
+ */
+public class CompatibilityMatrixTest {
+
+  /** Adds a field with a default. */
+  private static final Schema SIMPLE_V2 =
+      SchemaBuilder.record("com.skraba.avro.enchiridion.simple.SimpleRecord")
+          .fields()
+          .requiredLong("id")
+          .requiredString("name")
+          .name("rating")
+          .type()
+          .floatType()
+          .floatDefault(2.5f)
+          .endRecord();
+
+  /** Renames the name field, with an alias. */
+  private static final Schema SIMPLE_V3 =
+      SchemaBuilder.record("com.skraba.avro.enchiridion.simple.SimpleRecord")
+          .fields()
+          .requiredLong("id")
+          .name("label")
+          .aliases("name")
+          .type()
+          .stringType()
+          .noDefault()
+          .name("rating")
+          .type()
+          .floatType()
+          .floatDefault(2.5f)
+          .endRecord();
+
+  /** Removes the rating and narrows the id, which is never compatible with the earlier versions. */
+  private static final Schema SIMPLE_V4 =
+      SchemaBuilder.record("com.skraba.avro.enchiridion.simple.SimpleRecord")
+          .fields()
+          .requiredInt("id")
+          .name("label")
+          .aliases("name")
+          .type()
+          .stringType()
+          .noDefault()
+          .endRecord();
+
+  private static final List<Schema> HISTORY = Arrays.asList(SIMPLE_V1, SIMPLE_V2, SIMPLE_V3);
+
+  @Test
+  public void testMatrix() {
+    List<Schema> history = new ArrayList<>(HISTORY);
+    history.add(SIMPLE_V4);
+    CompatibilityService service = new CompatibilityService(4);
+    CompatibilityMatrix matrix = service.matrix(history);
+
+    // Every cell is the same as checking the pair directly.
+    for (int r = 0; r < history.size(); r++)
+      for (int w = 0; w < history.size(); w++)
+        assertThat(
+            matrix.canRead(r, w),
+            is(
+                SchemaCompatibility.checkReaderWriterCompatibility(history.get(r), history.get(w))
+                        .getType()
+                    == SchemaCompatibilityType.COMPATIBLE));
+
+    // The readers that can read everything written by the first versions.
+    assertThat(matrix.canReadAll(0, 1), is(true));
+    assertThat(matrix.canReadAll(0, 2), is(true));
+    assertThat(matrix.canReadAll(2, 3), is(true));
+    assertThat(matrix.canReadAll(2, 4), is(true)); // The id is widened from int to long.
+    assertThat(matrix.canReadAll(3, 0), is(true));
+    assertThat(matrix.canReadAll(3, 1), is(false));
+    assertThat(matrix.getReadablePrefix(1), is(2));
+    assertThat(matrix.getReadablePrefix(3), is(0));
+
+    // All of the pairs are remembered.
+    assertThat(service.size(), is(16));
+    assertThat(service.getMisses(), is(16L));
+    service.matrix(history);
+    assertThat(service.getHits(), is(16L));
+  }
+
+  @Test
+  public void testCanReadAll() {
+    CompatibilityService service = new CompatibilityService(2);
+    assertThat(service.canReadAll(SIMPLE_V3, HISTORY), is(true));
+    assertThat(service.canReadAll(SIMPLE_V4, HISTORY), is(false));
+    assertThat(service.canReadAll(SIMPLE_V1, HISTORY.subList(0, 1)), is(true));
+    assertThat(service.canReadAll(SIMPLE_V1, new ArrayList<>()), is(true));
+
+    // An equal schema from another instance has the same result.
+    Schema copy = new Schema.Parser().parse(SIMPLE_V3.toString());
+    assertThat(service.check(copy, SIMPLE_V1), sameInstance(service.check(SIMPLE_V3, SIMPLE_V1)));
+
+    // The cached check can be used in the assertions.
+    assertThat(SIMPLE_V1).compatibilityWith(SIMPLE_V3, service::check).isOK();
+    assertThat(SIMPLE_V1).compatibilityWith(SIMPLE_V4, service::check).isNotOK("TYPE_MISMATCH");
+  }
+
+  @Test
+  public void testBounded() {
+    List<Schema> history = new ArrayList<>(HISTORY);
+    history.add(SIMPLE_V4);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      CompatibilityService service = new CompatibilityService(executor, 2, 3);
+      CompatibilityMatrix matrix = service.matrix(history);
+      assertThat(matrix.getReadablePrefix(1), is(2));
+      assertThat(matrix.getReadablePrefix(3), is(0));
+
+      // Only the most recent pairs are remembered, and the executor can be used again.
+      assertThat(service.size(), is(3));
+      assertThat(service.canReadAll(SIMPLE_V3, HISTORY), is(true));
+      assertThat(service.size(), is(3));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Checks and remembers the compatibility between pairs of schemas.
+   *
+   * <p>The results are found by the full fingerprints of the reader and writer schemas from the
+   * {@link FingerprintCache}, since defaults and aliases affect the compatibility, and confirmed by
+   * comparing the schemas themselves. When the cache is full, the oldest pairs are evicted first.
+   * This class is thread-safe.
+   */
+  public static class CompatibilityService {
+
+    /** Used to check many pairs, and kept for the life of the service. */
+    private final ExecutorService executor;
+
+    private final int parallelism;
+
+    private final int maxSize;
+
+    private final ConcurrentHashMap<Key, SchemaPairCompatibility> results =
+        new ConcurrentHashMap<>();
+
+    /** The keys in the order they were added, for eviction. */
+    private final Queue<Key> insertionOrder = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param threads The number of tasks to split many pairs between, on the common pool.
+     */
+    public CompatibilityService(int threads) {
+      this(ForkJoinPool.commonPool(), threads, 10000);
+    }
+
+    /**
+     * @param executor The executor used to check many pairs, which is not shut down by this
+     *     service.
+     * @param parallelism The number of tasks to split the pairs between.
+     * @param maxSize The maximum number of pairs to remember.
+     */
+    public CompatibilityService(ExecutorService executor, int parallelism, int maxSize) {
+      this.executor = executor;
+      this.parallelism = parallelism;
+      this.maxSize = maxSize;
+    }
+
+    /**
+     * A cached replacement for {@link SchemaCompatibility#checkReaderWriterCompatibility}.
+     *
+     * <p>The schemas in the result are the ones that were first checked, which might be different
+     * instances than the ones passed in.
+     */
+    public SchemaPairCompatibility check(Schema reader, Schema writer) {
+      Key key = new Key(reader, writer);
+      SchemaPairCompatibility result = results.get(key);
+      if (result != null) {
+        hits.increment();
+        return result;
+      }
+      misses.increment();
+      result = SchemaCompatibility.checkReaderWriterCompatibility(reader, writer);
+      SchemaPairCompatibility previous = results.putIfAbsent(key, result);
+      if (previous != null) return previous;
+      insertionOrder.add(key);
+      while (results.size() > maxSize) {
+        Key oldest = insertionOrder.poll();
+        if (oldest == null) break;
+        results.remove(oldest);
+      }
+      return result;
+    }
+
+    /**
+     * @return True if the reader can read data written by every one of the writers.
+     */
+    public boolean canReadAll(Schema reader, List<Schema> writers) {
+      for (boolean c : matrix(new Schema[] {reader}, writers)[0]) if (!c) return false;
+      return true;
+    }
+
+    /**
+     * Check every version in the history against every other version, in parallel.
+     *
+     * @param history The versions of a schema, oldest first.
+     * @return The compatibility of every reader and writer in the history.
+     */
+    public CompatibilityMatrix matrix(List<Schema> history) {
+      return new CompatibilityMatrix(matrix(history.toArray(new Schema[0]), history));
+    }
+
+    /**
+     * Check each of the readers against all of the writers, splitting the cells between threads.
+     */
+    private boolean[][] matrix(Schema[] readers, List<Schema> writers) {
+      int width = writers.size();
+      boolean[][] compatible = new boolean[readers.length][width];
+      int cells = readers.length * width;
+      if (cells == 0) return compatible;
+      // A few ranges per thread, to balance the work when some pairs are already known.
+      int ranges = Math.min(cells, parallelism * 4);
+      List<Future<?>> done = new ArrayList<>();
+      try {
+        for (int i = 0; i < ranges; i++) {
+          int start = (int) ((long) cells * i / ranges);
+          int end = (int) ((long) cells * (i + 1) / ranges);
+          done.add(
+              executor.submit(
+                  () -> {
+                    for (int cell = start; cell < end; cell++) {
+                      int r = cell / width;
+                      int w = cell % width;
+                      compatible[r][w] =
+                          check(readers[r], writers.get(w)).getType()
+                              == SchemaCompatibilityType.COMPATIBLE;
+                    }
+                  }));
+        }
+        for (Future<?> f : done) f.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      } finally {
+        // Don't leave any of the ranges running on the shared executor after a failure.
+        for (Future<?> f : done) f.cancel(true);
+      }
+      return compatible;
+    }
+
+    /**
+     * @return The number of pairs currently remembered.
+     */
+    public int size() {
+      return results.size();
+    }
+
+    public long getHits() {
+      return hits.sum();
+    }
+
+    public long getMisses() {
+      return misses.sum();
+    }
+
+    /** A reader and writer schema, found by their full fingerprints. */
+    private static class Key {
+      private final FingerprintCache.Fingerprints reader;
+      private final FingerprintCache.Fingerprints writer;
+
+      Key(Schema reader, Schema writer) {
+        this.reader = FingerprintCache.get().of(reader);
+        this.writer = FingerprintCache.get().of(writer);
+      }
+
+      @Override
+      public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Key)) return false;
+        Key key = (Key) o;
+        return sameSchema(reader, key.reader) && sameSchema(writer, key.writer);
+      }
+
+      @Override
+      public int hashCode() {
+        return Objects.hash(reader.getSchemaFingerprint64(), writer.getSchemaFingerprint64());
+      }
+
+      /**
+       * Aliases aren't part of {@link Schema#equals}, so the cached full JSON confirms equal
+       * fingerprints.
+       */
+      private static boolean sameSchema(
+          FingerprintCache.Fingerprints a, FingerprintCache.Fingerprints b) {
+        return a == b
+            || a.getSchemaFingerprint64() == b.getSchemaFingerprint64()
+                && a.getSchemaJson().equals(b.getSchemaJson());
+      }
+    }
+  }
+
+  /** The compatibility between every pair of versions in a schema history. */
+  public static class CompatibilityMatrix {
+
+    private final boolean[][] compatible;
+
+    /** For each reader, the number of versions from the start of the history it can read. */
+    private final int[] readablePrefix;
+
+    CompatibilityMatrix(boolean[][] compatible) {
+      this.compatible = compatible;
+      this.readablePrefix = new int[compatible.length];
+      for (int r = 0; r < compatible.length; r++) {
+        int k = 0;
+        while (k < compatible[r].length && compatible[r][k]) k++;
+        readablePrefix[r] = k;
+      }
+    }
+
+    /**
+     * @return True if the reader version can read data written by the writer version.
+     */
+    public boolean canRead(int reader, int writer) {
+      return compatible[reader][writer];
+    }
+
+    /**
+     * @return True if the reader version can read everything written by the first k versions.
+     */
+    public boolean canReadAll(int reader, int k) {
+      return readablePrefix[reader] >= k;
+    }
+
+    /**
+     * @return The number of versions from the start of the history that the reader can read.
+     */
+    public int getReadablePrefix(int reader) {
+      return readablePrefix[reader];
+    }
+  }
+}
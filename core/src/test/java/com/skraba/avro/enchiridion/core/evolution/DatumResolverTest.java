@@ -0,0 +1,594 @@
+package com.skraba.avro.enchiridion.core.evolution;
+
+import static com.skraba.avro.enchiridion.core.evolution.BasicTest.RECORD_V1;
+import static com.skraba.avro.enchiridion.core.evolution.BasicTest.SIMPLE_V1;
+import static com.skraba.avro.enchiridion.core.evolution.BasicTest.evolveUsingBinarySerialization;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.skraba.avro.enchiridion.core.AvroUtil;
+import com.skraba.avro.enchiridion.core.evolution.DefaultValuesTest.DefaultValues;
+import com.skraba.avro.enchiridion.core.schema.NameIndexTest.NameIndex;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Conversion;
+import org.apache.avro.Conversions;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericFixed;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.avro.util.Utf8;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests and helpers to evolve a datum to a new schema in memory.
+ *
+ * <p>{@link BasicTest#evolveUsingBinarySerialization} applies the schema resolution rules by
+ * writing the datum and reading it back with the new schema. A {@link DatumResolver} applies the
+ * same rules directly from one datum to the other: missing fields take their default, primitives
+ * are widened, union branches are matched and fields are found by name or alias. Any part of the
+ * datum where the schema hasn't changed is reused as is.
+ */
+public class DatumResolverTest {
+
+  /** Evolve the datum to the expected schema in memory. */
+  public static <In, Out> Out evolveInMemory(In original, Schema actual, Schema expected) {
+    return DatumResolver.<In, Out>of(GenericData.get(), actual, expected).resolve(original);
+  }
+
+  /** Check that resolving in memory gives the same result as serialization. */
+  private static <T> T assertSameAsBinary(Object original, Schema actual, Schema expected) {
+    T evolved = evolveInMemory(original, actual, expected);
+    Object serialized = evolveUsingBinarySerialization(original, actual, expected);
+    assertThat(evolved, is(serialized));
+    return evolved;
+  }
+
+  @Test
+  public void testRecordFields() {
+    // Added with a default, removed, renamed with an alias and reordered.
+    Schema v2 =
+        AvroUtil.api()
+            .parse(
+                AvroUtil.qqify(
+                    "{'type':'record','name':'SimpleRecord',"
+                        + "'namespace':'com.skraba.avro.enchiridion.simple','fields':["
+                        + "{'name':'rating','type':'float','default':2.5},"
+                        + "{'name':'label','aliases':['name'],'type':'string'},"
+                        + "{'name':'tags','type':{'type':'array','items':'string'},'default':[]}"
+                        + "]}"));
+    GenericRecord evolved = assertSameAsBinary(RECORD_V1, SIMPLE_V1, v2);
+    assertThat(evolved.getSchema(), sameInstance(v2));
+    assertThat(evolved.get("label").toString(), is("one"));
+
+    // Defaults are copied, so changing one doesn't change the others.
+    @SuppressWarnings("unchecked")
+    List<Object> tags = (List<Object>) evolved.get("tags");
+    tags.add("x");
+    GenericRecord evolved2 = evolveInMemory(RECORD_V1, SIMPLE_V1, v2);
+    assertThat(((List<?>) evolved2.get("tags")).size(), is(0));
+
+    // A new field without a default can't be resolved.
+    Schema v3 =
+        SchemaBuilder.record("com.skraba.avro.enchiridion.simple.SimpleRecord")
+            .fields()
+            .requiredLong("id")
+            .requiredString("label")
+            .endRecord();
+    assertThrows(AvroTypeException.class, () -> evolveInMemory(RECORD_V1, SIMPLE_V1, v3));
+  }
+
+  @Test
+  public void testNamedTypes() {
+    Schema fixed = SchemaBuilder.fixed("ns.Hash").size(2);
+    Schema enumS = SchemaBuilder.enumeration("ns.Unit").symbols("C", "F");
+    GenericData.Fixed hash = new GenericData.Fixed(fixed, new byte[] {1, 2});
+    GenericData.EnumSymbol unit = new GenericData.EnumSymbol(enumS, "F");
+
+    // Renamed with an alias.
+    Schema fixedAlias = SchemaBuilder.fixed("ns.Digest").aliases("ns.Hash").size(2);
+    Schema enumAlias = SchemaBuilder.enumeration("ns.Scale").aliases("Unit").symbols("C", "F");
+    assertSameAsBinary(hash, fixed, fixedAlias);
+    assertSameAsBinary(unit, enumS, enumAlias);
+
+    // Renamed without an alias fails in the same way as serialization.
+    Schema fixedRenamed = SchemaBuilder.fixed("ns.Digest").size(2);
+    Schema enumRenamed = SchemaBuilder.enumeration("ns.Scale").symbols("C", "F");
+    assertThrows(
+        AvroTypeException.class, () -> evolveUsingBinarySerialization(hash, fixed, fixedRenamed));
+    assertThrows(AvroTypeException.class, () -> evolveInMemory(hash, fixed, fixedRenamed));
+    assertThrows(
+        AvroTypeException.class, () -> evolveUsingBinarySerialization(unit, enumS, enumRenamed));
+    assertThrows(AvroTypeException.class, () -> evolveInMemory(unit, enumS, enumRenamed));
+  }
+
+  @Test
+  public void testWidenPrimitives() {
+    Schema intS = Schema.create(Schema.Type.INT);
+    Schema longS = Schema.create(Schema.Type.LONG);
+    Schema floatS = Schema.create(Schema.Type.FLOAT);
+    Schema doubleS = Schema.create(Schema.Type.DOUBLE);
+    Schema stringS = Schema.create(Schema.Type.STRING);
+    Schema bytesS = Schema.create(Schema.Type.BYTES);
+
+    assertSameAsBinary(123, intS, longS);
+    assertSameAsBinary(123, intS, floatS);
+    assertSameAsBinary(123, intS, doubleS);
+    assertSameAsBinary(1L << 40, longS, floatS);
+    assertSameAsBinary(1L << 40, longS, doubleS);
+    assertSameAsBinary(1.5f, floatS, doubleS);
+    assertSameAsBinary(new Utf8("€uro"), stringS, bytesS);
+    assertThat(
+        evolveInMemory("€uro", stringS, bytesS),
+        is(ByteBuffer.wrap("€uro".getBytes(StandardCharsets.UTF_8))));
+    assertSameAsBinary(ByteBuffer.wrap("€uro".getBytes(StandardCharsets.UTF_8)), bytesS, stringS);
+
+    // Narrowing isn't permitted.
+    assertThrows(AvroTypeException.class, () -> evolveInMemory(123L, longS, intS));
+  }
+
+  @Test
+  public void testUnionsAndEnums() {
+    Schema e1 = SchemaBuilder.enumeration("E").symbols("A", "B", "C");
+    Schema e2 = SchemaBuilder.enumeration("E").defaultSymbol("Z").symbols("Z", "C", "B");
+    assertSameAsBinary(new GenericData.EnumSymbol(e1, "B"), e1, e2);
+    assertSameAsBinary(new GenericData.EnumSymbol(e1, "A"), e1, e2);
+
+    // From a primitive to a union, with and without promotion.
+    Schema v1 = AvroUtil.sample().createRecord("ns.A", "l");
+    Schema v2 = AvroUtil.sample().createRecord("ns.A", "|l ");
+    Schema v3 = AvroUtil.sample().createRecord("ns.A", "|s d");
+    GenericRecord r1 = new GenericRecordBuilder(v1).set("a0", 123_456L).build();
+    assertSameAsBinary(r1, v1, v2);
+    assertSameAsBinary(r1, v1, v3);
+
+    // From a union to a primitive only works for some values.
+    GenericRecord r2 = new GenericRecordBuilder(v2).set("a0", 123_456L).build();
+    assertSameAsBinary(r2, v2, v1);
+    GenericRecord r2null = new GenericRecordBuilder(v2).set("a0", null).build();
+    assertThrows(AvroTypeException.class, () -> evolveInMemory(r2null, v2, v1));
+  }
+
+  @Test
+  public void testReuseUnchangedSubtrees() {
+    Schema inner = SchemaBuilder.record("Inner").fields().requiredString("s").endRecord();
+    Schema v1 =
+        SchemaBuilder.record("Outer")
+            .fields()
+            .name("inner")
+            .type(inner)
+            .noDefault()
+            .name("list")
+            .type()
+            .array()
+            .items(inner)
+            .noDefault()
+            .name("map")
+            .type()
+            .map()
+            .values()
+            .intType()
+            .noDefault()
+            .endRecord();
+    Schema v2 =
+        SchemaBuilder.record("Outer")
+            .fields()
+            .name("inner")
+            .type(inner)
+            .noDefault()
+            .name("list")
+            .type()
+            .array()
+            .items(inner)
+            .noDefault()
+            .name("map")
+            .type()
+            .map()
+            .values()
+            .longType()
+            .noDefault()
+            .endRecord();
+
+    GenericRecord in = new GenericRecordBuilder(inner).set("s", "x").build();
+    List<GenericRecord> list = new ArrayList<>(Arrays.asList(in, in));
+    Map<String, Integer> map = new HashMap<>();
+    map.put("one", 1);
+    GenericRecord r1 =
+        new GenericRecordBuilder(v1).set("inner", in).set("list", list).set("map", map).build();
+
+    GenericRecord r2 = assertSameAsBinary(r1, v1, v2);
+    assertThat(r2.get("inner"), sameInstance(in));
+    assertThat(r2.get("list"), sameInstance(list));
+    assertThat(((Map<?, ?>) r2.get("map")).get("one"), is(1L));
+
+    // If nothing has changed, the datum itself is returned.
+    assertThat(evolveInMemory(r1, v1, v1), sameInstance(r1));
+  }
+
+  @Test
+  public void testUnionBranchByAlias() {
+    Schema w =
+        AvroUtil.api()
+            .parse(
+                AvroUtil.qqify(
+                    "['null',{'type':'record','name':'Old','fields':[{'name':'id','type':'int'}]}]"));
+    Schema r =
+        AvroUtil.api()
+            .parse(
+                AvroUtil.qqify(
+                    "['null',{'type':'record','name':'Other','fields':[{'name':'id','type':'long'}]},"
+                        + "{'type':'record','name':'New','aliases':['Old'],"
+                        + "'fields':[{'name':'id','type':'long'}]}]"));
+    GenericRecord old = new GenericRecordBuilder(w.getTypes().get(1)).set("id", 1).build();
+
+    // Both reader records have a compatible structure, but the alias is used first.
+    GenericRecord evolved = assertSameAsBinary(old, w, r);
+    assertThat(evolved.getSchema().getName(), is("New"));
+    assertThat(evolved.get("id"), is(1L));
+  }
+
+  @Test
+  public void testRecursive() {
+    Schema v1 =
+        AvroUtil.api()
+            .parse(
+                AvroUtil.qqify(
+                    "{'type':'record','name':'Node','fields':["
+                        + "{'name':'v','type':'int'},{'name':'next','type':['null','Node']}]}"));
+    Schema v2 =
+        AvroUtil.api()
+            .parse(
+                AvroUtil.qqify(
+                    "{'type':'record','name':'Node','fields':["
+                        + "{'name':'v','type':'long'},{'name':'next','type':['null','Node']}]}"));
+    GenericRecord tail = new GenericRecordBuilder(v1).set("v", 2).set("next", null).build();
+    GenericRecord head = new GenericRecordBuilder(v1).set("v", 1).set("next", tail).build();
+    GenericRecord evolved = assertSameAsBinary(head, v1, v2);
+    assertThat(((GenericRecord) evolved.get("next")).get("v"), is(2L));
+  }
+
+  /**
+   * Converts datum from a writer schema to a reader schema in memory, following the schema
+   * resolution rules.
+   *
+   * <p>The schemas are compared once when the resolver is created, and the resolver can be reused
+   * for many datum from many threads. Just like reading, some errors (like a missing union branch)
+   * can only be detected when a datum is resolved, and throw an {@link AvroTypeException}.
+   */
+  public static class DatumResolver<In, Out> {
+
+    private final Converter root;
+
+    private DatumResolver(Converter root) {
+      this.root = root;
+    }
+
+    /**
+     * @param model The model used to create records, resolve unions, and copy defaults.
+     * @param writer The schema of the original datum.
+     * @param reader The schema of the resolved datum.
+     * @return A resolver for datum between the two schemas.
+     */
+    public static <In, Out> DatumResolver<In, Out> of(
+        GenericData model, Schema writer, Schema reader) {
+      return new DatumResolver<>(new Compiler(model, reader).compile(writer, reader));
+    }
+
+    /**
+     * @return The datum resolved to the reader schema.
+     */
+    @SuppressWarnings("unchecked")
+    public Out resolve(In datum) {
+      return (Out) root.convert(datum);
+    }
+
+    /** Converts one value. */
+    private interface Converter {
+      Converter IDENTITY = datum -> datum;
+
+      Object convert(Object datum);
+    }
+
+    /** Compares the two schemas and creates the tree of {@link Converter}s. */
+    private static class Compiler {
+
+      private final GenericData model;
+
+      /** Records that are already being compiled, to handle recursive schemas. */
+      private final Map<Schema, Map<Schema, Converter>> seen = new IdentityHashMap<>();
+
+      /** The decoded defaults of the reader records, shared when possible. */
+      private final DefaultValues defaults;
+
+      /** The named types in the reader schema, to match writer names to reader aliases. */
+      private final NameIndex readerNames;
+
+      Compiler(GenericData model, Schema reader) {
+        this.model = model;
+        this.defaults = DefaultValues.get(model);
+        this.readerNames = NameIndex.of(reader);
+      }
+
+      Converter compile(Schema w, Schema r) {
+        // Reuse the datum when the schemas are the same.
+        if (w == r || w.equals(r)) return Converter.IDENTITY;
+
+        if (w.getType() == Schema.Type.UNION) return compileWriterUnion(w, r);
+        if (r.getType() == Schema.Type.UNION) {
+          int branch = firstMatchingBranch(w, r);
+          if (branch < 0) throw mismatch(w, r);
+          return compile(w, r.getTypes().get(branch));
+        }
+
+        Converter raw = compileRaw(w, r);
+        Conversion<?> wCnv =
+            w.getLogicalType() == null ? null : model.getConversionFor(w.getLogicalType());
+        Conversion<?> rCnv =
+            r.getLogicalType() == null ? null : model.getConversionFor(r.getLogicalType());
+        if (wCnv == null && rCnv == null) return raw;
+
+        // Logical types are resolved using their underlying types.
+        return datum -> {
+          Object in = datum;
+          if (wCnv != null && wCnv.getConvertedType().isInstance(datum))
+            in = convertToRaw(wCnv, in, w);
+          Object out = raw.convert(in);
+          return rCnv == null
+              ? out
+              : Conversions.convertToLogicalType(out, r, r.getLogicalType(), rCnv);
+        };
+      }
+
+      @SuppressWarnings("unchecked")
+      private static <T> Object convertToRaw(Conversion<T> cnv, Object datum, Schema s) {
+        return Conversions.convertToRawType((T) datum, s, s.getLogicalType(), cnv);
+      }
+
+      private Converter compileRaw(Schema w, Schema r) {
+        switch (r.getType()) {
+          case NULL:
+          case BOOLEAN:
+          case INT:
+            if (w.getType() == r.getType()) return Converter.IDENTITY;
+            break;
+          case LONG:
+            if (w.getType() == Schema.Type.LONG) return Converter.IDENTITY;
+            if (w.getType() == Schema.Type.INT) return datum -> ((Number) datum).longValue();
+            break;
+          case FLOAT:
+            if (w.getType() == Schema.Type.FLOAT) return Converter.IDENTITY;
+            if (w.getType() == Schema.Type.INT || w.getType() == Schema.Type.LONG)
+              return datum -> ((Number) datum).floatValue();
+            break;
+          case DOUBLE:
+            if (w.getType() == Schema.Type.DOUBLE) return Converter.IDENTITY;
+            if (w.getType() == Schema.Type.INT
+                || w.getType() == Schema.Type.LONG
+                || w.getType() == Schema.Type.FLOAT) return datum -> ((Number) datum).doubleValue();
+            break;
+          case STRING:
+            if (w.getType() == Schema.Type.STRING) return Converter.IDENTITY;
+            if (w.getType() == Schema.Type.BYTES)
+              return datum -> {
+                ByteBuffer bb = ((ByteBuffer) datum).duplicate();
+                byte[] bytes = new byte[bb.remaining()];
+                bb.get(bytes);
+                return new Utf8(bytes);
+              };
+            break;
+          case BYTES:
+            if (w.getType() == Schema.Type.BYTES) return Converter.IDENTITY;
+            if (w.getType() == Schema.Type.STRING)
+              return datum ->
+                  ByteBuffer.wrap(
+                      datum instanceof Utf8
+                          ? Arrays.copyOf(((Utf8) datum).getBytes(), ((Utf8) datum).getByteLength())
+                          : datum.toString().getBytes(StandardCharsets.UTF_8));
+            break;
+          case FIXED:
+            if (w.getType() == Schema.Type.FIXED
+                && w.getFixedSize() == r.getFixedSize()
+                && readerNames.isNameOrAlias(r, w.getFullName()))
+              return datum -> model.createFixed(null, ((GenericFixed) datum).bytes(), r);
+            break;
+          case ENUM:
+            if (w.getType() == Schema.Type.ENUM && readerNames.isNameOrAlias(r, w.getFullName()))
+              return compileEnum(r);
+            break;
+          case ARRAY:
+            if (w.getType() == Schema.Type.ARRAY) return compileArray(w, r);
+            break;
+          case MAP:
+            if (w.getType() == Schema.Type.MAP) return compileMap(w, r);
+            break;
+          case RECORD:
+            if (w.getType() == Schema.Type.RECORD) return compileRecord(w, r);
+            break;
+          default:
+        }
+        throw mismatch(w, r);
+      }
+
+      private Converter compileEnum(Schema r) {
+        String defaultSymbol = r.getEnumDefault();
+        return datum -> {
+          String symbol = datum.toString();
+          if (!r.hasEnumSymbol(symbol)) {
+            if (defaultSymbol == null)
+              throw new AvroTypeException("No match for " + symbol + " in " + r.getFullName());
+            symbol = defaultSymbol;
+          }
+          return model.createEnum(symbol, r);
+        };
+      }
+
+      private Converter compileArray(Schema w, Schema r) {
+        Converter element = compile(w.getElementType(), r.getElementType());
+        return datum -> {
+          Collection<?> in = (Collection<?>) datum;
+          GenericData.Array<Object> out = new GenericData.Array<>(in.size(), r);
+          for (Object e : in) out.add(element.convert(e));
+          return out;
+        };
+      }
+
+      private Converter compileMap(Schema w, Schema r) {
+        Converter value = compile(w.getValueType(), r.getValueType());
+        return datum -> {
+          Map<?, ?> in = (Map<?, ?>) datum;
+          Map<Object, Object> out = new HashMap<>(in.size() * 4 / 3 + 1);
+          for (Map.Entry<?, ?> e : in.entrySet()) out.put(e.getKey(), value.convert(e.getValue()));
+          return out;
+        };
+      }
+
+      private Converter compileRecord(Schema w, Schema r) {
+        Converter existing = seen.computeIfAbsent(w, k -> new IdentityHashMap<>()).get(r);
+        if (existing != null) return existing;
+
+        // Register the record before compiling its fields, in case it contains itself.
+        List<Schema.Field> fields = r.getFields();
+        int[] from = new int[fields.size()];
+        Converter[] converters = new Converter[fields.size()];
+        DefaultValues.Defaults defaults = this.defaults.of(r);
+        Converter record =
+            datum -> {
+              IndexedRecord in = (IndexedRecord) datum;
+              IndexedRecord out = (IndexedRecord) model.newRecord(null, r);
+              for (int i = 0; i < converters.length; i++) {
+                if (from[i] >= 0) out.put(i, converters[i].convert(in.get(from[i])));
+                else out.put(i, defaults.get(i));
+              }
+              return out;
+            };
+        seen.get(w).put(r, record);
+
+        for (int i = 0; i < converters.length; i++) {
+          Schema.Field rf = fields.get(i);
+          Schema.Field wf = writerField(w, rf);
+          if (wf != null) {
+            from[i] = wf.pos();
+            converters[i] = compile(wf.schema(), rf.schema());
+          } else if (rf.hasDefaultValue()) {
+            from[i] = -1;
+          } else {
+            seen.get(w).remove(r);
+            throw new AvroTypeException(
+                "Found "
+                    + w.getFullName()
+                    + ", expecting "
+                    + r.getFullName()
+                    + ", missing required field "
+                    + rf.name());
+          }
+        }
+        return record;
+      }
+
+      /**
+       * @return The writer field with the same name as the reader field or one of its aliases.
+       */
+      private static Schema.Field writerField(Schema w, Schema.Field rf) {
+        Schema.Field wf = w.getField(rf.name());
+        if (wf != null) return wf;
+        for (String alias : rf.aliases()) {
+          wf = w.getField(alias);
+          if (wf != null) return wf;
+        }
+        return null;
+      }
+
+      /** A writer union is resolved for each datum, and branches are only checked when used. */
+      private Converter compileWriterUnion(Schema w, Schema r) {
+        List<Schema> types = w.getTypes();
+        Converter[] branches = new Converter[types.size()];
+        for (int i = 0; i < branches.length; i++) {
+          try {
+            branches[i] = compile(types.get(i), r);
+          } catch (AvroTypeException e) {
+            branches[i] =
+                datum -> {
+                  throw e;
+                };
+          }
+        }
+        return datum -> branches[model.resolveUnion(w, datum)].convert(datum);
+      }
+
+      /**
+       * Find the reader union branch for a writer schema: the first branch with the same type (and
+       * name or alias, for named types), then the first record with a compatible structure, then
+       * the first branch that the writer can be promoted to.
+       */
+      private int firstMatchingBranch(Schema w, Schema r) {
+        String name = NameIndex.isNamed(w) ? w.getFullName() : null;
+        List<Schema> types = r.getTypes();
+        int structureMatch = -1;
+        for (int i = 0; i < types.size(); i++) {
+          Schema b = types.get(i);
+          if (w.getType() != b.getType()) continue;
+          switch (w.getType()) {
+            case RECORD:
+              if (readerNames.isNameOrAlias(b, name)) return i;
+              if (structureMatch < 0) {
+                try {
+                  compile(w, b);
+                  structureMatch = i;
+                } catch (AvroTypeException e) {
+                  // Not a match.
+                }
+              }
+              break;
+            case ENUM:
+            case FIXED:
+              if (readerNames.isNameOrAlias(b, name)) return i;
+              break;
+            default:
+              return i;
+          }
+        }
+        if (structureMatch >= 0) return structureMatch;
+        for (int i = 0; i < types.size(); i++) {
+          Schema.Type b = types.get(i).getType();
+          switch (w.getType()) {
+            case INT:
+              if (b == Schema.Type.LONG || b == Schema.Type.FLOAT || b == Schema.Type.DOUBLE)
+                return i;
+              break;
+            case LONG:
+              if (b == Schema.Type.FLOAT || b == Schema.Type.DOUBLE) return i;
+              break;
+            case FLOAT:
+              if (b == Schema.Type.DOUBLE) return i;
+              break;
+            case STRING:
+              if (b == Schema.Type.BYTES) return i;
+              break;
+            case BYTES:
+              if (b == Schema.Type.STRING) return i;
+              break;
+            default:
+          }
+        }
+        return -1;
+      }
+
+      private static AvroTypeException mismatch(Schema w, Schema r) {
+        return new AvroTypeException("Found " + w + ", expecting " + r);
+      }
+    }
+  }
+}
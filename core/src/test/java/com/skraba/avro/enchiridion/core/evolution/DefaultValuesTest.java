@@ -0,0 +1,613 @@
+package com.skraba.avro.enchiridion.core.evolution;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.skraba.avro.enchiridion.core.AvroUtil;
+import com.skraba.avro.enchiridion.core.SerializeToBytesTest;
+import com.skraba.avro.enchiridion.core.schema.FingerprintCacheTest.WeakSchemaMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.avro.AvroMissingFieldException;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericArray;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.util.RandomData;
+import org.apache.avro.util.Utf8;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests and helpers for filling in the default values of a reader schema.
+ *
+ * <p>{@link GenericData#getDefaultValue(Schema.Field)} decodes the JSON default once and caches it,
+ * but since the cached value is shared, every caller has to {@link GenericData#deepCopy} it before
+ * putting it into a record. A {@link DefaultValues} decides once per reader schema how each default
+ * can be handed out: immutable values are shared, and arrays, maps and records of immutable values
+ * are wrapped in a view that only copies the default when it is changed.
+ */
+public class DefaultValuesTest {
+
+  private static final Schema SENSOR =
+      AvroUtil.api()
+          .parse(
+              AvroUtil.qqify(
+                  "{'type':'record','name':'Sensor','fields':["
+                      + "{'name':'id','type':'long'},"
+                      + "{'name':'rating','type':'float','default':2.5},"
+                      + "{'name':'label','type':'string','default':'none'},"
+                      + "{'name':'unit','type':{'type':'enum','name':'Unit','symbols':['C','F']},"
+                      + "'default':'C'},"
+                      + "{'name':'opt','type':['null','int'],'default':null},"
+                      + "{'name':'raw','type':'bytes','default':'\\u0001\\u0002'},"
+                      + "{'name':'hash','type':{'type':'fixed','name':'Hash','size':2},"
+                      + "'default':'\\u0003\\u0004'},"
+                      + "{'name':'tags','type':{'type':'array',"
+                      + "'items':{'type':'string','avro.java.string':'String'}},"
+                      + "'default':['a','b']},"
+                      + "{'name':'limits','type':{'type':'map','values':'long',"
+                      + "'avro.java.string':'String'},"
+                      + "'default':{'min':0,'max':10}},"
+                      + "{'name':'origin','type':{'type':'record','name':'Point','fields':["
+                      + "{'name':'x','type':'int'},{'name':'y','type':'int'}]},"
+                      + "'default':{'x':1,'y':2}},"
+                      + "{'name':'path','type':{'type':'array','items':'Point'},"
+                      + "'default':[{'x':3,'y':4}]}]}"));
+
+  @Test
+  public void testSameAsUpstream() {
+    DefaultValues.Defaults defaults = DefaultValues.get().of(SENSOR);
+    assertThat(defaults.size(), is(SENSOR.getFields().size()));
+    for (Schema.Field f : SENSOR.getFields()) {
+      assertThat(defaults.hasDefault(f.pos()), is(f.hasDefaultValue()));
+      if (f.hasDefaultValue())
+        assertThat(f.name(), defaults.get(f.pos()), is(GenericData.get().getDefaultValue(f)));
+    }
+    assertThrows(AvroMissingFieldException.class, () -> defaults.get(0));
+
+    // The same instance is returned for the same schema.
+    assertThat(DefaultValues.get().of(SENSOR), sameInstance(defaults));
+    assertThat(DefaultValues.get().of(SENSOR.getField("origin").schema()).size(), is(2));
+
+    // The defaults can be used to build records.
+    GenericRecord built = new GenericRecordBuilder(SENSOR).set("id", 1L).build();
+    GenericRecord filled = defaults.fill(new GenericData.Record(SENSOR));
+    filled.put("id", 1L);
+    assertThat(filled, is(built));
+    assertThat(built, is(filled));
+  }
+
+  @Test
+  public void testShared() {
+    DefaultValues.Defaults defaults = DefaultValues.get().of(SENSOR);
+    int label = SENSOR.getField("label").pos();
+    int unit = SENSOR.getField("unit").pos();
+    assertThat(defaults.get(unit), sameInstance(defaults.get(unit)));
+
+    // Utf8 can be changed in place, so every caller gets its own.
+    assertThat(defaults.get(label), instanceOf(Utf8.class));
+    assertThat(defaults.get(label), not(sameInstance(defaults.get(label))));
+
+    // The same for bytes, which are writable heap buffers like the ones from the model.
+    int raw = SENSOR.getField("raw").pos();
+    ByteBuffer bb1 = (ByteBuffer) defaults.get(raw);
+    ByteBuffer bb2 = (ByteBuffer) defaults.get(raw);
+    assertThat(bb1.get(), is((byte) 1));
+    assertThat(bb2.get(), is((byte) 1));
+    assertThat(bb1.hasArray(), is(true));
+    assertThat(bb1.array(), not(sameInstance(bb2.array())));
+    assertThat(
+        bb1.array(),
+        not(
+            sameInstance(
+                ((ByteBuffer) GenericData.get().getDefaultValue(SENSOR.getField("raw"))).array())));
+
+    // Fixed and arrays of records are always copied.
+    int hash = SENSOR.getField("hash").pos();
+    int path = SENSOR.getField("path").pos();
+    assertThat(defaults.get(hash), not(sameInstance(defaults.get(hash))));
+    assertThat(defaults.get(path), instanceOf(GenericData.Array.class));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testCopyOnWrite() {
+    DefaultValues.Defaults defaults = DefaultValues.get().of(SENSOR);
+    int tags = SENSOR.getField("tags").pos();
+    int limits = SENSOR.getField("limits").pos();
+    int origin = SENSOR.getField("origin").pos();
+
+    // Changing a default array only changes that copy.
+    DefaultValues.CopyOnWriteArray<Object> tags1 =
+        (DefaultValues.CopyOnWriteArray<Object>) defaults.get(tags);
+    assertThat(tags1.isCopied(), is(false));
+    assertThat(tags1.get(1), is("b"));
+    tags1.add("c");
+    tags1.remove(0);
+    assertThat(tags1.isCopied(), is(true));
+    assertThat(tags1.size(), is(2));
+    assertThat(((List<Object>) defaults.get(tags)).size(), is(2));
+    assertThat(((List<Object>) defaults.get(tags)).get(0), is("a"));
+
+    // Arrays can be cleared when they are reused.
+    GenericArray<Object> tags2 = (GenericArray<Object>) defaults.get(tags);
+    tags2.reset();
+    assertThat(tags2.size(), is(0));
+    assertThat(((List<Object>) defaults.get(tags)).size(), is(2));
+
+    // The same for maps.
+    DefaultValues.CopyOnWriteMap<Object, Object> limits1 =
+        (DefaultValues.CopyOnWriteMap<Object, Object>) defaults.get(limits);
+    assertThat(limits1.get("max"), is(10L));
+    assertThat(limits1.isCopied(), is(false));
+    limits1.put("max", 20L);
+    assertThat(limits1.isCopied(), is(true));
+    assertThat(limits1.get("max"), is(20L));
+    assertThat(((Map<Object, Object>) defaults.get(limits)).get("max"), is(10L));
+
+    // And for records.
+    DefaultValues.CopyOnWriteRecord origin1 =
+        (DefaultValues.CopyOnWriteRecord) defaults.get(origin);
+    assertThat(origin1.get("x"), is(1));
+    origin1.put("x", 100);
+    assertThat(origin1.isCopied(), is(true));
+    assertThat(origin1.get("x"), is(100));
+    assertThat(((GenericRecord) defaults.get(origin)).get("x"), is(1));
+
+    // The copy-on-write values are equal to the ones that they replace.
+    GenericData.Record point = new GenericData.Record(SENSOR.getField("origin").schema());
+    point.put("x", 100);
+    point.put("y", 2);
+    assertThat(origin1, is(point));
+    assertThat(point, is(origin1));
+    assertThat(origin1.hashCode(), is(point.hashCode()));
+    assertThat(point.compareTo(origin1), is(0));
+    assertThat(origin1.compareTo(point), is(0));
+  }
+
+  @Test
+  public void testReusedByReader() throws IOException {
+    DefaultValues.Defaults defaults = DefaultValues.get().of(SENSOR);
+    GenericDatumReader<GenericRecord> reader = new GenericDatumReader<>(SENSOR);
+
+    // The datum reader changes the Utf8 and bytes of the reused record in place.
+    for (Object datum : new RandomData(SENSOR, 10, 0L)) {
+      GenericRecord filled = defaults.fill(new GenericData.Record(SENSOR));
+      byte[] serialized = SerializeToBytesTest.toBytes(SENSOR, datum);
+      reader.read(filled, DecoderFactory.get().binaryDecoder(serialized, null));
+      assertThat(filled, is(datum));
+    }
+
+    // But the defaults are never changed.
+    for (Schema.Field f : SENSOR.getFields())
+      if (f.hasDefaultValue())
+        assertThat(f.name(), defaults.get(f.pos()), is(GenericData.get().getDefaultValue(f)));
+  }
+
+  /**
+   * Decodes the defaults of a reader schema once, and decides how each can be safely shared.
+   *
+   * <p>Only immutable values are shared as is: null, boolean, numbers, {@link String}s and enum
+   * symbols. The datum readers in Avro change a reused {@link Utf8} or {@link ByteBuffer} in place,
+   * so every caller gets its own copy of those. Arrays, records and maps with {@link String} keys
+   * that only contain immutable values are shared with a copy-on-write view, and everything else
+   * (fixed, logical types with conversions, and containers of mutable values) is deep-copied every
+   * time, like upstream.
+   *
+   * <p>The defaults are remembered for each record schema instance, until the schema is garbage
+   * collected. The fields and the decoded values can refer back to a recursive record schema, so
+   * only the last 1000 schemas are kept. This class is thread-safe, but the copy-on-write views are
+   * not, just like the values that they replace.
+   */
+  public static class DefaultValues {
+
+    /** A shared instance for {@link GenericData#get()}. */
+    private static final DefaultValues INSTANCE = new DefaultValues(GenericData.get());
+
+    private final GenericData model;
+
+    /** Bounded, since the defaults can keep their schema from being collected. */
+    private final WeakSchemaMap<Defaults> bySchema = new WeakSchemaMap<>(1000);
+
+    /**
+     * @param model The model used to decode and copy the defaults.
+     */
+    public DefaultValues(GenericData model) {
+      this.model = model;
+    }
+
+    /** Get the shared defaults for {@link GenericData#get()}. */
+    public static DefaultValues get() {
+      return INSTANCE;
+    }
+
+    /** Get the shared defaults for the model, or a new instance if it isn't the generic one. */
+    public static DefaultValues get(GenericData model) {
+      return model == GenericData.get() ? INSTANCE : new DefaultValues(model);
+    }
+
+    /**
+     * @param record A reader record schema.
+     * @return The defaults for all of the fields in that schema.
+     */
+    public Defaults of(Schema record) {
+      return bySchema.computeIfAbsent(record, Defaults::new);
+    }
+
+    /** How a default value is handed out. */
+    private enum Kind {
+      NONE,
+      SHARED,
+      STRING,
+      BYTES,
+      COPY_ON_WRITE,
+      COPY
+    }
+
+    /** The decoded defaults for one record schema. */
+    public class Defaults {
+
+      /** The fields of the record, which refer back to the record schema if it is recursive. */
+      private final Schema.Field[] fields;
+
+      private final Object[] values;
+
+      private final Kind[] kinds;
+
+      private Defaults(Schema record) {
+        this.fields = record.getFields().toArray(new Schema.Field[0]);
+        values = new Object[fields.length];
+        kinds = new Kind[fields.length];
+        for (Schema.Field f : fields) {
+          if (!f.hasDefaultValue()) {
+            kinds[f.pos()] = Kind.NONE;
+            continue;
+          }
+          Object value = model.getDefaultValue(f);
+          Kind kind = kind(f.schema(), value);
+          if (kind == Kind.BYTES) {
+            // Only the contents are kept, and copied for each caller.
+            ByteBuffer bb = ((ByteBuffer) value).duplicate();
+            byte[] bytes = new byte[bb.remaining()];
+            bb.get(bytes);
+            value = bytes;
+          }
+          values[f.pos()] = value;
+          kinds[f.pos()] = kind;
+        }
+      }
+
+      /**
+       * @return The number of fields in the record.
+       */
+      public int size() {
+        return values.length;
+      }
+
+      /**
+       * @return True if the field at that position has a default value.
+       */
+      public boolean hasDefault(int pos) {
+        return kinds[pos] != Kind.NONE;
+      }
+
+      /**
+       * A replacement for deep copying the {@link GenericData#getDefaultValue(Schema.Field)}.
+       *
+       * @param pos The position of the field in the record.
+       * @return A value for the field that the caller can use and change.
+       * @throws AvroMissingFieldException if the field doesn't have a default.
+       */
+      public Object get(int pos) {
+        Object value = values[pos];
+        switch (kinds[pos]) {
+          case SHARED:
+            return value;
+          case STRING:
+            return new Utf8((Utf8) value);
+          case BYTES:
+            return ByteBuffer.wrap(((byte[]) value).clone());
+          case COPY_ON_WRITE:
+            return copyOnWrite(fields[pos].schema(), value);
+          case COPY:
+            return model.deepCopy(fields[pos].schema(), value);
+          default:
+            Schema.Field f = fields[pos];
+            throw new AvroMissingFieldException(
+                "Field " + f + " not set and has no default value", f);
+        }
+      }
+
+      /**
+       * Put the defaults into every field of the record that has one.
+       *
+       * @return The same record.
+       */
+      public <T extends GenericData.Record> T fill(T datum) {
+        for (int i = 0; i < values.length; i++) if (kinds[i] != Kind.NONE) datum.put(i, get(i));
+        return datum;
+      }
+    }
+
+    /** Decide how a default value should be handed out. */
+    private Kind kind(Schema schema, Object value) {
+      if (schema.getType() == Schema.Type.UNION)
+        return kind(schema.getTypes().get(model.resolveUnion(schema, value)), value);
+      if (schema.getLogicalType() != null
+          && model.getConversionFor(schema.getLogicalType()) != null) return Kind.COPY;
+      switch (schema.getType()) {
+        case NULL:
+        case BOOLEAN:
+        case INT:
+        case LONG:
+        case FLOAT:
+        case DOUBLE:
+        case ENUM:
+          return Kind.SHARED;
+        case STRING:
+          if (value instanceof String) return Kind.SHARED;
+          return value instanceof Utf8 ? Kind.STRING : Kind.COPY;
+        case BYTES:
+          return Kind.BYTES;
+        case ARRAY:
+          for (Object e : (List<?>) value)
+            if (kind(schema.getElementType(), e) != Kind.SHARED) return Kind.COPY;
+          return Kind.COPY_ON_WRITE;
+        case MAP:
+          for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet())
+            if (!(e.getKey() instanceof String)
+                || kind(schema.getValueType(), e.getValue()) != Kind.SHARED) return Kind.COPY;
+          return Kind.COPY_ON_WRITE;
+        case RECORD:
+          if (value.getClass() != GenericData.Record.class) return Kind.COPY;
+          for (Schema.Field f : schema.getFields())
+            if (kind(f.schema(), ((GenericRecord) value).get(f.pos())) != Kind.SHARED)
+              return Kind.COPY;
+          return Kind.COPY_ON_WRITE;
+        default:
+          return Kind.COPY;
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object copyOnWrite(Schema schema, Object value) {
+      if (schema.getType() == Schema.Type.UNION)
+        schema = schema.getTypes().get(model.resolveUnion(schema, value));
+      switch (schema.getType()) {
+        case ARRAY:
+          return new CopyOnWriteArray<>(model, schema, (List<Object>) value);
+        case MAP:
+          return new CopyOnWriteMap<>(model, schema, (Map<Object, Object>) value);
+        default:
+          return new CopyOnWriteRecord(model, schema, (GenericRecord) value);
+      }
+    }
+
+    /** An array that shares a default value until it is changed. */
+    public static class CopyOnWriteArray<E> extends AbstractList<E> implements GenericArray<E> {
+
+      private final GenericData model;
+      private final Schema schema;
+      private List<E> values;
+      private boolean copied = false;
+
+      CopyOnWriteArray(GenericData model, Schema schema, List<E> shared) {
+        this.model = model;
+        this.schema = schema;
+        this.values = shared;
+      }
+
+      /**
+       * @return True if the shared default has been copied.
+       */
+      public boolean isCopied() {
+        return copied;
+      }
+
+      private void copy() {
+        if (!copied) {
+          values = model.deepCopy(schema, values);
+          copied = true;
+        }
+      }
+
+      @Override
+      public E get(int index) {
+        return values.get(index);
+      }
+
+      @Override
+      public int size() {
+        return values.size();
+      }
+
+      @Override
+      public E set(int index, E element) {
+        copy();
+        return values.set(index, element);
+      }
+
+      @Override
+      public void add(int index, E element) {
+        copy();
+        values.add(index, element);
+      }
+
+      @Override
+      public E remove(int index) {
+        copy();
+        return values.remove(index);
+      }
+
+      @Override
+      public void clear() {
+        if (copied) values.clear();
+        else if (!values.isEmpty()) {
+          // No need to copy the elements that are about to be removed.
+          values = new GenericData.Array<>(0, schema);
+          copied = true;
+        }
+      }
+
+      @Override
+      public E peek() {
+        return null;
+      }
+
+      @Override
+      public void reverse() {
+        copy();
+        Collections.reverse(values);
+      }
+
+      @Override
+      public Schema getSchema() {
+        return schema;
+      }
+    }
+
+    /**
+     * A map that shares a default value until it is changed.
+     *
+     * <p>Until then, the entry set can only be read.
+     */
+    public static class CopyOnWriteMap<K, V> extends AbstractMap<K, V> {
+
+      private final GenericData model;
+      private final Schema schema;
+      private Map<K, V> values;
+      private boolean copied = false;
+
+      CopyOnWriteMap(GenericData model, Schema schema, Map<K, V> shared) {
+        this.model = model;
+        this.schema = schema;
+        this.values = shared;
+      }
+
+      /**
+       * @return True if the shared default has been copied.
+       */
+      public boolean isCopied() {
+        return copied;
+      }
+
+      private void copy() {
+        if (!copied) {
+          values = model.deepCopy(schema, values);
+          copied = true;
+        }
+      }
+
+      @Override
+      public V get(Object key) {
+        return values.get(key);
+      }
+
+      @Override
+      public boolean containsKey(Object key) {
+        return values.containsKey(key);
+      }
+
+      @Override
+      public int size() {
+        return values.size();
+      }
+
+      @Override
+      public V put(K key, V value) {
+        copy();
+        return values.put(key, value);
+      }
+
+      @Override
+      public V remove(Object key) {
+        copy();
+        return values.remove(key);
+      }
+
+      @Override
+      public void clear() {
+        copy();
+        values.clear();
+      }
+
+      @Override
+      public Set<Entry<K, V>> entrySet() {
+        return copied ? values.entrySet() : Collections.unmodifiableMap(values).entrySet();
+      }
+    }
+
+    /**
+     * A record that shares a default value until it is changed.
+     *
+     * <p>This is a {@link GenericData.Record} so that it is equal to the records that it replaces
+     * in both directions. The array of values in the superclass is never used.
+     */
+    public static class CopyOnWriteRecord extends GenericData.Record {
+
+      private final GenericData model;
+      private GenericRecord values;
+      private boolean copied = false;
+
+      CopyOnWriteRecord(GenericData model, Schema schema, GenericRecord shared) {
+        super(schema);
+        this.model = model;
+        this.values = shared;
+      }
+
+      /**
+       * @return True if the shared default has been copied.
+       */
+      public boolean isCopied() {
+        return copied;
+      }
+
+      private void copy() {
+        if (!copied) {
+          values = model.deepCopy(getSchema(), values);
+          copied = true;
+        }
+      }
+
+      @Override
+      public Object get(int i) {
+        return values.get(i);
+      }
+
+      @Override
+      public Object get(String key) {
+        return values.get(key);
+      }
+
+      @Override
+      public void put(int i, Object v) {
+        copy();
+        values.put(i, v);
+      }
+
+      @Override
+      public void put(String key, Object v) {
+        copy();
+        values.put(key, v);
+      }
+
+      @Override
+      public String toString() {
+        return model.toString(this);
+      }
+    }
+  }
+}
@@ -0,0 +1,419 @@
+package com.skraba.avro.enchiridion.core.evolution;
+
+import static com.skraba.avro.enchiridion.core.evolution.BasicTest.BINARY_V1;
+import static com.skraba.avro.enchiridion.core.evolution.BasicTest.SIMPLE_V1;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.skraba.avro.enchiridion.core.schema.FingerprintCacheTest.FingerprintCache;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.ResolvingDecoder;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests and helpers for sharing schema resolution between threads.
+ *
+ * <p>Before reading, a {@link GenericDatumReader} generates a grammar to resolve the writer schema
+ * into the reader schema, which is expensive for large schemas. The reader caches the result, but
+ * only for the current thread and the exact same schema instances, so every new thread or freshly
+ * parsed schema starts over. A {@link ResolutionPlanRegistry} shares the grammar between all
+ * threads instead, keyed by fingerprints, and can be warmed up in advance.
+ */
+public class ResolutionPlanTest {
+
+  /** The same as the original schema with a new field. */
+  private static final Schema SIMPLE_V2 =
+      SchemaBuilder.record("com.skraba.avro.enchiridion.simple.SimpleRecord")
+          .fields()
+          .requiredLong("id")
+          .requiredString("name")
+          .name("rating")
+          .type()
+          .floatType()
+          .floatDefault(2.5f)
+          .endRecord();
+
+  /** The same as the original schema with a renamed field. */
+  private static final Schema SIMPLE_V2_RENAMED =
+      SchemaBuilder.record("com.skraba.avro.enchiridion.simple.SimpleRecord")
+          .fields()
+          .requiredLong("id")
+          .name("label")
+          .aliases("name")
+          .type()
+          .stringType()
+          .noDefault()
+          .endRecord();
+
+  /** The same as the renamed schema without the alias, so the field can't be resolved. */
+  private static final Schema SIMPLE_V2_UNALIASED =
+      SchemaBuilder.record("com.skraba.avro.enchiridion.simple.SimpleRecord")
+          .fields()
+          .requiredLong("id")
+          .requiredString("label")
+          .endRecord();
+
+  /** Read the binary datum using a plan from the registry. */
+  public static <T> T read(
+      ResolutionPlanRegistry registry, Schema writer, Schema reader, byte[] binary) {
+    try {
+      PlannedDatumReader<T> r =
+          new PlannedDatumReader<>(registry.plan(writer, reader), GenericData.get());
+      return r.read(null, DecoderFactory.get().binaryDecoder(binary, null));
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  @Test
+  public void testEvolveWithPlans() {
+    ResolutionPlanRegistry registry = new ResolutionPlanRegistry(10);
+
+    GenericRecord added = read(registry, SIMPLE_V1, SIMPLE_V2, BINARY_V1);
+    assertThat(
+        added,
+        is(
+            new GenericRecordBuilder(SIMPLE_V2)
+                .set("id", 1L)
+                .set("name", "one")
+                .set("rating", 2.5f)
+                .build()));
+
+    GenericRecord renamed = read(registry, SIMPLE_V1, SIMPLE_V2_RENAMED, BINARY_V1);
+    assertThat(renamed.get("label").toString(), is("one"));
+
+    // This schema has the same parsing canonical form as the renamed schema, but without the
+    // alias it resolves differently, so it has its own plan.
+    assertThrows(
+        AvroTypeException.class, () -> read(registry, SIMPLE_V1, SIMPLE_V2_UNALIASED, BINARY_V1));
+
+    assertThat(registry.size(), is(3));
+    assertThat(registry.getMisses(), is(3L));
+    assertThat(registry.getHits(), is(0L));
+  }
+
+  @Test
+  public void testWarmUpAndMetrics() {
+    ResolutionPlanRegistry registry = new ResolutionPlanRegistry(10);
+    assertThat(registry.getHitRatio(), is(0.0));
+
+    // Warming up does the work in advance, and doesn't count as a hit or miss.
+    ResolutionPlan plan = registry.warmUp(SIMPLE_V1, SIMPLE_V2);
+    assertThat(registry.warmUp(SIMPLE_V1, SIMPLE_V2), sameInstance(plan));
+    assertThat(registry.size(), is(1));
+    assertThat(registry.getHits() + registry.getMisses(), is(0L));
+
+    // An equivalent schema from a different instance uses the same plan.
+    Schema copy = new Schema.Parser().parse(SIMPLE_V2.toString());
+    assertThat(registry.plan(SIMPLE_V1, copy), sameInstance(plan));
+    assertThat(registry.plan(SIMPLE_V1, SIMPLE_V2), sameInstance(plan));
+    assertThat(registry.plan(SIMPLE_V2, SIMPLE_V1), not(sameInstance(plan)));
+    assertThat(registry.getHits(), is(2L));
+    assertThat(registry.getMisses(), is(1L));
+    assertThat(registry.getHitRatio(), is(2.0 / 3));
+  }
+
+  @Test
+  public void testBounded() {
+    ResolutionPlanRegistry registry = new ResolutionPlanRegistry(2);
+    ResolutionPlan plan = registry.warmUp(SIMPLE_V1, SIMPLE_V2);
+    registry.warmUp(SIMPLE_V1, SIMPLE_V2_RENAMED);
+    registry.warmUp(SIMPLE_V1, SIMPLE_V2_UNALIASED);
+
+    // The oldest plan was evicted.
+    assertThat(registry.size(), is(2));
+    assertThat(registry.getEvictions(), is(1L));
+    assertThat(registry.plan(SIMPLE_V1, SIMPLE_V2), not(sameInstance(plan)));
+  }
+
+  @Test
+  public void testSharedBetweenThreads() throws Exception {
+    // Decoders are created from the shared grammar, without resolving again.
+    assertThat(ResolutionPlan.FROM_GRAMMAR, notNullValue());
+
+    ResolutionPlanRegistry registry = new ResolutionPlanRegistry(10);
+    registry.warmUp(SIMPLE_V1, SIMPLE_V2_RENAMED);
+
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<GenericRecord>> results = new ArrayList<>();
+      for (int i = 0; i < 100; i++)
+        results.add(pool.submit(() -> read(registry, SIMPLE_V1, SIMPLE_V2_RENAMED, BINARY_V1)));
+      for (Future<GenericRecord> result : results)
+        assertThat(result.get().get("label").toString(), is("one"));
+    } finally {
+      pool.shutdown();
+    }
+    assertThat(registry.getHits(), is(100L));
+    assertThat(registry.getMisses(), is(0L));
+  }
+
+  /**
+   * The grammar that resolves data written with one schema into another.
+   *
+   * <p>The grammar is immutable and can be shared between threads. Each thread uses its own {@link
+   * ResolvingDecoder} to follow it.
+   */
+  public static class ResolutionPlan {
+
+    /** The private constructor used to create a decoder for an existing grammar, if accessible. */
+    private static final MethodHandle FROM_GRAMMAR = fromGrammar();
+
+    private final Schema writer;
+
+    private final Schema reader;
+
+    private final Object grammar;
+
+    ResolutionPlan(Schema writer, Schema reader) {
+      this.writer = writer;
+      this.reader = reader;
+      try {
+        this.grammar = ResolvingDecoder.resolve(writer, reader);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private static MethodHandle fromGrammar() {
+      try {
+        Constructor<ResolvingDecoder> ctor =
+            ResolvingDecoder.class.getDeclaredConstructor(Object.class, Decoder.class);
+        ctor.setAccessible(true);
+        return MethodHandles.lookup()
+            .unreflectConstructor(ctor)
+            .asType(MethodType.methodType(ResolvingDecoder.class, Object.class, Decoder.class));
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        return null;
+      }
+    }
+
+    public Schema getWriter() {
+      return writer;
+    }
+
+    public Schema getReader() {
+      return reader;
+    }
+
+    /**
+     * @param in The decoder for the data written with the writer schema.
+     * @return A new resolving decoder that follows this plan.
+     */
+    public ResolvingDecoder newDecoder(Decoder in) throws IOException {
+      if (FROM_GRAMMAR == null) {
+        // Fall back to resolving the schemas again.
+        return DecoderFactory.get().resolvingDecoder(writer, reader, in);
+      }
+      try {
+        return (ResolvingDecoder) FROM_GRAMMAR.invokeExact(grammar, in);
+      } catch (IOException | RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable t) {
+        throw new RuntimeException(t);
+      }
+    }
+  }
+
+  /**
+   * A datum reader that uses a precompiled {@link ResolutionPlan} instead of resolving the schemas
+   * itself. Like other datum readers, this isn't thread-safe, but the plan can be shared.
+   */
+  public static class PlannedDatumReader<D> extends GenericDatumReader<D> {
+
+    private final ResolutionPlan plan;
+
+    private ResolvingDecoder resolver = null;
+
+    public PlannedDatumReader(ResolutionPlan plan, GenericData model) {
+      super(plan.getWriter(), plan.getReader(), model);
+      this.plan = plan;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public D read(D reuse, Decoder in) throws IOException {
+      if (resolver == null) resolver = plan.newDecoder(in);
+      else resolver.configure(in);
+      D result = (D) read(reuse, plan.getReader(), resolver);
+      resolver.drain();
+      return result;
+    }
+  }
+
+  /**
+   * A bounded, concurrent registry of {@link ResolutionPlan}s.
+   *
+   * <p>The plans are keyed by the parsing fingerprint of the writer schema, and the full
+   * fingerprint of the reader schema from the {@link FingerprintCache}. The reader needs the full
+   * fingerprint because the defaults and aliases used in resolution aren't part of the parsing
+   * canonical form. A plan is only found if its schemas are the same as the ones requested: the
+   * writer schema with an equal canonical form and the reader schema {@link Schema#equals equal}.
+   * When the registry is full, the oldest plan is evicted.
+   */
+  public static class ResolutionPlanRegistry {
+
+    /** A shared instance. */
+    private static final ResolutionPlanRegistry INSTANCE = new ResolutionPlanRegistry(1000);
+
+    private final int maxSize;
+
+    private final ConcurrentHashMap<Key, ResolutionPlan> plans = new ConcurrentHashMap<>();
+
+    /** The keys in the order they were added, for eviction. */
+    private final Queue<Key> insertionOrder = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize The maximum number of plans to keep.
+     */
+    public ResolutionPlanRegistry(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    /** Get the shared registry. */
+    public static ResolutionPlanRegistry get() {
+      return INSTANCE;
+    }
+
+    /**
+     * Resolve the schemas in advance, so that the first read doesn't pay for it. This doesn't count
+     * as a hit or a miss.
+     *
+     * @return The plan for the two schemas.
+     */
+    public ResolutionPlan warmUp(Schema writer, Schema reader) {
+      return getOrCreate(key(writer, reader), writer, reader);
+    }
+
+    /**
+     * @return The plan for the two schemas, from the registry if it is present.
+     */
+    public ResolutionPlan plan(Schema writer, Schema reader) {
+      Key key = key(writer, reader);
+      ResolutionPlan plan = plans.get(key);
+      if (plan != null) {
+        hits.increment();
+        return plan;
+      }
+      misses.increment();
+      return getOrCreate(key, writer, reader);
+    }
+
+    private static Key key(Schema writer, Schema reader) {
+      return new Key(writer, reader);
+    }
+
+    private ResolutionPlan getOrCreate(Key key, Schema writer, Schema reader) {
+      boolean[] created = {false};
+      ResolutionPlan plan =
+          plans.computeIfAbsent(
+              key,
+              k -> {
+                created[0] = true;
+                return new ResolutionPlan(writer, reader);
+              });
+      if (created[0]) {
+        insertionOrder.add(key);
+        while (plans.size() > maxSize) {
+          Key oldest = insertionOrder.poll();
+          if (oldest == null) break;
+          if (plans.remove(oldest) != null) evictions.increment();
+        }
+      }
+      return plan;
+    }
+
+    /**
+     * @return The number of plans currently in the registry.
+     */
+    public int size() {
+      return plans.size();
+    }
+
+    public long getHits() {
+      return hits.sum();
+    }
+
+    public long getMisses() {
+      return misses.sum();
+    }
+
+    public long getEvictions() {
+      return evictions.sum();
+    }
+
+    /**
+     * @return The fraction of requested plans that were found in the registry, or 0 if none have
+     *     been requested.
+     */
+    public double getHitRatio() {
+      long h = getHits();
+      long total = h + getMisses();
+      return total == 0 ? 0 : (double) h / total;
+    }
+
+    /** A writer and reader schema, found by their fingerprints. */
+    private static class Key {
+      private final FingerprintCache.Fingerprints writer;
+      private final Schema reader;
+      private final long readerFingerprint;
+
+      Key(Schema writer, Schema reader) {
+        this.writer = FingerprintCache.get().of(writer);
+        this.reader = reader;
+        this.readerFingerprint = FingerprintCache.get().of(reader).getSchemaFingerprint64();
+      }
+
+      @Override
+      public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Key)) return false;
+        Key key = (Key) o;
+        // The fingerprints are only used to find the key, and the schemas confirm it.
+        return writer.getFingerprint64() == key.writer.getFingerprint64()
+            && readerFingerprint == key.readerFingerprint
+            && (writer == key.writer
+                || writer.getCanonicalForm().equals(key.writer.getCanonicalForm()))
+            && (reader == key.reader || reader.equals(key.reader));
+      }
+
+      @Override
+      public int hashCode() {
+        return Objects.hash(writer.getFingerprint64(), readerFingerprint);
+      }
+    }
+  }
+}
@@ -0,0 +1,329 @@
+package com.skraba.avro.enchiridion.core.evolution;
+
+import static com.skraba.avro.enchiridion.core.SerializeToBytesTest.toBytes;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+
+import com.skraba.avro.enchiridion.core.AvroUtil;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.avro.generic.PrimitivesArrays;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.io.ResolvingDecoder;
+import org.apache.avro.util.Utf8;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests and helpers for reading arrays of primitives that have been widened.
+ *
+ * <p>When an {@code array<int>} is read as an {@code array<long>}, the resolving decoder follows
+ * the promotion in its grammar for every single element, and each value is boxed before it is added
+ * to the array. A {@link WideningDatumReader} detects these arrays in advance, and reads their
+ * elements directly from the binary decoder into a primitive-backed {@link PrimitivesArrays} array,
+ * only using the grammar for the start and end of each block.
+ */
+public class WidenedArrayTest {
+
+  private static final Schema V1 =
+      AvroUtil.api()
+          .parse(
+              AvroUtil.qqify(
+                  "{'type':'record','name':'Sensor','fields':["
+                      + "{'name':'ints','type':{'type':'array','items':'int'}},"
+                      + "{'name':'longs','type':{'type':'array','items':'long'}},"
+                      + "{'name':'floats','type':{'type':'array','items':'float'}},"
+                      + "{'name':'nested','type':{'type':'map','values':"
+                      + "{'type':'array','items':'int'}}},"
+                      + "{'name':'same','type':{'type':'array','items':'int'}}]}"));
+
+  private static final Schema V2 =
+      AvroUtil.api()
+          .parse(
+              AvroUtil.qqify(
+                  "{'type':'record','name':'Sensor','fields':["
+                      + "{'name':'same','type':{'type':'array','items':'int'}},"
+                      + "{'name':'ints','type':{'type':'array','items':'long'}},"
+                      + "{'name':'longs','type':{'type':'array','items':'double'}},"
+                      + "{'name':'floats','type':{'type':'array','items':'double'}},"
+                      + "{'name':'nested','type':{'type':'map','values':"
+                      + "{'type':'array','items':'float'}}}]}"));
+
+  /** Write the datum with a blocking encoder, so that long arrays are split into many blocks. */
+  private static byte[] toBlockedBytes(Schema schema, Object datum) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    Encoder encoder = EncoderFactory.get().blockingBinaryEncoder(baos, null);
+    new GenericDatumWriter<>(schema).write(datum, encoder);
+    encoder.flush();
+    return baos.toByteArray();
+  }
+
+  @Test
+  public void testWidenArrays() throws IOException {
+    List<Integer> ints = new ArrayList<>();
+    List<Long> longs = new ArrayList<>();
+    List<Float> floats = new ArrayList<>();
+    for (int i = 0; i < 10_000; i++) {
+      ints.add(i * 7919 - 5_000_000);
+      longs.add(i * 1_000_000_007L);
+      floats.add(i / 3f);
+    }
+    GenericRecord datum =
+        new GenericRecordBuilder(V1)
+            .set("ints", ints)
+            .set("longs", longs)
+            .set("floats", floats)
+            .set("nested", Collections.singletonMap("one", ints))
+            .set("same", ints)
+            .build();
+
+    for (byte[] bytes : new byte[][] {toBytes(V1, datum), toBlockedBytes(V1, datum)}) {
+      GenericRecord expected =
+          new GenericDatumReader<GenericRecord>(V1, V2)
+              .read(null, DecoderFactory.get().binaryDecoder(bytes, null));
+
+      WideningDatumReader<GenericRecord> reader = new WideningDatumReader<>(V1, V2);
+      GenericRecord actual = reader.read(null, DecoderFactory.get().binaryDecoder(bytes, null));
+      assertThat(actual, is(expected));
+      assertThat(actual.get("ints"), instanceOf(PrimitivesArrays.LongArray.class));
+      assertThat(actual.get("longs"), instanceOf(PrimitivesArrays.DoubleArray.class));
+      assertThat(
+          ((Map<?, ?>) actual.get("nested")).get(new Utf8("one")),
+          instanceOf(PrimitivesArrays.FloatArray.class));
+
+      // Reusing the datum reuses the arrays.
+      Object reused = actual.get("ints");
+      actual = reader.read(actual, DecoderFactory.get().binaryDecoder(bytes, null));
+      assertThat(actual, is(expected));
+      assertThat(actual.get("ints") == reused, is(true));
+    }
+  }
+
+  @Test
+  public void testSharedReaderArray() throws IOException {
+    // The same reader array instance is used for two fields with different writer types.
+    Schema longs = Schema.createArray(Schema.create(Schema.Type.LONG));
+    Schema reader =
+        SchemaBuilder.record("Shared")
+            .fields()
+            .name("widened")
+            .type(longs)
+            .noDefault()
+            .name("same")
+            .type(longs)
+            .noDefault()
+            .endRecord();
+    Schema writer =
+        SchemaBuilder.record("Shared")
+            .fields()
+            .name("widened")
+            .type()
+            .array()
+            .items()
+            .intType()
+            .noDefault()
+            .name("same")
+            .type()
+            .array()
+            .items()
+            .longType()
+            .noDefault()
+            .endRecord();
+    GenericRecord datum =
+        new GenericRecordBuilder(writer)
+            .set("widened", Arrays.asList(1, -2, 3))
+            .set("same", Arrays.asList(Long.MAX_VALUE, Long.MIN_VALUE))
+            .build();
+    byte[] bytes = toBytes(writer, datum);
+
+    GenericRecord expected =
+        new GenericDatumReader<GenericRecord>(writer, reader)
+            .read(null, DecoderFactory.get().binaryDecoder(bytes, null));
+    GenericRecord actual =
+        new WideningDatumReader<GenericRecord>(writer, reader)
+            .read(null, DecoderFactory.get().binaryDecoder(bytes, null));
+    assertThat(actual, is(expected));
+    assertThat(actual.get("same"), is(Arrays.asList(Long.MAX_VALUE, Long.MIN_VALUE)));
+  }
+
+  /**
+   * A datum reader with a fast path for arrays of primitives that are widened from int to long,
+   * float or double, from long to float or double, or from float to double.
+   *
+   * <p>The fast path is only used when reading from a {@link BinaryDecoder}, and not for arrays
+   * inside unions or with logical types.
+   */
+  public static class WideningDatumReader<D> extends GenericDatumReader<D> {
+
+    /** The reader array schemas that can be read quickly, and the writer element type. */
+    private final Map<Schema, Schema.Type> widened = new IdentityHashMap<>();
+
+    /** The decoder passed to the current read, if it can be read directly. */
+    private BinaryDecoder raw = null;
+
+    public WideningDatumReader(Schema writer, Schema reader) {
+      super(writer, reader, newModel());
+      // For every reader array, the writer element type if it can be widened quickly, or null.
+      Map<Schema, Schema.Type> found = new IdentityHashMap<>();
+      Set<Schema> conflicts = Collections.newSetFromMap(new IdentityHashMap<>());
+      findWidened(writer, reader, new IdentityHashMap<>(), found, conflicts);
+      for (Map.Entry<Schema, Schema.Type> e : found.entrySet())
+        if (e.getValue() != null && !conflicts.contains(e.getKey()))
+          widened.put(e.getKey(), e.getValue());
+    }
+
+    /**
+     * The fast reader in {@link GenericData} builds its own readers and would never call {@link
+     * #readArray}, so it is disabled for this model.
+     */
+    private static GenericData newModel() {
+      GenericData model = new GenericData();
+      model.setFastReaderEnabled(false);
+      return model;
+    }
+
+    /**
+     * Walk the two schemas together to find the arrays that are widened.
+     *
+     * @param seen For each reader schema, the writer schemas that it has already been walked with.
+     * @param found For each reader array, the writer element type if it can be widened quickly.
+     * @param conflicts The reader arrays that are used with more than one kind of writer array.
+     */
+    private void findWidened(
+        Schema w,
+        Schema r,
+        Map<Schema, Set<Schema>> seen,
+        Map<Schema, Schema.Type> found,
+        Set<Schema> conflicts) {
+      if (w.getType() != r.getType()) return;
+      if (!seen.computeIfAbsent(r, k -> Collections.newSetFromMap(new IdentityHashMap<>())).add(w))
+        return;
+      switch (r.getType()) {
+        case RECORD:
+          for (Schema.Field rf : r.getFields()) {
+            Schema.Field wf = w.getField(rf.name());
+            for (String alias : rf.aliases()) if (wf == null) wf = w.getField(alias);
+            if (wf != null) findWidened(wf.schema(), rf.schema(), seen, found, conflicts);
+          }
+          break;
+        case MAP:
+          findWidened(w.getValueType(), r.getValueType(), seen, found, conflicts);
+          break;
+        case ARRAY:
+          Schema we = w.getElementType();
+          Schema re = r.getElementType();
+          boolean fast =
+              isWidening(we.getType(), re.getType())
+                  && re.getLogicalType() == null
+                  && we.getLogicalType() == null;
+          Schema.Type from = fast ? we.getType() : null;
+          // The same reader schema might be used with different writer types, including ones that
+          // aren't widened at all.
+          if (found.containsKey(r) && found.get(r) != from) conflicts.add(r);
+          found.putIfAbsent(r, from);
+          if (!fast) findWidened(we, re, seen, found, conflicts);
+          break;
+        default:
+      }
+    }
+
+    private static boolean isWidening(Schema.Type w, Schema.Type r) {
+      switch (r) {
+        case LONG:
+          return w == Schema.Type.INT;
+        case FLOAT:
+          return w == Schema.Type.INT || w == Schema.Type.LONG;
+        case DOUBLE:
+          return w == Schema.Type.INT || w == Schema.Type.LONG || w == Schema.Type.FLOAT;
+        default:
+          return false;
+      }
+    }
+
+    @Override
+    public D read(D reuse, Decoder in) throws IOException {
+      raw = in instanceof BinaryDecoder ? (BinaryDecoder) in : null;
+      try {
+        return super.read(reuse, in);
+      } finally {
+        raw = null;
+      }
+    }
+
+    @Override
+    protected Object readArray(Object old, Schema expected, ResolvingDecoder in)
+        throws IOException {
+      Schema.Type from = widened.get(expected);
+      if (from == null || raw == null) return super.readArray(old, expected, in);
+
+      // The grammar only needs to see the start and end of the blocks: the elements are read
+      // directly from the underlying decoder.
+      long l = in.readArrayStart();
+      Object array = newArray(old, (int) l, expected);
+      if (l > 0) {
+        do {
+          readBlock(array, from, expected.getElementType().getType(), l);
+        } while ((l = in.arrayNext()) > 0);
+      }
+      return array;
+    }
+
+    /** Read one block of elements into the array, without boxing when possible. */
+    @SuppressWarnings("unchecked")
+    private void readBlock(Object array, Schema.Type from, Schema.Type to, long count)
+        throws IOException {
+      if (to == Schema.Type.LONG && array instanceof PrimitivesArrays.LongArray) {
+        PrimitivesArrays.LongArray longs = (PrimitivesArrays.LongArray) array;
+        for (long i = 0; i < count; i++) longs.add(longs.size(), (long) raw.readInt());
+      } else if (to == Schema.Type.FLOAT && array instanceof PrimitivesArrays.FloatArray) {
+        PrimitivesArrays.FloatArray floats = (PrimitivesArrays.FloatArray) array;
+        if (from == Schema.Type.INT)
+          for (long i = 0; i < count; i++) floats.add(floats.size(), (float) raw.readInt());
+        else for (long i = 0; i < count; i++) floats.add(floats.size(), (float) raw.readLong());
+      } else if (to == Schema.Type.DOUBLE && array instanceof PrimitivesArrays.DoubleArray) {
+        PrimitivesArrays.DoubleArray doubles = (PrimitivesArrays.DoubleArray) array;
+        if (from == Schema.Type.INT)
+          for (long i = 0; i < count; i++) doubles.add(doubles.size(), (double) raw.readInt());
+        else if (from == Schema.Type.LONG)
+          for (long i = 0; i < count; i++) doubles.add(doubles.size(), (double) raw.readLong());
+        else for (long i = 0; i < count; i++) doubles.add(doubles.size(), (double) raw.readFloat());
+      } else {
+        // Another kind of array was reused, so fall back to boxing.
+        List<Object> list = (List<Object>) array;
+        for (long i = 0; i < count; i++) list.add(readWidened(from, to));
+      }
+    }
+
+    private Object readWidened(Schema.Type from, Schema.Type to) throws IOException {
+      switch (from) {
+        case INT:
+          int i = raw.readInt();
+          if (to == Schema.Type.LONG) return (long) i;
+          return to == Schema.Type.FLOAT ? (Object) (float) i : (Object) (double) i;
+        case LONG:
+          long l = raw.readLong();
+          return to == Schema.Type.FLOAT ? (Object) (float) l : (Object) (double) l;
+        default:
+          return (double) raw.readFloat();
+      }
+    }
+  }
+}
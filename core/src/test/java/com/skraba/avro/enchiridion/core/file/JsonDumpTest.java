@@ -0,0 +1,234 @@
+package com.skraba.avro.enchiridion.core.file;
+
+import static com.skraba.avro.enchiridion.core.SerializeToJsonTest.toJson;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import com.skraba.avro.enchiridion.core.AvroUtil;
+import com.skraba.avro.enchiridion.resources.AvroTestResources;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.io.JsonEncoder;
+import org.apache.avro.util.RandomData;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests and helpers to dump an Avro container file to newline-delimited Avro JSON.
+ *
+ * <p>Reading a large file with a {@link DataFileReader} and writing every datum with a JSON encoder
+ * is single-threaded. Since the file is already split into blocks, a {@link JsonDump} reads the
+ * blocks in order and converts them to JSON in parallel. The converted blocks are written in their
+ * original order, and only a fixed number of blocks are in flight at any time, so the memory used
+ * doesn't depend on the size of the file.
+ */
+public class JsonDumpTest {
+
+  @Test
+  public void testDumpRecipes(@TempDir Path tmpDir) throws Exception {
+    Schema schema = AvroUtil.api().parse(AvroTestResources.Recipe());
+    File f = tmpDir.resolve("recipes.avro").toFile();
+
+    // Write the file with a small sync interval, so there are many blocks to convert.
+    List<Object> recipes = new ArrayList<>();
+    try (DataFileWriter<Object> writer = new DataFileWriter<>(new GenericDatumWriter<>(schema))) {
+      writer.setCodec(CodecFactory.deflateCodec(1));
+      writer.setSyncInterval(1024);
+      writer.create(schema, f);
+      for (Object datum : new RandomData(schema, 1000, 0L)) {
+        recipes.add(datum);
+        writer.append(datum);
+      }
+    }
+
+    // The expected output is each datum as JSON on its own line.
+    StringBuilder expected = new StringBuilder();
+    for (Object datum : recipes)
+      expected.append(toJson(GenericData.get(), schema, datum)).append('\n');
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonDump.Stats stats = new JsonDump(GenericData.get(), 4, 8).dump(f, out);
+    assertThat(new String(out.toByteArray(), StandardCharsets.UTF_8), is(expected.toString()));
+    assertThat(stats.getRecords(), is(1000L));
+    assertThat(stats.getBlocks() > 8, is(true));
+
+    // And using the tool.
+    File json = tmpDir.resolve("recipes.json").toFile();
+    JsonDump.main(f.getPath(), json.getPath(), "2");
+    assertThat(
+        new String(Files.readAllBytes(json.toPath()), StandardCharsets.UTF_8),
+        is(expected.toString()));
+  }
+
+  @Test
+  public void testDumpEmpty(@TempDir Path tmpDir) throws Exception {
+    Schema schema = AvroUtil.api().parse(AvroTestResources.SimpleRecord());
+    File f = tmpDir.resolve("empty.avro").toFile();
+    try (DataFileWriter<Object> writer = new DataFileWriter<>(new GenericDatumWriter<>(schema))) {
+      writer.create(schema, f);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonDump.Stats stats = new JsonDump(GenericData.get(), 2, 2).dump(f, out);
+    assertThat(out.size(), is(0));
+    assertThat(stats.getRecords(), is(0L));
+    assertThat(stats.getBlocks(), is(0L));
+  }
+
+  /** Converts the blocks of an Avro container file to newline-delimited JSON in parallel. */
+  public static class JsonDump {
+
+    private final GenericData model;
+
+    private final int threads;
+
+    private final int maxBlocksInFlight;
+
+    /**
+     * @param model The model used to read and write the datum.
+     * @param threads The number of threads converting blocks.
+     * @param maxBlocksInFlight The maximum number of blocks that have been read but not yet
+     *     written.
+     */
+    public JsonDump(GenericData model, int threads, int maxBlocksInFlight) {
+      this.model = model;
+      this.threads = threads;
+      this.maxBlocksInFlight = maxBlocksInFlight;
+    }
+
+    /**
+     * Command line tool: {@code JsonDump INPUT.avro [OUTPUT.json [THREADS]]}.
+     *
+     * <p>If the output isn't specified, the JSON is written to the standard output.
+     */
+    public static void main(String... args) throws IOException {
+      if (args.length < 1 || args.length > 3) {
+        System.err.println("Usage: JsonDump INPUT.avro [OUTPUT.json [THREADS]]");
+        return;
+      }
+      int threads =
+          args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+      JsonDump dump = new JsonDump(GenericData.get(), threads, threads * 4);
+      if (args.length > 1)
+        try (OutputStream out = new FileOutputStream(args[1])) {
+          dump.dump(new File(args[0]), out);
+        }
+      else {
+        dump.dump(new File(args[0]), System.out);
+        System.out.flush();
+      }
+    }
+
+    /**
+     * Write all of the datum in the file to the output, one JSON value per line.
+     *
+     * @param in The Avro container file to read.
+     * @param out The output to write to. This isn't closed.
+     * @return Some statistics about the dump.
+     */
+    public Stats dump(File in, OutputStream out) throws IOException {
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      // Converted blocks, in the order that they were read from the file.
+      Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+      Stats stats = new Stats();
+      try (DataFileReader<Object> reader =
+          new DataFileReader<>(in, new GenericDatumReader<>(null, null, model))) {
+        Schema schema = reader.getSchema();
+        while (reader.hasNext()) {
+          long count = reader.getBlockCount();
+          // The reader reuses the memory for the next block, so it must be copied.
+          ByteBuffer block = reader.nextBlock();
+          byte[] copy = new byte[block.remaining()];
+          block.duplicate().get(copy);
+          stats.blocks++;
+          stats.records += count;
+
+          // Wait for the oldest block to finish before reading too far ahead.
+          if (inFlight.size() >= maxBlocksInFlight) write(inFlight.removeFirst(), out);
+          inFlight.addLast(pool.submit(() -> toJson(schema, copy, count)));
+        }
+        while (!inFlight.isEmpty()) write(inFlight.removeFirst(), out);
+      } finally {
+        for (Future<byte[]> f : inFlight) f.cancel(true);
+        pool.shutdownNow();
+      }
+      return stats;
+    }
+
+    /** Convert one block of binary datum to newline-delimited JSON. */
+    private byte[] toJson(Schema schema, byte[] block, long count) throws IOException {
+      // The model creates its own kind of reader and writer, which are raw types.
+      @SuppressWarnings("unchecked")
+      DatumReader<Object> reader = model.createDatumReader(schema);
+      @SuppressWarnings("unchecked")
+      DatumWriter<Object> writer = model.createDatumWriter(schema);
+      BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(block, null);
+      ByteArrayOutputStream json = new ByteArrayOutputStream(block.length * 2);
+      JsonEncoder encoder = EncoderFactory.get().jsonEncoder(schema, json);
+      Object datum = null;
+      for (long i = 0; i < count; i++) {
+        datum = reader.read(datum, decoder);
+        // Reconfiguring prevents the encoder from adding its own separator between values.
+        encoder.configure(json);
+        writer.write(datum, encoder);
+        encoder.flush();
+        json.write('\n');
+      }
+      return json.toByteArray();
+    }
+
+    private static void write(Future<byte[]> converted, OutputStream out) throws IOException {
+      try {
+        out.write(converted.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+        throw new IOException(e.getCause());
+      }
+    }
+
+    /** Statistics about a dump. */
+    public static class Stats {
+      private long blocks;
+
+      private long records;
+
+      public long getBlocks() {
+        return blocks;
+      }
+
+      public long getRecords() {
+        return records;
+      }
+    }
+  }
+}
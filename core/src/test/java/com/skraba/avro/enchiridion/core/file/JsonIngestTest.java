@@ -0,0 +1,496 @@
+package com.skraba.avro.enchiridion.core.file;
+
+import static com.skraba.avro.enchiridion.core.SerializeToJsonTest.toJson;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.skraba.avro.enchiridion.core.AvroUtil;
+import com.skraba.avro.enchiridion.resources.AvroTestResources;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.JsonDecoder;
+import org.apache.avro.util.RandomData;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests and helpers to write newline-delimited Avro JSON into an Avro container file.
+ *
+ * <p>This is the opposite of the {@link JsonDumpTest.JsonDump}. Decoding JSON is much more
+ * expensive than reading lines or appending datum to a file, so a {@link JsonIngest} splits the
+ * work into three stages that run at the same time:
+ *
+ * <ol>
+ *   <li>The calling thread reads the input and splits it into chunks of lines.
+ *   <li>A pool of workers decodes each chunk into datum, like {@link
+ *       com.skraba.avro.enchiridion.core.SerializeToJsonTest#fromJson}.
+ *   <li>A single thread appends the decoded chunks to the {@link DataFileWriter}, in their original
+ *       order.
+ * </ol>
+ *
+ * The stages are connected by a bounded queue, so a slow stage blocks the reader instead of letting
+ * chunks pile up in memory. The time spent working and waiting in each stage is reported so that
+ * the number of threads and chunk sizes can be tuned.
+ */
+public class JsonIngestTest {
+
+  @Test
+  public void testIngestRecipes(@TempDir Path tmpDir) throws Exception {
+    Schema schema = AvroUtil.api().parse(AvroTestResources.Recipe());
+
+    // The input is each datum as JSON on its own line, with some blank lines.
+    List<Object> recipes = new ArrayList<>();
+    StringBuilder json = new StringBuilder("\n");
+    for (Object datum : new RandomData(schema, 1000, 0L)) {
+      recipes.add(datum);
+      json.append(toJson(GenericData.get(), schema, datum)).append('\n');
+    }
+    json.append("\n");
+
+    File f = tmpDir.resolve("recipes.avro").toFile();
+    JsonIngest.Stats stats;
+    try (DataFileWriter<Object> writer = new DataFileWriter<>(new GenericDatumWriter<>(schema))) {
+      writer.create(schema, f);
+      stats =
+          new JsonIngest(GenericData.get(), schema, 4, 16, 4)
+              .ingest(
+                  new ByteArrayInputStream(json.toString().getBytes(StandardCharsets.UTF_8)),
+                  writer);
+    }
+    assertThat(read(f), is(recipes));
+    assertThat(stats.getRead().getItems(), is(1000L));
+    assertThat(stats.getDecode().getItems(), is(1000L));
+    assertThat(stats.getWrite().getItems(), is(1000L));
+    assertThat(stats.getChunks(), is(63L));
+
+    // And using the tool.
+    Path avsc = Files.write(tmpDir.resolve("recipe.avsc"), schema.toString().getBytes());
+    Path ndjson = Files.write(tmpDir.resolve("recipes.json"), json.toString().getBytes());
+    File f2 = tmpDir.resolve("recipes2.avro").toFile();
+    JsonIngest.main(avsc.toString(), ndjson.toString(), f2.getPath(), "2");
+    assertThat(read(f2), is(recipes));
+  }
+
+  @Test
+  public void testIngestError(@TempDir Path tmpDir) throws Exception {
+    Schema schema = AvroUtil.api().parse(AvroTestResources.SimpleRecord());
+    StringBuilder json = new StringBuilder();
+    for (int i = 0; i < 100; i++)
+      json.append(AvroUtil.qqify("{'id':" + i + ",'name':'n" + i + "'}\n"));
+    json.append(AvroUtil.qqify("{'id':'oops','name':'bad'}\n"));
+    for (int i = 0; i < 100; i++)
+      json.append(AvroUtil.qqify("{'id':" + i + ",'name':'n" + i + "'}\n"));
+
+    File f = tmpDir.resolve("simple.avro").toFile();
+    try (DataFileWriter<Object> writer = new DataFileWriter<>(new GenericDatumWriter<>(schema))) {
+      writer.create(schema, f);
+      // The error from the decoding worker is rethrown from the calling thread.
+      assertThrows(
+          AvroTypeException.class,
+          () ->
+              new JsonIngest(GenericData.get(), schema, 2, 10, 2)
+                  .ingest(
+                      new ByteArrayInputStream(json.toString().getBytes(StandardCharsets.UTF_8)),
+                      writer));
+    }
+    // Only the chunks before the error were written.
+    assertThat(read(f).size(), is(100));
+  }
+
+  @Test
+  public void testInputError(@TempDir Path tmpDir) throws Exception {
+    Schema schema = AvroUtil.api().parse(AvroTestResources.SimpleRecord());
+    StringBuilder json = new StringBuilder();
+    for (int i = 0; i < 1000; i++)
+      json.append(AvroUtil.qqify("{'id':" + i + ",'name':'n" + i + "'}\n"));
+    byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+
+    // The input fails halfway through.
+    InputStream in =
+        new ByteArrayInputStream(bytes) {
+          @Override
+          public synchronized int read(byte[] b, int off, int len) {
+            if (pos > bytes.length / 2) throw new UncheckedIOException(new IOException("Failed"));
+            return super.read(b, off, len);
+          }
+        };
+
+    // A slow writer that notices if it is used after the ingest returns, or interrupted.
+    AtomicBoolean returned = new AtomicBoolean();
+    AtomicBoolean usedAfterReturn = new AtomicBoolean();
+    AtomicBoolean interrupted = new AtomicBoolean();
+    GenericDatumWriter<Object> slow =
+        new GenericDatumWriter<Object>(schema) {
+          @Override
+          public void write(Object datum, Encoder out) throws IOException {
+            if (returned.get()) usedAfterReturn.set(true);
+            try {
+              Thread.sleep(1);
+            } catch (InterruptedException e) {
+              interrupted.set(true);
+              Thread.currentThread().interrupt();
+            }
+            super.write(datum, out);
+          }
+        };
+
+    File f = tmpDir.resolve("simple.avro").toFile();
+    try (DataFileWriter<Object> writer = new DataFileWriter<>(slow)) {
+      writer.create(schema, f);
+      assertThrows(
+          UncheckedIOException.class,
+          () -> new JsonIngest(GenericData.get(), schema, 2, 10, 8).ingest(in, writer));
+      returned.set(true);
+      Thread.sleep(50);
+    }
+    assertThat(usedAfterReturn.get(), is(false));
+    // The appender was stopped between chunks, so the file is complete and only has whole chunks.
+    assertThat(interrupted.get(), is(false));
+    assertThat(read(f).size() % 10, is(0));
+  }
+
+  private static List<Object> read(File f) throws IOException {
+    List<Object> read = new ArrayList<>();
+    try (DataFileReader<Object> reader = new DataFileReader<>(f, new GenericDatumReader<>())) {
+      for (Object datum : reader) read.add(datum);
+    }
+    return read;
+  }
+
+  /** Decodes chunks of newline-delimited JSON in parallel and appends them to a container file. */
+  public static class JsonIngest {
+
+    /** Marks the end of the input in the queue of decoded chunks. */
+    private static final Future<List<Object>> END = CompletableFuture.completedFuture(null);
+
+    private final GenericData model;
+
+    private final Schema schema;
+
+    private final int threads;
+
+    private final int linesPerChunk;
+
+    private final int maxChunksInFlight;
+
+    /**
+     * @param model The model used to create the datum.
+     * @param schema The schema of the JSON datum.
+     * @param threads The number of threads decoding chunks.
+     * @param linesPerChunk The number of lines of JSON in each chunk.
+     * @param maxChunksInFlight The maximum number of chunks that have been read but not yet
+     *     written.
+     */
+    public JsonIngest(
+        GenericData model, Schema schema, int threads, int linesPerChunk, int maxChunksInFlight) {
+      this.model = model;
+      this.schema = schema;
+      this.threads = threads;
+      this.linesPerChunk = linesPerChunk;
+      this.maxChunksInFlight = maxChunksInFlight;
+    }
+
+    /**
+     * Command line tool: {@code JsonIngest SCHEMA.avsc INPUT.json OUTPUT.avro [THREADS]}.
+     *
+     * <p>The statistics for each stage are printed to the standard error.
+     */
+    public static void main(String... args) throws IOException {
+      if (args.length < 3 || args.length > 4) {
+        System.err.println("Usage: JsonIngest SCHEMA.avsc INPUT.json OUTPUT.avro [THREADS]");
+        return;
+      }
+      Schema schema =
+          AvroUtil.api()
+              .parse(new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8));
+      int threads =
+          args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+      JsonIngest ingest = new JsonIngest(GenericData.get(), schema, threads, 1000, threads * 4);
+      try (InputStream in = new FileInputStream(args[1]);
+          DataFileWriter<Object> writer =
+              new DataFileWriter<>(new GenericDatumWriter<>(schema, GenericData.get()))) {
+        writer.create(schema, new File(args[2]));
+        System.err.println(ingest.ingest(in, writer));
+      }
+    }
+
+    /**
+     * Append all of the JSON datum in the input to the writer.
+     *
+     * @param in The newline-delimited JSON to read. Blank lines are ignored. This isn't closed.
+     * @param out A writer that has already been created for the schema. This isn't closed.
+     * @return Some statistics about the ingest.
+     */
+    public Stats ingest(InputStream in, DataFileWriter<Object> out) throws IOException {
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      ExecutorService appender = Executors.newSingleThreadExecutor();
+      // Decoding chunks, in the order that they were read.
+      BlockingQueue<Future<List<Object>>> inFlight = new ArrayBlockingQueue<>(maxChunksInFlight);
+      Stats stats = new Stats();
+      long start = System.nanoTime();
+      Future<?> written = appender.submit(() -> append(inFlight, out, stats));
+      try {
+        BufferedReader lines =
+            new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        while (true) {
+          long t0 = System.nanoTime();
+          List<String> chunk = readChunk(lines);
+          stats.read.work(chunk.size(), t0);
+          if (chunk.isEmpty()) {
+            put(inFlight, END, written, stats);
+            break;
+          }
+          stats.chunks++;
+          // Stop reading early if the appender has stopped.
+          if (!put(inFlight, pool.submit(() -> decode(chunk, stats)), written, stats)) break;
+        }
+        await(written);
+      } finally {
+        // The appender must not use the writer after this returns, even if the input failed. It
+        // isn't interrupted, since that could leave a partly appended chunk in the file: it
+        // finishes the chunk that it's appending, then finds the end in place of the rest.
+        if (!written.isDone()) {
+          inFlight.clear();
+          inFlight.offer(END);
+        }
+        join(appender);
+        shutdown(pool);
+        stats.nanos = System.nanoTime() - start;
+      }
+      return stats;
+    }
+
+    /** Interrupt the tasks in the executor and wait for all of them to finish. */
+    private static void shutdown(ExecutorService executor) {
+      executor.shutdownNow();
+      join(executor);
+    }
+
+    /** Wait for all of the tasks already submitted to the executor to finish, uninterrupted. */
+    private static void join(ExecutorService executor) {
+      executor.shutdown();
+      boolean interrupted = false;
+      while (true) {
+        try {
+          if (executor.awaitTermination(1, TimeUnit.SECONDS)) break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /** Read the next chunk of non-blank lines, which is empty at the end of the input. */
+    private List<String> readChunk(BufferedReader lines) throws IOException {
+      List<String> chunk = new ArrayList<>(linesPerChunk);
+      while (chunk.size() < linesPerChunk) {
+        String line = lines.readLine();
+        if (line == null) break;
+        if (!line.trim().isEmpty()) chunk.add(line);
+      }
+      return chunk;
+    }
+
+    /**
+     * Add the decoded chunk to the queue, waiting if it's full.
+     *
+     * @return false if the appender finished before there was any room.
+     */
+    private static boolean put(
+        BlockingQueue<Future<List<Object>>> inFlight,
+        Future<List<Object>> decoded,
+        Future<?> written,
+        Stats stats)
+        throws IOException {
+      long t0 = System.nanoTime();
+      try {
+        while (!inFlight.offer(decoded, 10, TimeUnit.MILLISECONDS))
+          if (written.isDone()) return false;
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      } finally {
+        stats.read.waited(t0);
+      }
+    }
+
+    /** Decode one chunk of lines, run by the worker pool. */
+    private List<Object> decode(List<String> chunk, Stats stats) throws IOException {
+      long t0 = System.nanoTime();
+      DatumReader<Object> reader = new GenericDatumReader<>(schema, schema, model);
+      JsonDecoder decoder = DecoderFactory.get().jsonDecoder(schema, chunk.get(0));
+      List<Object> decoded = new ArrayList<>(chunk.size());
+      for (String line : chunk) {
+        decoder.configure(line);
+        decoded.add(reader.read(null, decoder));
+      }
+      stats.decode.work(decoded.size(), t0);
+      return decoded;
+    }
+
+    /** Append the decoded chunks in order, run by the single appender thread. */
+    private Void append(
+        BlockingQueue<Future<List<Object>>> inFlight, DataFileWriter<Object> out, Stats stats)
+        throws Exception {
+      while (true) {
+        long t0 = System.nanoTime();
+        List<Object> decoded = inFlight.take().get();
+        stats.write.waited(t0);
+        if (decoded == null) return null;
+        t0 = System.nanoTime();
+        for (Object datum : decoded) out.append(datum);
+        stats.write.work(decoded.size(), t0);
+      }
+    }
+
+    /** Wait for the appender to finish, rethrowing any exception from the workers or appender. */
+    private static void await(Future<?> written) throws IOException {
+      try {
+        written.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        // Unwrap the exception from the decoding worker, if any.
+        if (cause instanceof ExecutionException) cause = cause.getCause();
+        if (cause instanceof IOException) throw (IOException) cause;
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        throw new IOException(cause);
+      }
+    }
+
+    /** Statistics about an ingest. */
+    public static class Stats {
+      private final Stage read = new Stage("read");
+
+      private final Stage decode = new Stage("decode");
+
+      private final Stage write = new Stage("write");
+
+      private long chunks;
+
+      private long nanos;
+
+      /** The lines read, and the time spent reading and waiting for room in the queue. */
+      public Stage getRead() {
+        return read;
+      }
+
+      /** The datum decoded, and the time spent by all of the workers decoding. */
+      public Stage getDecode() {
+        return decode;
+      }
+
+      /** The datum written, and the time spent appending and waiting for chunks to be decoded. */
+      public Stage getWrite() {
+        return write;
+      }
+
+      public long getChunks() {
+        return chunks;
+      }
+
+      /** The total elapsed time of the ingest. */
+      public long getNanos() {
+        return nanos;
+      }
+
+      @Override
+      public String toString() {
+        return String.format(
+            "%d chunks in %.3fs%n%s%n%s%n%s", chunks, nanos / 1e9, read, decode, write);
+      }
+    }
+
+    /**
+     * The work done by one stage of the pipeline.
+     *
+     * <p>If a stage spends most of its time waiting, the stage after it (for the reader) or before
+     * it (for the writer) is the bottleneck.
+     */
+    public static class Stage {
+      private final String name;
+
+      private final LongAdder items = new LongAdder();
+
+      private final LongAdder workNanos = new LongAdder();
+
+      private final LongAdder waitNanos = new LongAdder();
+
+      Stage(String name) {
+        this.name = name;
+      }
+
+      private void work(long count, long startNanos) {
+        items.add(count);
+        workNanos.add(System.nanoTime() - startNanos);
+      }
+
+      private void waited(long startNanos) {
+        waitNanos.add(System.nanoTime() - startNanos);
+      }
+
+      public long getItems() {
+        return items.sum();
+      }
+
+      /** The time spent working, summed over all of the threads in the stage. */
+      public long getWorkNanos() {
+        return workNanos.sum();
+      }
+
+      /** The time spent blocked on the other stages. */
+      public long getWaitNanos() {
+        return waitNanos.sum();
+      }
+
+      /** The throughput of a single thread in this stage while it's working. */
+      public double getItemsPerSecond() {
+        long nanos = getWorkNanos();
+        return nanos == 0 ? 0 : getItems() * 1e9 / nanos;
+      }
+
+      @Override
+      public String toString() {
+        return String.format(
+            "%-6s %10d items, %8.3fs working (%.0f/s per thread), %8.3fs waiting",
+            name, getItems(), getWorkNanos() / 1e9, getItemsPerSecond(), getWaitNanos() / 1e9);
+      }
+    }
+  }
+}
@@ -0,0 +1,439 @@
+package com.skraba.avro.enchiridion.core.file;
+
+import static com.skraba.avro.enchiridion.core.SerializeToMessageTest.toMessage;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.skraba.avro.enchiridion.core.AvroUtil;
+import com.skraba.avro.enchiridion.resources.AvroTestResources;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.message.BinaryMessageDecoder;
+import org.apache.avro.util.RandomData;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests and helpers for an append-only log of single object encoded messages.
+ *
+ * <p>Storing single object encoded messages as {@code bytes} in an Avro container file frames every
+ * message twice (once by the container block, once by the message header). A {@link MessageLog} is
+ * much simpler: each message is written as a four byte, big-endian length followed by the bytes
+ * from {@link com.skraba.avro.enchiridion.core.SerializeToMessageTest#toMessage}. When a segment
+ * file is full, the writer rolls over to the next one.
+ *
+ * <p>Reading maps a segment into memory and returns each message as a read-only {@link ByteBuffer}
+ * slice of the mapped file, which can be passed directly to a {@link BinaryMessageDecoder} without
+ * copying.
+ *
+ * @see com.skraba.avro.enchiridion.core.SerializeToMessageTest
+ */
+public class MessageLogTest {
+
+  @Test
+  public void testRoundTripRecipes(@TempDir Path tmpDir) throws IOException {
+    Schema schema = AvroUtil.api().parse(AvroTestResources.Recipe());
+    List<Object> recipes = new ArrayList<>();
+    new RandomData(schema, 500, 0L).forEach(recipes::add);
+
+    // Write all of the messages, rolling to a new segment every 16K.
+    try (MessageLog.Writer writer =
+        new MessageLog.Writer(tmpDir, MessageLog.RollPolicy.bySize(16 * 1024))) {
+      for (Object r : recipes) writer.append(toMessage(GenericData.get(), schema, r));
+      assertThat(writer.getMessageCount(), is(500L));
+    }
+
+    List<Path> segments = MessageLog.segments(tmpDir);
+    assertThat(segments.size() > 1, is(true));
+    for (Path segment : segments) assertThat(Files.size(segment) <= 16 * 1024, is(true));
+
+    // Read them all back from the mapped segments.
+    BinaryMessageDecoder<GenericRecord> decoder =
+        new BinaryMessageDecoder<>(GenericData.get(), schema);
+    List<GenericRecord> read = new ArrayList<>();
+    try (MessageLog.Reader reader = new MessageLog.Reader(tmpDir)) {
+      for (ByteBuffer message : reader) {
+        // The message is a zero-copy view over the file.
+        assertThat(message.isDirect(), is(true));
+        assertThat(message.isReadOnly(), is(true));
+        read.add(decoder.decode(message));
+      }
+    }
+    assertThat(read, is(recipes));
+  }
+
+  @Test
+  public void testRollByCount(@TempDir Path tmpDir) throws IOException {
+    try (MessageLog.Writer writer =
+        new MessageLog.Writer(tmpDir, MessageLog.RollPolicy.byCount(3))) {
+      for (int i = 0; i < 10; i++) writer.append(new byte[] {(byte) i});
+    }
+
+    // Each segment has at most three messages.
+    List<Path> segments = MessageLog.segments(tmpDir);
+    assertThat(segments, hasSize(4));
+    assertThat(segments.get(0).getFileName().toString(), is("00000000000000000000.msglog"));
+    assertThat(segments.get(3).getFileName().toString(), is("00000000000000000009.msglog"));
+
+    try (MessageLog.Segment segment = MessageLog.Segment.open(segments.get(1))) {
+      Iterator<ByteBuffer> it = segment.iterator();
+      assertThat(it.next().get(), is((byte) 3));
+      assertThat(it.next().get(), is((byte) 4));
+      assertThat(it.next().get(), is((byte) 5));
+      assertThat(it.hasNext(), is(false));
+      assertThrows(NoSuchElementException.class, it::next);
+    }
+
+    // Appending to an existing log continues with a new segment.
+    try (MessageLog.Writer writer =
+        new MessageLog.Writer(tmpDir, MessageLog.RollPolicy.byCount(3))) {
+      writer.append(ByteBuffer.wrap(new byte[] {10}));
+    }
+    segments = MessageLog.segments(tmpDir);
+    assertThat(segments, hasSize(5));
+    assertThat(segments.get(4).getFileName().toString(), is("00000000000000000010.msglog"));
+
+    int count = 0;
+    try (MessageLog.Reader reader = new MessageLog.Reader(tmpDir)) {
+      for (ByteBuffer message : reader) assertThat(message.get(), is((byte) count++));
+    }
+    assertThat(count, is(11));
+  }
+
+  @Test
+  public void testTruncatedSegment(@TempDir Path tmpDir) throws IOException {
+    try (MessageLog.Writer writer = new MessageLog.Writer(tmpDir, MessageLog.RollPolicy.never())) {
+      writer.append(new byte[] {1, 2, 3});
+      writer.append(new byte[] {4, 5, 6});
+    }
+
+    // Simulate a crash in the middle of writing the last message.
+    Path segment = MessageLog.segments(tmpDir).get(0);
+    try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      ch.truncate(ch.size() - 1);
+    }
+
+    // The incomplete message at the end of the segment is ignored.
+    int count = 0;
+    try (MessageLog.Reader reader = new MessageLog.Reader(tmpDir)) {
+      for (ByteBuffer message : reader) {
+        assertThat(message.remaining(), is(3));
+        count++;
+      }
+    }
+    assertThat(count, is(1));
+  }
+
+  @Test
+  public void testEmptyMessage(@TempDir Path tmpDir) throws IOException {
+    try (MessageLog.Writer writer = new MessageLog.Writer(tmpDir, MessageLog.RollPolicy.never())) {
+      writer.append(new byte[0]);
+      writer.append(new byte[] {7});
+    }
+    assertThat(Files.size(MessageLog.segments(tmpDir).get(0)), is(9L));
+
+    List<ByteBuffer> read = new ArrayList<>();
+    try (MessageLog.Reader reader = new MessageLog.Reader(tmpDir)) {
+      reader.forEach(read::add);
+    }
+    assertThat(read, hasSize(2));
+    assertThat(read.get(0).remaining(), is(0));
+    assertThat(read.get(1).get(), is((byte) 7));
+  }
+
+  @Test
+  public void testEmptyLastSegment(@TempDir Path tmpDir) throws IOException {
+    try (MessageLog.Writer writer =
+        new MessageLog.Writer(tmpDir, MessageLog.RollPolicy.byCount(2))) {
+      for (int i = 0; i < 4; i++) writer.append(new byte[] {(byte) i});
+    }
+
+    // Simulate a crash right after rolling to a new segment.
+    Files.createFile(tmpDir.resolve(MessageLog.segmentName(4)));
+    assertThat(MessageLog.segments(tmpDir), hasSize(3));
+
+    // The empty segment is replaced when appending to the log.
+    try (MessageLog.Writer writer =
+        new MessageLog.Writer(tmpDir, MessageLog.RollPolicy.byCount(2))) {
+      assertThat(writer.getMessageCount(), is(4L));
+      writer.append(new byte[] {4});
+    }
+    assertThat(MessageLog.segments(tmpDir), hasSize(3));
+
+    int count = 0;
+    try (MessageLog.Reader reader = new MessageLog.Reader(tmpDir)) {
+      for (ByteBuffer message : reader) assertThat(message.get(), is((byte) count++));
+    }
+    assertThat(count, is(5));
+  }
+
+  /** An append-only log of length-prefixed messages, split into segment files in a directory. */
+  public static class MessageLog {
+
+    /** The file extension for segments. */
+    public static final String EXTENSION = ".msglog";
+
+    /** The number of bytes used to store the length of each message. */
+    public static final int LENGTH_PREFIX = Integer.BYTES;
+
+    /**
+     * @param dir The directory containing the log.
+     * @return All of the segment files in the log, in order.
+     */
+    public static List<Path> segments(Path dir) throws IOException {
+      try (Stream<Path> files = Files.list(dir)) {
+        // The zero-padded names sort in the same order as the message indices.
+        return files
+            .filter(p -> p.getFileName().toString().endsWith(EXTENSION))
+            .sorted()
+            .collect(Collectors.toList());
+      }
+    }
+
+    /**
+     * @return The segment file name for a segment starting with the given message index.
+     */
+    static String segmentName(long firstMessageIndex) {
+      return String.format("%020d", firstMessageIndex) + EXTENSION;
+    }
+
+    /** Decides when the writer should close the current segment and start a new one. */
+    @FunctionalInterface
+    public interface RollPolicy {
+
+      /**
+       * @param segmentBytes The number of bytes already in the current segment.
+       * @param segmentMessages The number of messages already in the current segment.
+       * @param nextBytes The number of bytes (including the length prefix) about to be written.
+       * @return true if the next message should be written to a new segment.
+       */
+      boolean shouldRoll(long segmentBytes, long segmentMessages, int nextBytes);
+
+      /** Never roll, the log has only one segment. */
+      static RollPolicy never() {
+        return (bytes, messages, next) -> false;
+      }
+
+      /**
+       * Roll before a segment would exceed the given size. A single message that is larger than the
+       * limit is still written, alone in its own segment.
+       */
+      static RollPolicy bySize(long maxBytes) {
+        return (bytes, messages, next) -> messages > 0 && bytes + next > maxBytes;
+      }
+
+      /** Roll when a segment has reached the given number of messages. */
+      static RollPolicy byCount(long maxMessages) {
+        return (bytes, messages, next) -> messages >= maxMessages;
+      }
+    }
+
+    /**
+     * Appends messages to the log. A writer always starts a new segment, named after the index of
+     * its first message.
+     */
+    public static class Writer implements Closeable {
+
+      private final Path dir;
+
+      private final RollPolicy policy;
+
+      /** Reused to write the length prefix of every message. */
+      private final ByteBuffer prefix =
+          ByteBuffer.allocate(LENGTH_PREFIX).order(ByteOrder.BIG_ENDIAN);
+
+      private FileChannel current;
+
+      private long segmentBytes;
+
+      private long segmentMessages;
+
+      private long messageCount;
+
+      public Writer(Path dir, RollPolicy policy) throws IOException {
+        this.dir = dir;
+        this.policy = policy;
+        // Continue the message numbering after the last existing segment.
+        List<Path> existing = segments(dir);
+        if (!existing.isEmpty()) {
+          Path last = existing.get(existing.size() - 1);
+          String name = last.getFileName().toString();
+          messageCount = Long.parseLong(name.substring(0, name.length() - EXTENSION.length()));
+          long lastMessages = 0;
+          try (Segment segment = Segment.open(last)) {
+            for (ByteBuffer ignored : segment) lastMessages++;
+          }
+          // A segment without any complete messages (if a writer failed right after rolling) has
+          // the same name as the next segment, and is replaced.
+          if (lastMessages == 0) Files.delete(last);
+          messageCount += lastMessages;
+        }
+      }
+
+      public void append(byte[] message) throws IOException {
+        append(ByteBuffer.wrap(message));
+      }
+
+      /**
+       * Append one message to the log.
+       *
+       * @param message The message to append, from its position to its limit. The position of the
+       *     buffer is not modified.
+       */
+      public void append(ByteBuffer message) throws IOException {
+        int length = message.remaining();
+        if (current == null
+            || policy.shouldRoll(segmentBytes, segmentMessages, LENGTH_PREFIX + length)) roll();
+
+        prefix.clear();
+        prefix.putInt(length).flip();
+        ByteBuffer[] srcs = {prefix, message.duplicate()};
+        // The prefix must be written even when the message is empty.
+        while (srcs[0].hasRemaining() || srcs[1].hasRemaining()) current.write(srcs);
+
+        segmentBytes += LENGTH_PREFIX + length;
+        segmentMessages++;
+        messageCount++;
+      }
+
+      /**
+       * @return The total number of messages in the log.
+       */
+      public long getMessageCount() {
+        return messageCount;
+      }
+
+      private void roll() throws IOException {
+        if (current != null) current.close();
+        current =
+            FileChannel.open(
+                dir.resolve(segmentName(messageCount)),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        segmentBytes = 0;
+        segmentMessages = 0;
+      }
+
+      @Override
+      public void close() throws IOException {
+        if (current != null) current.close();
+        current = null;
+      }
+    }
+
+    /**
+     * One memory-mapped segment of the log.
+     *
+     * <p>The JVM releases the mapping when the buffer (and all of the slices taken from it) are
+     * garbage collected, so the slices remain valid after the segment is closed.
+     */
+    public static class Segment implements Iterable<ByteBuffer>, Closeable {
+
+      private final MappedByteBuffer mapped;
+
+      private Segment(MappedByteBuffer mapped) {
+        this.mapped = mapped;
+      }
+
+      public static Segment open(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+          return new Segment(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+      }
+
+      /**
+       * @return An iterator over read-only slices of the mapped segment, one per message. If the
+       *     last message is incomplete (because a writer failed while appending) it is ignored.
+       */
+      @Override
+      public Iterator<ByteBuffer> iterator() {
+        return new Iterator<ByteBuffer>() {
+          private int position = 0;
+
+          @Override
+          public boolean hasNext() {
+            if (mapped.limit() - position < LENGTH_PREFIX) return false;
+            int length = mapped.getInt(position);
+            return length >= 0 && mapped.limit() - position - LENGTH_PREFIX >= length;
+          }
+
+          @Override
+          public ByteBuffer next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            int start = position + LENGTH_PREFIX;
+            int end = start + mapped.getInt(position);
+            position = end;
+            ByteBuffer slice = mapped.duplicate();
+            slice.limit(end).position(start);
+            return slice.slice().asReadOnlyBuffer();
+          }
+        };
+      }
+
+      @Override
+      public void close() {
+        // The channel is already closed, and the mapping is released by the garbage collector.
+      }
+    }
+
+    /** Iterates over all of the messages in all of the segments of the log. */
+    public static class Reader implements Iterable<ByteBuffer>, Closeable {
+
+      private final List<Path> segments;
+
+      public Reader(Path dir) throws IOException {
+        this.segments = segments(dir);
+      }
+
+      @Override
+      public Iterator<ByteBuffer> iterator() {
+        return new Iterator<ByteBuffer>() {
+          private final Iterator<Path> nextSegment = segments.iterator();
+          private Iterator<ByteBuffer> current = null;
+
+          @Override
+          public boolean hasNext() {
+            while (current == null || !current.hasNext()) {
+              if (!nextSegment.hasNext()) return false;
+              try (Segment segment = Segment.open(nextSegment.next())) {
+                current = segment.iterator();
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            }
+            return true;
+          }
+
+          @Override
+          public ByteBuffer next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return current.next();
+          }
+        };
+      }
+
+      @Override
+      public void close() {
+        // Nothing to close, each segment is released when it is no longer referenced.
+      }
+    }
+  }
+}
@@ -0,0 +1,492 @@
+package com.skraba.avro.enchiridion.core.logical;
+
+import static com.skraba.avro.enchiridion.core.SerializeToBytesTest.fromBytes;
+import static com.skraba.avro.enchiridion.core.SerializeToBytesTest.toBytes;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Conversion;
+import org.apache.avro.Conversions;
+import org.apache.avro.LogicalType;
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericFixed;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests and helpers for a decimal datum that keeps its unscaled value in a long.
+ *
+ * <p>The {@link Conversions.DecimalConversion} creates a {@link BigInteger}, a byte array and a
+ * {@link BigDecimal} for every value that it reads or writes. Any decimal with a precision of 18 or
+ * less always fits in a long, so a {@link CompactDecimal} can be read and written directly from the
+ * two's-complement bytes, and only creates the {@link BigDecimal} if it is asked for.
+ *
+ * <p>The {@link #main(String...)} method compares the time and memory used by both conversions for
+ * records with many decimal fields.
+ */
+public class CompactDecimalTest {
+
+  /** A generic model that uses the {@link CompactDecimalConversion}. */
+  private static final GenericData compact = new GenericData();
+
+  /** A generic model that uses the {@link Conversions.DecimalConversion}. */
+  private static final GenericData model = new GenericData();
+
+  static {
+    compact.addLogicalTypeConversion(new CompactDecimalConversion());
+    model.addLogicalTypeConversion(new Conversions.DecimalConversion());
+  }
+
+  /** The decimal logical type with precision 18 and scale 4 represented on top of bytes data. */
+  private static final Schema bytesSchema =
+      LogicalTypes.decimal(18, 4).addToSchema(SchemaBuilder.builder().bytesType());
+
+  /** The same type represented on top of fixed byte data, the smallest possible size. */
+  private static final Schema fixedSchema =
+      LogicalTypes.decimal(18, 4).addToSchema(SchemaBuilder.builder().fixed("fixed").size(8));
+
+  /** The same type represented on top of fixed byte data, larger than necessary. */
+  private static final Schema fixedSchemaBig =
+      LogicalTypes.decimal(18, 4).addToSchema(SchemaBuilder.builder().fixed("big").size(12));
+
+  /** A decimal type that doesn't always fit in a long. */
+  private static final Schema bytesSchema30 =
+      LogicalTypes.decimal(30, 4).addToSchema(SchemaBuilder.builder().bytesType());
+
+  /** The largest unscaled value with a precision of 18. */
+  private static final long MAX_18 = 999_999_999_999_999_999L;
+
+  /** Unscaled values around all of the byte boundaries. */
+  private static final List<Long> unscaled = new ArrayList<>();
+
+  static {
+    unscaled.addAll(Arrays.asList(0L, MAX_18, -MAX_18));
+    for (int i = 0; i < 63; i++) {
+      long v = 1L << i;
+      unscaled.addAll(Arrays.asList(v, v - 1, -v, -v - 1));
+    }
+  }
+
+  @Test
+  public void testSameBytesAsDecimalConversion() {
+    for (Schema schema : Arrays.asList(bytesSchema, fixedSchema, fixedSchemaBig, bytesSchema30)) {
+      for (long v : unscaled) {
+        if (schema != bytesSchema30 && (v > MAX_18 || v < -MAX_18)) continue;
+        BigDecimal bd = BigDecimal.valueOf(v, 4);
+        CompactDecimal cd = CompactDecimal.valueOf(v, 4);
+        assertThat(cd.isCompact(), is(true));
+        assertThat(cd.toBigDecimal(), is(bd));
+
+        // Exactly the same bytes are written as the standard conversion.
+        byte[] serialized = toBytes(compact, schema, cd);
+        assertThat(serialized, is(toBytes(model, schema, bd)));
+
+        // And are read back to a compact value without losing any information.
+        Object read = fromBytes(compact, schema, serialized);
+        assertThat(read, is(cd));
+        assertThat(((CompactDecimal) read).getUnscaled(), is(v));
+        assertThat(fromBytes(model, schema, serialized), is(bd));
+      }
+    }
+  }
+
+  @Test
+  public void testRescale() {
+    // A value with a smaller scale is written with the schema scale, like a BigDecimal.
+    byte[] serialized = toBytes(compact, bytesSchema, CompactDecimal.valueOf(12345, 2));
+    assertThat(serialized, is(toBytes(model, bytesSchema, new BigDecimal("123.45"))));
+    assertThat(fromBytes(compact, bytesSchema, serialized), is(CompactDecimal.valueOf(1234500, 4)));
+
+    // A larger scale is only accepted if no digits are lost.
+    serialized = toBytes(compact, bytesSchema, CompactDecimal.valueOf(1234500, 6));
+    assertThat(fromBytes(compact, bytesSchema, serialized), is(CompactDecimal.valueOf(12345, 4)));
+
+    AvroTypeException rte =
+        assertThrows(
+            AvroTypeException.class,
+            () -> toBytes(compact, bytesSchema, CompactDecimal.valueOf(1234501, 6)));
+    assertThat(
+        rte.getMessage(), is("Cannot encode decimal with scale 6 as scale 4 without rounding"));
+
+    // And the precision is checked after rescaling.
+    rte =
+        assertThrows(
+            AvroTypeException.class,
+            () -> toBytes(compact, bytesSchema, CompactDecimal.valueOf(Long.MAX_VALUE, 4)));
+    assertThat(rte.getMessage(), is("Cannot encode decimal with precision 19 as max precision 18"));
+    rte =
+        assertThrows(
+            AvroTypeException.class,
+            () -> toBytes(compact, bytesSchema, CompactDecimal.valueOf(100_000_000_000_000L, 0)));
+    assertThat(rte.getMessage(), is("Cannot encode decimal with precision 19 as max precision 18"));
+  }
+
+  @Test
+  public void testLargerThanLong() {
+    BigDecimal large = new BigDecimal("12345678901234567890123.4567");
+    CompactDecimal cd = CompactDecimal.valueOf(large);
+    assertThat(cd.isCompact(), is(false));
+    assertThat(cd.toBigDecimal(), is(large));
+    assertThrows(ArithmeticException.class, cd::getUnscaled);
+
+    byte[] serialized = toBytes(compact, bytesSchema30, cd);
+    assertThat(serialized, is(toBytes(model, bytesSchema30, large)));
+    Object read = fromBytes(compact, bytesSchema30, serialized);
+    assertThat(read, instanceOf(CompactDecimal.class));
+    assertThat(read, is(cd));
+    assertThat(((CompactDecimal) read).isCompact(), is(false));
+
+    // Any BigDecimal that fits is kept as a compact value.
+    assertThat(CompactDecimal.valueOf(new BigDecimal("-123.4500")).isCompact(), is(true));
+    assertThat(
+        CompactDecimal.valueOf(new BigDecimal("-123.4500")),
+        is(CompactDecimal.valueOf(-1234500, 4)));
+  }
+
+  /**
+   * A decimal number, with the unscaled value stored in a long when it fits. The {@link BigDecimal}
+   * is created lazily when the value is too large or if it is requested.
+   *
+   * <p>Like {@link BigDecimal}, two values are only equal if they have the same scale.
+   */
+  public static class CompactDecimal {
+
+    /** The unscaled value, only if {@link #isCompact()}. */
+    private final long unscaled;
+
+    private final int scale;
+
+    private final boolean compact;
+
+    /** Always set if the value isn't compact, and set lazily otherwise. */
+    private BigDecimal big;
+
+    private CompactDecimal(long unscaled, int scale, boolean compact, BigDecimal big) {
+      this.unscaled = unscaled;
+      this.scale = scale;
+      this.compact = compact;
+      this.big = big;
+    }
+
+    public static CompactDecimal valueOf(long unscaled, int scale) {
+      return new CompactDecimal(unscaled, scale, true, null);
+    }
+
+    public static CompactDecimal valueOf(BigDecimal value) {
+      BigInteger unscaled = value.unscaledValue();
+      if (unscaled.bitLength() < 64)
+        return new CompactDecimal(unscaled.longValue(), value.scale(), true, value);
+      return new CompactDecimal(0, value.scale(), false, value);
+    }
+
+    /**
+     * @return True if the unscaled value is stored in a long.
+     */
+    public boolean isCompact() {
+      return compact;
+    }
+
+    /**
+     * @return The unscaled value.
+     * @throws ArithmeticException if the unscaled value doesn't fit in a long.
+     */
+    public long getUnscaled() {
+      if (!isCompact()) throw new ArithmeticException("Unscaled value doesn't fit in a long");
+      return unscaled;
+    }
+
+    public int scale() {
+      return scale;
+    }
+
+    public BigDecimal toBigDecimal() {
+      // This can be created more than once by different threads, but is always the same value.
+      if (big == null) big = BigDecimal.valueOf(unscaled, scale);
+      return big;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof CompactDecimal)) return false;
+      CompactDecimal that = (CompactDecimal) o;
+      if (isCompact() && that.isCompact()) return unscaled == that.unscaled && scale == that.scale;
+      return toBigDecimal().equals(that.toBigDecimal());
+    }
+
+    @Override
+    public int hashCode() {
+      return isCompact() ? 31 * Long.hashCode(unscaled) + scale : big.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return toBigDecimal().toString();
+    }
+  }
+
+  /**
+   * Converts the decimal logical type to a {@link CompactDecimal}, producing exactly the same bytes
+   * as the {@link Conversions.DecimalConversion}.
+   *
+   * <p>Values that fit in a long are read and written directly from and to the two's-complement
+   * bytes. Any other value, or a value that needs to be rounded, goes through the {@link
+   * Conversions.DecimalConversion}, including its errors.
+   */
+  public static class CompactDecimalConversion extends Conversion<CompactDecimal> {
+
+    private static final Conversions.DecimalConversion DELEGATE =
+        new Conversions.DecimalConversion();
+
+    /** The powers of ten that fit in a long. */
+    private static final long[] TENS = new long[19];
+
+    static {
+      TENS[0] = 1;
+      for (int i = 1; i < TENS.length; i++) TENS[i] = TENS[i - 1] * 10;
+    }
+
+    @Override
+    public Class<CompactDecimal> getConvertedType() {
+      return CompactDecimal.class;
+    }
+
+    @Override
+    public String getLogicalTypeName() {
+      return "decimal";
+    }
+
+    @Override
+    public Schema getRecommendedSchema() {
+      return DELEGATE.getRecommendedSchema();
+    }
+
+    @Override
+    public CompactDecimal fromBytes(ByteBuffer value, Schema schema, LogicalType type) {
+      int scale = ((LogicalTypes.Decimal) type).getScale();
+      // Like the DecimalConversion, the position of the buffer isn't modified.
+      int length = value.remaining();
+      if (length > 0 && fitsInLong(value, value.position(), length))
+        return CompactDecimal.valueOf(toLong(value, value.position(), length), scale);
+      return CompactDecimal.valueOf(DELEGATE.fromBytes(value, schema, type));
+    }
+
+    @Override
+    public ByteBuffer toBytes(CompactDecimal value, Schema schema, LogicalType type) {
+      LogicalTypes.Decimal decimal = (LogicalTypes.Decimal) type;
+      if (!isExact(value, decimal)) return DELEGATE.toBytes(value.toBigDecimal(), schema, type);
+      long v = rescale(value, decimal);
+      byte[] bytes = new byte[length(v)];
+      write(v, bytes, 0, bytes.length);
+      return ByteBuffer.wrap(bytes);
+    }
+
+    @Override
+    public CompactDecimal fromFixed(GenericFixed value, Schema schema, LogicalType type) {
+      int scale = ((LogicalTypes.Decimal) type).getScale();
+      ByteBuffer bytes = ByteBuffer.wrap(value.bytes());
+      if (bytes.remaining() > 0 && fitsInLong(bytes, 0, bytes.remaining()))
+        return CompactDecimal.valueOf(toLong(bytes, 0, bytes.remaining()), scale);
+      return CompactDecimal.valueOf(DELEGATE.fromFixed(value, schema, type));
+    }
+
+    @Override
+    public GenericFixed toFixed(CompactDecimal value, Schema schema, LogicalType type) {
+      LogicalTypes.Decimal decimal = (LogicalTypes.Decimal) type;
+      if (!isExact(value, decimal)) return DELEGATE.toFixed(value.toBigDecimal(), schema, type);
+      long v = rescale(value, decimal);
+      if (length(v) > schema.getFixedSize())
+        return DELEGATE.toFixed(value.toBigDecimal(), schema, type);
+      byte[] bytes = new byte[schema.getFixedSize()];
+      int pad = bytes.length - length(v);
+      Arrays.fill(bytes, 0, pad, (byte) (v < 0 ? 0xFF : 0x00));
+      write(v, bytes, pad, bytes.length - pad);
+      return new GenericData.Fixed(schema, bytes);
+    }
+
+    /**
+     * @return True if the unscaled value with the scale of the decimal type can be computed exactly
+     *     as a long.
+     */
+    private static boolean isExact(CompactDecimal value, LogicalTypes.Decimal type) {
+      if (!value.isCompact()) return false;
+      long v = value.getUnscaled();
+      int diff = type.getScale() - value.scale();
+      if (diff > 0) {
+        if (diff >= TENS.length) return false;
+        long max = Long.MAX_VALUE / TENS[diff];
+        return v <= max && v >= -max;
+      }
+      return diff == 0 || (-diff < TENS.length && v % TENS[-diff] == 0);
+    }
+
+    /**
+     * @return The unscaled value with the scale of the decimal type, only if {@link #isExact}.
+     * @throws AvroTypeException if the value doesn't fit into the decimal type.
+     */
+    private static long rescale(CompactDecimal value, LogicalTypes.Decimal type) {
+      long v = value.getUnscaled();
+      int diff = type.getScale() - value.scale();
+      if (diff > 0) v = v * TENS[diff];
+      else if (diff < 0) v = v / TENS[-diff];
+      int precision = precision(v);
+      if (precision > type.getPrecision())
+        throw new AvroTypeException(
+            "Cannot encode decimal with precision "
+                + precision
+                + " as max precision "
+                + type.getPrecision());
+      return v;
+    }
+
+    /**
+     * @return The number of decimal digits in the value, where zero has one digit like {@link
+     *     BigDecimal#precision()}.
+     */
+    private static int precision(long v) {
+      int digits = 1;
+      // Negative values are used so that Long.MIN_VALUE can't overflow.
+      for (long n = v < 0 ? v : -v; n <= -10; n /= 10) digits++;
+      return digits;
+    }
+
+    /**
+     * @return The minimum number of bytes for the two's-complement value, like {@link
+     *     BigInteger#toByteArray()}.
+     */
+    private static int length(long v) {
+      return (64 - Long.numberOfLeadingZeros(v ^ (v >> 63))) / 8 + 1;
+    }
+
+    /** Writes the lowest bytes of the value big-endian into the array. */
+    private static void write(long v, byte[] bytes, int offset, int length) {
+      for (int i = length - 1; i >= 0; i--) {
+        bytes[offset + i] = (byte) v;
+        v >>= 8;
+      }
+    }
+
+    /**
+     * @return True if the two's-complement bytes only differ from a long by their sign extension.
+     */
+    private static boolean fitsInLong(ByteBuffer bytes, int offset, int length) {
+      if (length <= 8) return true;
+      byte sign = (byte) (bytes.get(offset + length - 8) >> 7);
+      for (int i = offset; i < offset + length - 8; i++) if (bytes.get(i) != sign) return false;
+      return true;
+    }
+
+    /** Reads the last (up to) eight big-endian bytes as a sign-extended long. */
+    private static long toLong(ByteBuffer bytes, int offset, int length) {
+      int start = offset + Math.max(0, length - 8);
+      long v = bytes.get(start);
+      for (int i = start + 1; i < offset + length; i++) v = (v << 8) | (bytes.get(i) & 0xFF);
+      return v;
+    }
+  }
+
+  /**
+   * Compares the time and memory used to write and read records with many decimal fields, using the
+   * {@link Conversions.DecimalConversion} and the {@link CompactDecimalConversion}.
+   *
+   * @param args The number of fields (default 20), the number of records (default 100000) and the
+   *     number of repetitions (default 5).
+   */
+  public static void main(String... args) throws IOException {
+    int fields = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    int count = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+    int repeat = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    SchemaBuilder.FieldAssembler<Schema> fa = SchemaBuilder.record("Financial").fields();
+    for (int i = 0; i < fields; i++) fa = fa.name("amount" + i).type(bytesSchema).noDefault();
+    Schema schema = fa.endRecord();
+
+    Random rnd = new Random(0L);
+    long[][] values = new long[count][fields];
+    for (long[] row : values)
+      for (int i = 0; i < fields; i++) row[i] = rnd.nextLong() % 100_000_000_000_000L;
+
+    run(threads, "DecimalConversion", model, schema, values, repeat, v -> BigDecimal.valueOf(v, 4));
+    run(
+        threads,
+        "CompactDecimal",
+        compact,
+        schema,
+        values,
+        repeat,
+        v -> CompactDecimal.valueOf(v, 4));
+  }
+
+  private static void run(
+      com.sun.management.ThreadMXBean threads,
+      String name,
+      GenericData model,
+      Schema schema,
+      long[][] values,
+      int repeat,
+      Function<Long, Object> datum)
+      throws IOException {
+    List<GenericRecord> records = new ArrayList<>(values.length);
+    for (long[] row : values) {
+      GenericRecord r = new GenericData.Record(schema);
+      for (int i = 0; i < row.length; i++) r.put(i, datum.apply(row[i]));
+      records.add(r);
+    }
+
+    GenericDatumWriter<GenericRecord> writer = new GenericDatumWriter<>(schema, model);
+    GenericDatumReader<GenericRecord> reader = new GenericDatumReader<>(schema, schema, model);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    BinaryEncoder encoder = null;
+    BinaryDecoder decoder = null;
+    GenericRecord reuse = null;
+
+    for (int r = 0; r <= repeat; r++) {
+      // The first iteration is a warm up.
+      long bytes = threads.getCurrentThreadAllocatedBytes();
+      long start = System.nanoTime();
+      baos.reset();
+      encoder = EncoderFactory.get().binaryEncoder(baos, encoder);
+      for (GenericRecord record : records) writer.write(record, encoder);
+      encoder.flush();
+      long writeNanos = System.nanoTime() - start;
+      long writeBytes = threads.getCurrentThreadAllocatedBytes() - bytes;
+
+      bytes = threads.getCurrentThreadAllocatedBytes();
+      start = System.nanoTime();
+      decoder = DecoderFactory.get().binaryDecoder(baos.toByteArray(), decoder);
+      for (int i = 0; i < records.size(); i++) reuse = reader.read(reuse, decoder);
+      long readNanos = System.nanoTime() - start;
+      long readBytes = threads.getCurrentThreadAllocatedBytes() - bytes;
+
+      if (r > 0)
+        System.out.printf(
+            "%-18s write %8.2f ms %8.2f MB, read %8.2f ms %8.2f MB%n",
+            name, writeNanos / 1e6, writeBytes / 1e6, readNanos / 1e6, readBytes / 1e6);
+    }
+  }
+}
@@ -0,0 +1,335 @@
+package com.skraba.avro.enchiridion.core.schema;
+
+import static com.skraba.avro.enchiridion.core.schema.SchemaFacadeTest.SIMPLE;
+import static com.skraba.avro.enchiridion.core.schema.SchemaFacadeTest.SIMPLE_ANNOTATED;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+import com.skraba.avro.enchiridion.core.AvroUtil;
+import com.skraba.avro.enchiridion.core.SerializeToBytesTest;
+import com.skraba.avro.enchiridion.core.schema.FingerprintCacheTest.FingerprintCache;
+import com.skraba.avro.enchiridion.resources.AvroTestResources;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.avro.util.RandomData;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests and helpers for reusing serialized bytes between schemas with the same binary
+ * encoding.
+ *
+ * <p>The binary encoding of a datum only depends on the parts of its schema that are kept in the
+ * {@link org.apache.avro.SchemaNormalization parsing canonical form}. Two schemas that only differ
+ * by their properties, docs, aliases or defaults (like {@link SchemaFacadeTest#SIMPLE} and {@link
+ * SchemaFacadeTest#SIMPLE_ANNOTATED}) always write exactly the same bytes for the same datum, and
+ * bytes written with one can be read with the other without any resolution.
+ */
+public class BinaryIdentityTest {
+
+  @Test
+  public void testAnnotated() {
+    BinaryIdentity identity = new BinaryIdentity(100);
+    assertThat(identity.isIdentical(SIMPLE, SIMPLE_ANNOTATED), is(true));
+    assertThat(identity.isIdentical(SIMPLE_ANNOTATED, SIMPLE), is(true));
+    assertThat(identity.isIdentical(SIMPLE, SIMPLE), is(true));
+
+    Schema recipe = AvroUtil.api().parse(AvroTestResources.Recipe());
+    Schema annotated =
+        SchemaFacadeTest.addSomeAnnotations(
+            new HashSet<>(), AvroUtil.api().parse(AvroTestResources.Recipe()), ".", true);
+    assertThat(identity.isIdentical(recipe, annotated), is(true));
+
+    // Logical types don't change the binary encoding either.
+    Schema bytes = Schema.create(Schema.Type.BYTES);
+    Schema decimal = LogicalTypes.decimal(9, 2).addToSchema(Schema.create(Schema.Type.BYTES));
+    assertThat(identity.isIdentical(bytes, decimal), is(true));
+  }
+
+  @Test
+  public void testDifferent() {
+    BinaryIdentity identity = new BinaryIdentity(100);
+    Schema widened =
+        SchemaBuilder.record(SIMPLE.getFullName())
+            .fields()
+            .requiredInt("id")
+            .requiredString("name")
+            .endRecord();
+    assertThat(identity.isIdentical(SIMPLE, widened), is(false));
+
+    Schema reordered =
+        SchemaBuilder.record(SIMPLE.getFullName())
+            .fields()
+            .requiredString("name")
+            .requiredLong("id")
+            .endRecord();
+    assertThat(identity.isIdentical(SIMPLE, reordered), is(false));
+
+    // Names are part of the canonical form, so a renamed record is conservatively different, even
+    // though the bytes would be the same.
+    Schema renamed =
+        SchemaBuilder.record("Renamed")
+            .fields()
+            .requiredLong("id")
+            .requiredString("name")
+            .endRecord();
+    assertThat(identity.isIdentical(SIMPLE, renamed), is(false));
+  }
+
+  @Test
+  public void testCached() {
+    BinaryIdentity identity = new BinaryIdentity(2);
+    Schema recipe = AvroUtil.api().parse(AvroTestResources.Recipe());
+    Schema copy = AvroUtil.api().parse(AvroTestResources.Recipe());
+
+    // The canonical forms are only compared the first time.
+    assertThat(identity.isIdentical(recipe, copy), is(true));
+    assertThat(identity.isIdentical(recipe, copy), is(true));
+    assertThat(identity.getCompared(), is(1L));
+    assertThat(identity.isIdentical(SIMPLE, SIMPLE_ANNOTATED), is(true));
+    assertThat(identity.isIdentical(SIMPLE, recipe), is(false));
+    assertThat(identity.isIdentical(SIMPLE, recipe), is(false));
+    assertThat(identity.getCompared(), is(3L));
+
+    // The oldest answers are evicted.
+    assertThat(identity.size(), is(2));
+    assertThat(identity.isIdentical(recipe, copy), is(true));
+    assertThat(identity.getCompared(), is(4L));
+  }
+
+  @Test
+  public void testConvert() {
+    BinaryIdentity identity = new BinaryIdentity(100);
+    for (Object datum : new RandomData(SIMPLE, 10, 0L)) {
+      byte[] serialized = SerializeToBytesTest.toBytes(SIMPLE, datum);
+      // The same bytes are reused, and can be read with the annotated schema.
+      assertThat(identity.convert(serialized, SIMPLE, SIMPLE_ANNOTATED), sameInstance(serialized));
+      GenericRecord read =
+          SerializeToBytesTest.fromBytes(GenericData.get(), SIMPLE_ANNOTATED, serialized);
+      assertThat(read.getSchema(), sameInstance(SIMPLE_ANNOTATED));
+      assertThat(read.get("id"), is(((GenericRecord) datum).get("id")));
+    }
+    assertThat(identity.getReused(), is(10L));
+
+    // Otherwise, the bytes are resolved to the new schema.
+    Schema v1 = SchemaBuilder.record("R").fields().requiredInt("id").endRecord();
+    Schema v2 =
+        SchemaBuilder.record("R").fields().requiredLong("id").optionalString("name").endRecord();
+    byte[] serialized =
+        SerializeToBytesTest.toBytes(v1, new GenericRecordBuilder(v1).set("id", 1).build());
+    byte[] converted = identity.convert(serialized, v1, v2);
+    assertThat(
+        converted,
+        is(SerializeToBytesTest.toBytes(v2, new GenericRecordBuilder(v2).set("id", 1L).build())));
+    assertThat(identity.getConverted(), is(1L));
+  }
+
+  /**
+   * Decides whether two schemas have the same binary encoding, from their parsing canonical forms.
+   *
+   * <p>The answer is decided once for each pair of schema instances and remembered, so this is
+   * usually one lookup. On a miss, schemas with different fingerprints from the {@link
+   * FingerprintCache} are always different, and equal fingerprints are confirmed by comparing the
+   * canonical forms.
+   *
+   * <p>The schemas are only weakly referenced, and an answer is dropped when either of its schemas
+   * is garbage collected. When the cache is full, the oldest answers are evicted first. This class
+   * is thread-safe.
+   */
+  public static class BinaryIdentity {
+
+    /** A shared instance. */
+    private static final BinaryIdentity INSTANCE = new BinaryIdentity(10000);
+
+    private final int maxSize;
+
+    private final ConcurrentHashMap<Object, Boolean> answers = new ConcurrentHashMap<>();
+
+    /** The keys in the order they were added, for eviction. */
+    private final Queue<PairKey> insertionOrder = new ConcurrentLinkedQueue<>();
+
+    /** The size of the queue, which can also contain keys that were already expunged. */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /** Schemas that have been garbage collected are enqueued here to be expunged. */
+    private final ReferenceQueue<Schema> expunged = new ReferenceQueue<>();
+
+    private final LongAdder compared = new LongAdder();
+
+    private final LongAdder reused = new LongAdder();
+
+    private final LongAdder converted = new LongAdder();
+
+    /**
+     * @param maxSize The maximum number of answers to keep.
+     */
+    public BinaryIdentity(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    /** Get the shared instance. */
+    public static BinaryIdentity get() {
+      return INSTANCE;
+    }
+
+    /**
+     * @return True if every datum is written with exactly the same bytes by both schemas, and the
+     *     bytes written by one can be read by the other without any resolution.
+     */
+    public boolean isIdentical(Schema a, Schema b) {
+      if (a == b) return true;
+      // A plain key is enough to probe the cache, without creating a reference.
+      Boolean answer = answers.get(new Pair(a, b));
+      if (answer != null) return answer;
+
+      compared.increment();
+      FingerprintCache.Fingerprints fa = FingerprintCache.get().of(a);
+      FingerprintCache.Fingerprints fb = FingerprintCache.get().of(b);
+      boolean identical =
+          fa.getFingerprint64() == fb.getFingerprint64()
+              && fa.getCanonicalForm().equals(fb.getCanonicalForm());
+
+      expunge();
+      PairKey key = new PairKey(a, b, expunged);
+      if (answers.putIfAbsent(key, identical) == null) {
+        insertionOrder.add(key);
+        queued.incrementAndGet();
+        while (answers.size() > maxSize || queued.get() > 2 * maxSize) {
+          PairKey oldest = insertionOrder.poll();
+          if (oldest == null) break;
+          queued.decrementAndGet();
+          answers.remove(oldest);
+        }
+      }
+      return identical;
+    }
+
+    /**
+     * @return The number of answers currently in the cache.
+     */
+    public int size() {
+      expunge();
+      return answers.size();
+    }
+
+    private void expunge() {
+      for (Object ref = expunged.poll(); ref != null; ref = expunged.poll())
+        answers.remove(ref instanceof Second ? ((Second) ref).key : ref);
+    }
+
+    /**
+     * @return The number of times that the canonical forms were compared, because the answer wasn't
+     *     in the cache.
+     */
+    public long getCompared() {
+      return compared.sum();
+    }
+
+    /**
+     * @param serialized A datum serialized with the writer schema.
+     * @param writer The schema used to serialize the datum.
+     * @param reader The schema for the returned bytes.
+     * @return The same bytes if the schemas are identical, or the datum resolved to the reader
+     *     schema and serialized again.
+     */
+    public byte[] convert(byte[] serialized, Schema writer, Schema reader) {
+      if (isIdentical(writer, reader)) {
+        reused.increment();
+        return serialized;
+      }
+      converted.increment();
+      Object datum = SerializeToBytesTest.fromBytes(GenericData.get(), writer, reader, serialized);
+      return SerializeToBytesTest.toBytes(reader, datum);
+    }
+
+    public long getReused() {
+      return reused.sum();
+    }
+
+    public long getConverted() {
+      return converted.sum();
+    }
+
+    /** A weak reference to a pair of schemas, with equality based on their identity. */
+    private static class PairKey extends WeakReference<Schema> {
+      private final Second second;
+      private final int hash;
+
+      PairKey(Schema a, Schema b, ReferenceQueue<Schema> queue) {
+        super(a, queue);
+        this.second = new Second(b, this, queue);
+        this.hash = Pair.hash(a, b);
+      }
+
+      @Override
+      public int hashCode() {
+        return hash;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+        if (this == o) return true;
+        Schema a = get();
+        Schema b = second.get();
+        if (a == null || b == null) return false;
+        if (o instanceof Pair) return ((Pair) o).is(a, b);
+        return o instanceof PairKey && a == ((PairKey) o).get() && b == ((PairKey) o).second.get();
+      }
+    }
+
+    /** The weak reference to the second schema, which expunges the key that it belongs to. */
+    private static class Second extends WeakReference<Schema> {
+      private final PairKey key;
+
+      Second(Schema b, PairKey key, ReferenceQueue<Schema> queue) {
+        super(b, queue);
+        this.key = key;
+      }
+    }
+
+    /** A strong key used to find a {@link PairKey}, equal to it while both schemas exist. */
+    private static class Pair {
+      private final Schema a;
+      private final Schema b;
+
+      Pair(Schema a, Schema b) {
+        this.a = a;
+        this.b = b;
+      }
+
+      static int hash(Schema a, Schema b) {
+        return System.identityHashCode(a) * 31 + System.identityHashCode(b);
+      }
+
+      boolean is(Schema a, Schema b) {
+        return this.a == a && this.b == b;
+      }
+
+      @Override
+      public int hashCode() {
+        return hash(a, b);
+      }
+
+      @Override
+      public boolean equals(Object o) {
+        if (o instanceof PairKey) {
+          PairKey that = (PairKey) o;
+          return a == that.get() && b == that.second.get();
+        }
+        return o instanceof Pair && ((Pair) o).is(a, b);
+      }
+    }
+  }
+}
@@ -0,0 +1,384 @@
+package com.skraba.avro.enchiridion.core.schema;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import com.skraba.avro.enchiridion.core.AvroUtil;
+import com.skraba.avro.enchiridion.resources.AvroTestResources;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests and helpers for caching the fingerprints of a schema.
+ *
+ * <p>{@link SchemaNormalization#parsingFingerprint64(Schema)} rebuilds the parsing canonical form
+ * and hashes it on every call. A {@link FingerprintCache} remembers the result for each {@link
+ * Schema} instance, so the work is done at most once per instance.
+ */
+public class FingerprintCacheTest {
+
+  @Test
+  public void testBasic() throws NoSuchAlgorithmException {
+    Schema schema = AvroUtil.api().parse(AvroTestResources.SimpleRecord());
+
+    FingerprintCache.Fingerprints fps = FingerprintCache.get().of(schema);
+    assertThat(fps.getCanonicalForm(), is(SchemaNormalization.toParsingForm(schema)));
+    assertThat(fps.getFingerprint64(), is(-6444834972961693627L));
+    assertThat(fps.getFingerprint64(), is(SchemaNormalization.parsingFingerprint64(schema)));
+    assertThat(fps.getMd5(), is(SchemaNormalization.parsingFingerprint("MD5", schema)));
+    assertThat(fps.getSha256(), is(SchemaNormalization.parsingFingerprint("SHA-256", schema)));
+
+    // The static shortcut uses the same cache.
+    assertThat(FingerprintCache.parsingFingerprint64(schema), is(-6444834972961693627L));
+  }
+
+  @Test
+  public void testCachedPerInstance() {
+    FingerprintCache cache = new FingerprintCache();
+    Schema schema = AvroUtil.api().parse(AvroTestResources.Recipe());
+    Schema copy = AvroUtil.api().parse(AvroTestResources.Recipe());
+    assertThat(cache.size(), is(0));
+
+    // Asking twice for the same instance returns the same cached information.
+    FingerprintCache.Fingerprints fps = cache.of(schema);
+    assertThat(cache.of(schema), sameInstance(fps));
+    assertThat(cache.size(), is(1));
+
+    // An equal schema is a different key, but has an equal fingerprint.
+    FingerprintCache.Fingerprints fpsCopy = cache.of(copy);
+    assertThat(fpsCopy, not(sameInstance(fps)));
+    assertThat(fpsCopy.getFingerprint64(), is(fps.getFingerprint64()));
+    assertThat(cache.size(), is(2));
+
+    // The byte arrays are defensive copies and can't change the cached value.
+    cache.of(schema).getMd5()[0]++;
+    assertThat(cache.of(schema).getMd5(), is(cache.of(copy).getMd5()));
+  }
+
+  @Test
+  public void testPrecompute() {
+    FingerprintCache cache = new FingerprintCache();
+    Schema schema = AvroUtil.api().parse(AvroTestResources.SimpleRecord());
+    Schema annotated = SchemaFacadeTest.SIMPLE_ANNOTATED;
+
+    // Precomputing stores all the fingerprints eagerly.
+    cache.precompute(schema, annotated);
+    assertThat(cache.size(), is(2));
+
+    // Annotations aren't part of the canonical form.
+    assertThat(cache.of(annotated).getCanonicalForm(), is(cache.of(schema).getCanonicalForm()));
+    assertThat(cache.of(annotated).getSha256(), is(cache.of(schema).getSha256()));
+
+    // But they are part of the full schema fingerprint.
+    assertThat(
+        cache.of(annotated).getSchemaFingerprint64(),
+        not(cache.of(schema).getSchemaFingerprint64()));
+  }
+
+  @Test
+  public void testWeakSchemaMapBounded() {
+    WeakSchemaMap<String> map = new WeakSchemaMap<>(2);
+    Schema a = Schema.createRecord("A", null, null, false);
+    Schema b = Schema.createRecord("B", null, null, false);
+    Schema c = Schema.createRecord("C", null, null, false);
+    assertThat(map.computeIfAbsent(a, Schema::getName), is("A"));
+    assertThat(map.computeIfAbsent(b, Schema::getName), is("B"));
+    assertThat(map.computeIfAbsent(a, s -> "A2"), is("A"));
+
+    // The oldest schema is evicted.
+    assertThat(map.computeIfAbsent(c, Schema::getName), is("C"));
+    assertThat(map.size(), is(2));
+    assertThat(map.get(a), nullValue());
+    assertThat(map.get(b), is("B"));
+    assertThat(map.computeIfAbsent(a, s -> "A2"), is("A2"));
+  }
+
+  /**
+   * A concurrent cache from a {@link Schema} instance to its fingerprints.
+   *
+   * <p>Schemas are compared by identity, not equality: computing the {@link Schema#hashCode()} of a
+   * large schema would cost nearly as much as fingerprinting it. The keys are weakly referenced, so
+   * the cache doesn't keep discarded schemas alive.
+   *
+   * <p>The canonical form doesn't include properties, docs or aliases, so modifying those on a
+   * cached schema doesn't invalidate its fingerprints. The exceptions are {@link
+   * Fingerprints#getSchemaFingerprint64()} and {@link Fingerprints#getSchemaJson()}, which are
+   * calculated from the full schema when it is first cached.
+   */
+  public static class FingerprintCache {
+
+    /** A shared instance. */
+    private static final FingerprintCache INSTANCE = new FingerprintCache();
+
+    private final WeakSchemaMap<Fingerprints> cache = new WeakSchemaMap<>();
+
+    /** Get the shared cache. */
+    public static FingerprintCache get() {
+      return INSTANCE;
+    }
+
+    /** A cached replacement for {@link SchemaNormalization#parsingFingerprint64(Schema)}. */
+    public static long parsingFingerprint64(Schema schema) {
+      return get().of(schema).getFingerprint64();
+    }
+
+    /**
+     * @param schema The schema to fingerprint.
+     * @return The fingerprints of the schema, computing and caching them if necessary.
+     */
+    public Fingerprints of(Schema schema) {
+      return cache.computeIfAbsent(schema, Fingerprints::new);
+    }
+
+    /**
+     * Eagerly calculate and cache all of the fingerprints for the given schemas, so that no work
+     * needs to be done on first use.
+     *
+     * @param schemas The schemas to fingerprint.
+     */
+    public void precompute(Schema... schemas) {
+      for (Schema schema : schemas) of(schema).precompute();
+    }
+
+    /**
+     * @return The number of schemas currently in the cache.
+     */
+    public int size() {
+      return cache.size();
+    }
+
+    /**
+     * The parsing canonical form and fingerprints for one schema. The 64-bit fingerprints are
+     * computed immediately, and the digests are computed lazily unless {@link #precompute()} is
+     * called.
+     */
+    public static class Fingerprints {
+      private final String canonicalForm;
+      private final byte[] canonicalBytes;
+      private final long fingerprint64;
+      private final String schemaJson;
+      private final long schemaFingerprint64;
+      private volatile byte[] md5;
+      private volatile byte[] sha256;
+
+      Fingerprints(Schema schema) {
+        // The cache values must not keep the key alive, so nothing is computed from it later.
+        this.canonicalForm = SchemaNormalization.toParsingForm(schema);
+        this.canonicalBytes = canonicalForm.getBytes(StandardCharsets.UTF_8);
+        this.fingerprint64 = SchemaNormalization.fingerprint64(canonicalBytes);
+        this.schemaJson = schema.toString();
+        this.schemaFingerprint64 =
+            SchemaNormalization.fingerprint64(schemaJson.getBytes(StandardCharsets.UTF_8));
+      }
+
+      /** Compute all of the lazy fingerprints. */
+      public Fingerprints precompute() {
+        getMd5Internal();
+        getSha256Internal();
+        return this;
+      }
+
+      public String getCanonicalForm() {
+        return canonicalForm;
+      }
+
+      /** The same value as {@link SchemaNormalization#parsingFingerprint64(Schema)}. */
+      public long getFingerprint64() {
+        return fingerprint64;
+      }
+
+      /**
+       * @return The 64-bit fingerprint of the full JSON schema, including the defaults, aliases,
+       *     logical types and properties that aren't part of the parsing canonical form.
+       */
+      public long getSchemaFingerprint64() {
+        return schemaFingerprint64;
+      }
+
+      /**
+       * @return The full JSON schema that {@link #getSchemaFingerprint64()} was calculated from.
+       */
+      public String getSchemaJson() {
+        return schemaJson;
+      }
+
+      /**
+       * @return A copy of the MD5 fingerprint.
+       */
+      public byte[] getMd5() {
+        return getMd5Internal().clone();
+      }
+
+      /**
+       * @return A copy of the SHA-256 fingerprint.
+       */
+      public byte[] getSha256() {
+        return getSha256Internal().clone();
+      }
+
+      private byte[] getMd5Internal() {
+        // A benign race: at worst the digest is calculated more than once.
+        if (md5 == null) md5 = digest("MD5");
+        return md5;
+      }
+
+      private byte[] getSha256Internal() {
+        if (sha256 == null) sha256 = digest("SHA-256");
+        return sha256;
+      }
+
+      private byte[] digest(String algorithm) {
+        try {
+          return SchemaNormalization.fingerprint(algorithm, canonicalBytes);
+        } catch (NoSuchAlgorithmException e) {
+          // Every JVM is required to support MD5 and SHA-256.
+          throw new RuntimeException(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * A thread-safe map from schema instances to values. The schemas are compared by identity and
+   * only weakly referenced, so an entry is removed after its schema is garbage collected.
+   *
+   * <p>The values must not refer to their schema, or it will never be collected. When that can't be
+   * avoided, the map should be bounded, and the oldest entries are evicted first.
+   */
+  public static class WeakSchemaMap<V> {
+
+    private final int maxSize;
+
+    private final ConcurrentHashMap<Object, V> map = new ConcurrentHashMap<>();
+
+    /** The keys in the order they were added, for eviction, or null if the map isn't bounded. */
+    private final Queue<Object> insertionOrder;
+
+    /** The size of the queue, which can also contain keys that were already expunged. */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /** Schemas that have been garbage collected are enqueued here to be expunged. */
+    private final ReferenceQueue<Schema> expunged = new ReferenceQueue<>();
+
+    /** An unbounded map. */
+    public WeakSchemaMap() {
+      this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxSize The maximum number of schemas to keep.
+     */
+    public WeakSchemaMap(int maxSize) {
+      this.maxSize = maxSize;
+      this.insertionOrder = maxSize == Integer.MAX_VALUE ? null : new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * @return The value for the schema, or null if there isn't one.
+     */
+    public V get(Schema schema) {
+      // A plain key is enough to probe the map, without creating a reference.
+      return map.get(new Lookup(schema));
+    }
+
+    /**
+     * @return The value for the schema, computing and storing it if necessary.
+     */
+    public V computeIfAbsent(Schema schema, Function<Schema, V> fn) {
+      V value = map.get(new Lookup(schema));
+      if (value != null) return value;
+      expunge();
+      IdentityKey key = new IdentityKey(schema, expunged);
+      if (insertionOrder == null) return map.computeIfAbsent(key, k -> fn.apply(schema));
+
+      boolean[] created = {false};
+      value =
+          map.computeIfAbsent(
+              key,
+              k -> {
+                created[0] = true;
+                return fn.apply(schema);
+              });
+      if (created[0]) {
+        insertionOrder.add(key);
+        queued.incrementAndGet();
+        while (map.size() > maxSize || queued.get() > 2 * maxSize) {
+          Object oldest = insertionOrder.poll();
+          if (oldest == null) break;
+          queued.decrementAndGet();
+          map.remove(oldest);
+        }
+      }
+      return value;
+    }
+
+    /**
+     * @return The number of schemas currently in the map.
+     */
+    public int size() {
+      expunge();
+      return map.size();
+    }
+
+    private void expunge() {
+      for (Object k = expunged.poll(); k != null; k = expunged.poll()) map.remove(k);
+    }
+
+    /** A weak reference to a schema, with equality based on the referent identity. */
+    private static class IdentityKey extends WeakReference<Schema> {
+      private final int hash;
+
+      IdentityKey(Schema schema, ReferenceQueue<Schema> queue) {
+        super(schema, queue);
+        this.hash = System.identityHashCode(schema);
+      }
+
+      @Override
+      public int hashCode() {
+        return hash;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+        if (this == o) return true;
+        Schema referent = get();
+        if (referent == null) return false;
+        if (o instanceof Lookup) return referent == ((Lookup) o).schema;
+        return o instanceof IdentityKey && referent == ((IdentityKey) o).get();
+      }
+    }
+
+    /** A strong key used to find an {@link IdentityKey}, equal to it while the schema exists. */
+    private static class Lookup {
+      private final Schema schema;
+
+      Lookup(Schema schema) {
+        this.schema = schema;
+      }
+
+      @Override
+      public int hashCode() {
+        return System.identityHashCode(schema);
+      }
+
+      @Override
+      public boolean equals(Object o) {
+        if (o instanceof IdentityKey) return schema == ((IdentityKey) o).get();
+        return o instanceof Lookup && schema == ((Lookup) o).schema;
+      }
+    }
+  }
+}
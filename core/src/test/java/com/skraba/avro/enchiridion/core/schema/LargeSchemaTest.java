@@ -0,0 +1,605 @@
+package com.skraba.avro.enchiridion.core.schema;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.skraba.avro.enchiridion.core.AvroUtil;
+import com.skraba.avro.enchiridion.resources.AvroNames;
+import com.skraba.avro.enchiridion.resources.AvroTestResources;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.JsonProperties;
+import org.apache.avro.LogicalType;
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.NameValidator;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaParseException;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests and helpers for parsing very large schemas.
+ *
+ * <p>The {@link Schema.Parser} reads the entire JSON text into a tree of {@link
+ * com.fasterxml.jackson.databind.JsonNode} before building the schema, which doubles the memory
+ * needed for schemas that are several megabytes of JSON. The {@link StreamingSchemaParser} builds
+ * the schema directly from the JSON tokens.
+ *
+ * <p>The {@link #main(String...)} method generates wide, deep and large enum schemas and compares
+ * the time and memory used by both parsers.
+ */
+public class LargeSchemaTest {
+
+  /** The namespace for all of the generated schemas. */
+  public static final String NS = "com.skraba.avro.enchiridion.large";
+
+  /**
+   * @param fields The number of fields in the record.
+   * @return A single record with many fields of different types, including the simple named types
+   *     from the {@link AvroTestResources}.
+   */
+  public static String wide(int fields) {
+    StringBuilder sb = new StringBuilder(fields * 64);
+    sb.append("{\"type\":\"record\",\"name\":\"Wide\",\"namespace\":\"").append(NS);
+    sb.append("\",\"fields\":[");
+    String[] named = {
+      AvroTestResources.SimpleEnum(),
+      AvroTestResources.SimpleFixed(),
+      AvroTestResources.SimpleRecord()
+    };
+    for (int i = 0; i < fields; i++) {
+      if (i > 0) sb.append(',');
+      sb.append("{\"name\":\"f").append(i).append("\",\"type\":");
+      switch (i % 8) {
+        case 0:
+          sb.append("\"long\"");
+          break;
+        case 1:
+          sb.append("\"string\",\"doc\":\"Field number ").append(i).append('"');
+          break;
+        case 2:
+          sb.append("[\"null\",\"string\"],\"default\":null");
+          break;
+        case 3:
+          sb.append("{\"type\":\"array\",\"items\":\"int\"},\"default\":[]");
+          break;
+        case 4:
+          sb.append("{\"type\":\"map\",\"values\":\"double\"}");
+          break;
+        default:
+          // The named types are defined the first time, and referred to by name after that.
+          int n = i % 8 - 5;
+          if (i < 8) sb.append(named[n]);
+          else sb.append('"').append(AvroUtil.api().parse(named[n]).getFullName()).append('"');
+      }
+      sb.append('}');
+    }
+    return sb.append("]}").toString();
+  }
+
+  /**
+   * @param depth The number of nested records.
+   * @return A record containing an optional record, containing an optional record, etc.
+   */
+  public static String deep(int depth) {
+    StringBuilder sb = new StringBuilder(depth * 128);
+    sb.append("{\"type\":\"record\",\"name\":\"Deep\",\"namespace\":\"").append(NS);
+    sb.append("\",\"fields\":[{\"name\":\"id\",\"type\":\"long\"},{\"name\":\"child\",\"type\":");
+    for (int i = 1; i < depth; i++) {
+      sb.append("[\"null\",{\"type\":\"record\",\"name\":\"Deep").append(i);
+      sb.append("\",\"fields\":[{\"name\":\"id\",\"type\":\"long\"},");
+      sb.append("{\"name\":\"tags\",\"type\":{\"type\":\"array\",\"items\":\"string\"}},");
+      sb.append("{\"name\":\"child\",\"type\":");
+    }
+    sb.append("\"null\"");
+    for (int i = 1; i < depth; i++) sb.append(",\"default\":null}]}],\"default\":null");
+    return sb.append("}]}").toString();
+  }
+
+  /**
+   * @param symbols The number of symbols in the enum.
+   * @return An enum with many symbols.
+   */
+  public static String bigEnum(int symbols) {
+    StringBuilder sb = new StringBuilder(symbols * 8);
+    sb.append("{\"type\":\"enum\",\"name\":\"Big\",\"namespace\":\"").append(NS);
+    sb.append("\",\"symbols\":[");
+    for (int i = 0; i < symbols; i++) {
+      if (i > 0) sb.append(',');
+      sb.append("\"S").append(i).append('"');
+    }
+    return sb.append("],\"default\":\"S0\"}").toString();
+  }
+
+  /** Check that the streaming parser creates exactly the same schema as the Avro parser. */
+  private static void assertSame(String json) {
+    Schema expected = new Schema.Parser().parse(json);
+    Schema actual = StreamingSchemaParser.parse(json);
+    assertThat(actual, is(expected));
+    assertThat(actual.toString(), is(expected.toString()));
+  }
+
+  @Test
+  public void testResources() {
+    assertSame(AvroTestResources.SimpleArray());
+    assertSame(AvroTestResources.SimpleEnum());
+    assertSame(AvroTestResources.SimpleFixed());
+    assertSame(AvroTestResources.SimpleMap());
+    assertSame(AvroTestResources.SimpleRecord());
+    assertSame(AvroTestResources.Recursive());
+    assertSame(AvroTestResources.RecursiveIndirect());
+    assertSame(AvroTestResources.Recipe());
+  }
+
+  @Test
+  public void testNames() {
+    for (String json : AvroNames.valids()) assertSame(json);
+    // Not all of the invalid names are rejected by the Avro parser, but both parsers agree.
+    for (String json : AvroNames.invalids()) {
+      try {
+        new Schema.Parser().parse(json);
+      } catch (SchemaParseException e) {
+        assertThrows(
+            SchemaParseException.class,
+            () -> StreamingSchemaParser.parse(json),
+            json + e.getMessage());
+        continue;
+      }
+      assertSame(json);
+    }
+  }
+
+  @Test
+  public void testGenerated() {
+    assertSame(wide(1000));
+    assertSame(deep(50));
+    assertSame(bigEnum(5000));
+    assertThat(StreamingSchemaParser.parse(wide(1000)).getFields().size(), is(1000));
+  }
+
+  @Test
+  public void testPropertiesAndDefaults() {
+    assertSame(
+        AvroUtil.qqify(
+            "{'type':'record','name':'R','namespace':'ns','doc':'Top','aliases':['Old'],"
+                + "'version':{'major':1,'tags':['a',null]},'fields':["
+                + "{'name':'d','type':{'type':'bytes','logicalType':'decimal',"
+                + "'precision':9,'scale':2},'order':'descending','aliases':['dd']},"
+                + "{'name':'t','type':{'type':'long','logicalType':'timestamp-millis'}},"
+                + "{'name':'x','type':'double','default':'NaN','user':[1,2.5,true]},"
+                + "{'name':'e','type':{'type':'enum','name':'E','symbols':['A','B'],"
+                + "'default':'B'},'default':'A'},"
+                + "{'name':'n','type':{'type':'record','name':'other.N','fields':["
+                + "{'name':'r','type':['null','ns.R'],'default':null}]}},"
+                + "{'name':'s','type':{'type':'string','avro.java.string':'String'}},"
+                + "{'name':'m','type':{'type':'map','values':'E'},'default':{'k':'A'}}]}"));
+  }
+
+  @Test
+  public void testDeferred() {
+    // The fields come before the name.
+    assertSame(
+        AvroUtil.qqify(
+            "{'fields':[{'name':'a','type':'int'}],'name':'R','namespace':'ns','type':'record'}"));
+    // The namespace comes after the fields that might need it.
+    assertSame(
+        AvroUtil.qqify(
+            "{'type':'record','name':'R','fields':[{'name':'a','type':"
+                + "{'type':'fixed','name':'F','size':1}}],'namespace':'ns'}"));
+    // A decimal without a scale.
+    assertSame(AvroUtil.qqify("{'type':'bytes','logicalType':'decimal','precision':9}"));
+    // Invalid schemas fail in the same way.
+    assertThrows(
+        SchemaParseException.class,
+        () -> StreamingSchemaParser.parse(AvroUtil.qqify("{'type':'record','name':'R'}")));
+    assertThrows(SchemaParseException.class, () -> StreamingSchemaParser.parse("{"));
+    // A short name isn't found in the null namespace from inside another namespace.
+    assertSameError(
+        AvroUtil.qqify(
+            "{'type':'record','name':'A','fields':[{'name':'b','type':{'type':'record',"
+                + "'name':'B','namespace':'ns','fields':[{'name':'a','type':'A'}]}}]}"));
+    // Nothing can come after the schema.
+    assertSameError(AvroUtil.qqify("{'type':'int'} trailing"));
+    assertSameError(AvroUtil.qqify("{'type':'int'} {'type':'int'}"));
+  }
+
+  private static void assertSameError(String json) {
+    AvroRuntimeException expected =
+        assertThrows(AvroRuntimeException.class, () -> new Schema.Parser().parse(json));
+    AvroRuntimeException actual =
+        assertThrows(AvroRuntimeException.class, () -> StreamingSchemaParser.parse(json));
+    assertThat(actual.getClass(), is(expected.getClass()));
+    assertThat(actual.getMessage(), is(expected.getMessage()));
+  }
+
+  /**
+   * Builds a {@link Schema} directly from the JSON tokens, without reading the text into a tree
+   * first.
+   *
+   * <p>Avro always writes the {@code type}, {@code name}, {@code namespace} and {@code doc} of a
+   * schema before its fields, items and values. When a document has these in a different order, or
+   * uses a feature that can't be built from the public API (like forward references, or decimals
+   * without a scale), the parse is deferred to a {@link Schema.Parser} to get exactly the same
+   * result.
+   */
+  public static class StreamingSchemaParser {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    /** Signals that the text must be parsed by a {@link Schema.Parser}. */
+    private static final RuntimeException DEFERRED = new Deferred();
+
+    private final JsonParser p;
+
+    /** All of the named schemas found so far, by their full name. */
+    private final Map<String, Schema> names = new HashMap<>();
+
+    private StreamingSchemaParser(JsonParser p) {
+      this.p = p;
+    }
+
+    /**
+     * @param json The JSON text of the schema.
+     * @return The schema, equal to the one parsed by {@link Schema.Parser#parse(String)}.
+     */
+    public static Schema parse(String json) {
+      try (JsonParser p = FACTORY.createParser(json)) {
+        p.nextToken();
+        Schema schema = new StreamingSchemaParser(p).schema(null);
+        // Anything after the schema is an error, reported by the parser.
+        if (p.nextToken() != null) throw DEFERRED;
+        return schema;
+      } catch (JsonParseException e) {
+        // The text might be invalid after the schema.
+        return new Schema.Parser().parse(json);
+      } catch (IOException e) {
+        throw new SchemaParseException(e);
+      } catch (RuntimeException e) {
+        if (e != DEFERRED) throw e;
+        return new Schema.Parser().parse(json);
+      }
+    }
+
+    /** Parse the schema starting at the current token. */
+    private Schema schema(String space) throws IOException {
+      JsonToken token = p.currentToken();
+      if (token == JsonToken.VALUE_STRING) return named(p.getText(), space);
+      if (token == JsonToken.START_ARRAY) {
+        List<Schema> types = new ArrayList<>();
+        while (p.nextToken() != JsonToken.END_ARRAY) types.add(schema(space));
+        return Schema.createUnion(types);
+      }
+      if (token == JsonToken.START_OBJECT) return object(space);
+      throw DEFERRED;
+    }
+
+    /** Find a primitive type, or a named type that has already been parsed. */
+    private Schema named(String name, String space) {
+      Schema.Type primitive = primitive(name);
+      if (primitive != null) return Schema.create(primitive);
+      // Like the Schema.Parser, a short name is only looked up in the enclosing namespace.
+      boolean qualify = space != null && !space.isEmpty() && name.indexOf('.') < 0;
+      Schema named = names.get(qualify ? space + "." + name : name);
+      if (named == null) throw DEFERRED;
+      return named;
+    }
+
+    private static Schema.Type primitive(String name) {
+      switch (name) {
+        case "null":
+        case "boolean":
+        case "int":
+        case "long":
+        case "float":
+        case "double":
+        case "bytes":
+        case "string":
+          return Schema.Type.valueOf(name.toUpperCase(Locale.ROOT));
+        default:
+          return null;
+      }
+    }
+
+    /** Parse a schema written as a JSON object, starting at the opening brace. */
+    private Schema object(String space) throws IOException {
+      String type = null;
+      String name = null;
+      String namespace = space;
+      String doc = null;
+      Schema record = null;
+      Schema items = null;
+      List<String> symbols = null;
+      String enumDefault = null;
+      Integer size = null;
+      List<String> aliases = null;
+      Map<String, Object> props = new LinkedHashMap<>();
+
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        String key = p.currentName();
+        p.nextToken();
+        switch (key) {
+          case "type":
+          case "name":
+          case "namespace":
+          case "doc":
+            // The record has already been created without these.
+            if (record != null) throw DEFERRED;
+            String text = text();
+            if (key.equals("type")) type = text;
+            else if (key.equals("name")) name = text;
+            else if (key.equals("namespace")) namespace = text;
+            else doc = text;
+            break;
+          case "fields":
+            if (type == null) throw DEFERRED;
+            if (!type.equals("record") && !type.equals("error")) {
+              p.skipChildren();
+              break;
+            }
+            if (name == null) throw DEFERRED;
+            record = Schema.createRecord(name, doc, namespace, type.equals("error"));
+            define(record);
+            record.setFields(fields(record.getNamespace()));
+            break;
+          case "items":
+          case "values":
+            if (type == null) throw DEFERRED;
+            if (type.equals(key.equals("items") ? "array" : "map")) items = schema(space);
+            else p.skipChildren();
+            break;
+          case "symbols":
+            symbols = texts();
+            break;
+          case "size":
+            if (!p.currentToken().isNumeric()) throw DEFERRED;
+            size = p.getIntValue();
+            break;
+          case "aliases":
+            aliases = texts();
+            break;
+          default:
+            if (key.equals("default") && "enum".equals(type)) enumDefault = text();
+            else props.put(key, value());
+        }
+      }
+
+      if (type == null) throw DEFERRED;
+      Schema result;
+      switch (type) {
+        case "record":
+        case "error":
+          if (record == null) throw DEFERRED;
+          result = record;
+          break;
+        case "enum":
+          if (name == null || symbols == null) throw DEFERRED;
+          if (props.containsKey("default")) throw DEFERRED;
+          result = define(Schema.createEnum(name, doc, namespace, symbols, enumDefault));
+          break;
+        case "fixed":
+          if (name == null || size == null) throw DEFERRED;
+          result = define(Schema.createFixed(name, doc, namespace, size));
+          break;
+        case "array":
+          if (items == null) throw DEFERRED;
+          result = Schema.createArray(items);
+          break;
+        case "map":
+          if (items == null) throw DEFERRED;
+          result = Schema.createMap(items);
+          break;
+        default:
+          Schema.Type primitive = primitive(type);
+          if (primitive == null) throw DEFERRED;
+          result = Schema.create(primitive);
+      }
+
+      for (Map.Entry<String, Object> e : props.entrySet()) result.addProp(e.getKey(), e.getValue());
+      if (aliases != null && isNamed(result)) for (String alias : aliases) result.addAlias(alias);
+      LogicalType lt = LogicalTypes.fromSchemaIgnoreInvalid(result);
+      if (lt != null) {
+        // Adding a decimal to the schema would also add a missing scale to the properties.
+        if (lt instanceof LogicalTypes.Decimal && result.getObjectProp("scale") == null)
+          throw DEFERRED;
+        lt.addToSchema(result);
+      }
+      return result;
+    }
+
+    private static boolean isNamed(Schema schema) {
+      Schema.Type t = schema.getType();
+      return t == Schema.Type.RECORD || t == Schema.Type.ENUM || t == Schema.Type.FIXED;
+    }
+
+    /** Add a named schema, so it can be referred to. */
+    private Schema define(Schema schema) {
+      // Like the Avro parser, check the namespace which isn't validated when creating the schema.
+      if (schema.getNamespace() != null) {
+        for (String part : schema.getNamespace().split("\\.", -1)) {
+          NameValidator.Result valid = NameValidator.UTF_VALIDATOR.validate(part);
+          if (!valid.isOK())
+            throw new SchemaParseException(
+                "Namespace part \"" + part + "\" is invalid: " + valid.getErrors());
+        }
+      }
+      if (names.putIfAbsent(schema.getFullName(), schema) != null)
+        throw new SchemaParseException("Can't redefine: " + schema.getFullName());
+      return schema;
+    }
+
+    /** Parse the fields of a record, starting at the opening bracket. */
+    private List<Schema.Field> fields(String space) throws IOException {
+      if (p.currentToken() != JsonToken.START_ARRAY) throw DEFERRED;
+      List<Schema.Field> fields = new ArrayList<>();
+      while (p.nextToken() == JsonToken.START_OBJECT) fields.add(field(space));
+      if (p.currentToken() != JsonToken.END_ARRAY) throw DEFERRED;
+      return fields;
+    }
+
+    /** Parse one field, starting at the opening brace. */
+    private Schema.Field field(String space) throws IOException {
+      String name = null;
+      Schema schema = null;
+      String doc = null;
+      Object defaultValue = null;
+      Schema.Field.Order order = Schema.Field.Order.ASCENDING;
+      List<String> aliases = null;
+      Map<String, Object> props = new LinkedHashMap<>();
+      while (p.nextToken() == JsonToken.FIELD_NAME) {
+        String key = p.currentName();
+        p.nextToken();
+        switch (key) {
+          case "name":
+            name = text();
+            break;
+          case "type":
+            schema = schema(space);
+            break;
+          case "doc":
+            doc = text();
+            break;
+          case "default":
+            defaultValue = value();
+            break;
+          case "order":
+            order = Schema.Field.Order.valueOf(text().toUpperCase(Locale.ROOT));
+            break;
+          case "aliases":
+            aliases = texts();
+            break;
+          default:
+            props.put(key, value());
+        }
+      }
+      if (name == null || schema == null) throw DEFERRED;
+
+      // Like the Avro parser, floating point defaults can be written as strings, like "NaN".
+      Schema.Type t = schema.getType();
+      if (defaultValue instanceof String && (t == Schema.Type.FLOAT || t == Schema.Type.DOUBLE))
+        defaultValue = Double.valueOf((String) defaultValue);
+
+      Schema.Field field = new Schema.Field(name, schema, doc, defaultValue, order);
+      for (Map.Entry<String, Object> e : props.entrySet()) field.addProp(e.getKey(), e.getValue());
+      if (aliases != null) for (String alias : aliases) field.addAlias(alias);
+      return field;
+    }
+
+    /**
+     * @return The current token as text.
+     */
+    private String text() throws IOException {
+      if (p.currentToken() != JsonToken.VALUE_STRING) throw DEFERRED;
+      return p.getText();
+    }
+
+    /**
+     * @return The current array of text values.
+     */
+    private List<String> texts() throws IOException {
+      if (p.currentToken() != JsonToken.START_ARRAY) throw DEFERRED;
+      List<String> texts = new ArrayList<>();
+      while (p.nextToken() != JsonToken.END_ARRAY) texts.add(text());
+      return texts;
+    }
+
+    /** Thrown without a stack trace, since it's always caught. */
+    private static class Deferred extends RuntimeException {
+      Deferred() {
+        super(null, null, false, false);
+      }
+    }
+
+    /**
+     * @return The current JSON value as the Java objects used for Avro properties and defaults.
+     */
+    private Object value() throws IOException {
+      switch (p.currentToken()) {
+        case START_OBJECT:
+          Map<String, Object> map = new LinkedHashMap<>();
+          while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String key = p.currentName();
+            p.nextToken();
+            map.put(key, value());
+          }
+          return map;
+        case START_ARRAY:
+          List<Object> list = new ArrayList<>();
+          while (p.nextToken() != JsonToken.END_ARRAY) list.add(value());
+          return list;
+        case VALUE_STRING:
+          return p.getText();
+        case VALUE_NUMBER_INT:
+        case VALUE_NUMBER_FLOAT:
+          Number n = p.getNumberValue();
+          if (n instanceof BigInteger) throw DEFERRED;
+          return n;
+        case VALUE_TRUE:
+          return true;
+        case VALUE_FALSE:
+          return false;
+        case VALUE_NULL:
+          return JsonProperties.NULL_VALUE;
+        default:
+          throw DEFERRED;
+      }
+    }
+  }
+
+  /**
+   * Compares the time and memory used to parse large generated schemas.
+   *
+   * @param args The number of fields or symbols (default 10000,100000), and the number of times to
+   *     parse each schema (default 5).
+   */
+  public static void main(String... args) {
+    String[] sizes = args.length > 0 ? args[0].split(",") : new String[] {"10000", "100000"};
+    int repeat = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    Map<String, Function<String, Schema>> parsers = new LinkedHashMap<>();
+    parsers.put("Schema.Parser", json -> new Schema.Parser().parse(json));
+    parsers.put("Streaming", StreamingSchemaParser::parse);
+
+    for (String size : sizes) {
+      int n = Integer.parseInt(size.trim());
+      Map<String, String> schemas = new LinkedHashMap<>();
+      schemas.put("wide(" + n + ")", wide(n));
+      // Each level of nesting uses five levels of JSON, under the Jackson limit of 1000.
+      schemas.put("deep(" + Math.min(n, 150) + ")", deep(Math.min(n, 150)));
+      schemas.put("bigEnum(" + n + ")", bigEnum(n));
+
+      for (Map.Entry<String, String> schema : schemas.entrySet()) {
+        for (Map.Entry<String, Function<String, Schema>> parser : parsers.entrySet()) {
+          // Warm up once before measuring.
+          parser.getValue().apply(schema.getValue());
+          long bytes = threads.getCurrentThreadAllocatedBytes();
+          long start = System.nanoTime();
+          for (int i = 0; i < repeat; i++) parser.getValue().apply(schema.getValue());
+          long nanos = (System.nanoTime() - start) / repeat;
+          bytes = (threads.getCurrentThreadAllocatedBytes() - bytes) / repeat;
+          System.out.printf(
+              "%-16s %-14s %8d chars %10.2f ms %10.2f MB allocated%n",
+              schema.getKey(),
+              parser.getKey(),
+              schema.getValue().length(),
+              nanos / 1e6,
+              bytes / 1e6);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,248 @@
+package com.skraba.avro.enchiridion.core.schema;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.skraba.avro.enchiridion.core.AvroUtil;
+import com.skraba.avro.enchiridion.core.schema.SchemaVisitorTest.SchemaVisitor;
+import com.skraba.avro.enchiridion.resources.AvroTestResources;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.SchemaParseException;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests and helpers for finding the named schemas in a schema by name or alias.
+ *
+ * <p>A {@link Schema} doesn't know about the named types that it contains, so finding one means
+ * walking the entire schema, keeping track of the enclosing namespaces (see {@link
+ * com.skraba.avro.enchiridion.core.extra.SimpleJiraTest#testAvro1965NestedRecordsAndNamespaces}). A
+ * {@link NameIndex} walks the schema once, and finds every named schema and field by its name or
+ * alias with a single lookup.
+ */
+public class NameIndexTest {
+
+  @Test
+  public void testNestedRecordsAndNamespaces() {
+    // The same schema as AVRO-1965: only the top level has a namespace.
+    Schema d = SchemaBuilder.builder().intType();
+    Schema c = SchemaBuilder.record("c").fields().name("d").type(d).noDefault().endRecord();
+    Schema b = SchemaBuilder.record("b").fields().name("c").type(c).noDefault().endRecord();
+    Schema a = SchemaBuilder.record("default.a").fields().name("b").type(b).noDefault().endRecord();
+
+    NameIndex index = NameIndex.of(a);
+    assertThat(index.names(), containsInAnyOrder("default.a", "b", "c"));
+    assertThat(index.get("default.a"), sameInstance(a));
+    assertThat(index.get("b"), sameInstance(b));
+    assertThat(index.get("default.b"), nullValue());
+
+    // Short references are only resolved in their namespace, like the Schema.Parser.
+    assertThat(index.resolve("a", "default"), sameInstance(a));
+    assertThat(index.resolve("c", "default"), nullValue());
+    assertThat(index.resolve("c", null), sameInstance(c));
+    assertThat(index.resolve("c", ""), sameInstance(c));
+    assertThat(index.resolve("default.a", "other"), sameInstance(a));
+    assertThat(index.resolve("a", null), nullValue());
+  }
+
+  @Test
+  public void testRecipe() {
+    Schema recipe = AvroUtil.api().parse(AvroTestResources.Recipe());
+    NameIndex index = NameIndex.of(recipe);
+    for (String name : index.names()) assertThat(index.get(name).getFullName(), is(name));
+
+    // Every named schema in the recipe is found.
+    Set<Schema> named = Collections.newSetFromMap(new IdentityHashMap<>());
+    SchemaVisitor.walk(
+        recipe,
+        s -> {
+          if (NameIndex.isNamed(s)) named.add(s);
+          return true;
+        });
+    assertThat(index.names().size(), is(named.size()));
+    for (Schema s : named) assertThat(index.get(s.getFullName()), sameInstance(s));
+  }
+
+  @Test
+  public void testAliases() {
+    Schema schema =
+        AvroUtil.api()
+            .parse(
+                AvroUtil.qqify(
+                    "{'type':'record','name':'ns.Current','aliases':['Old','other.Older'],"
+                        + "'fields':[{'name':'id','aliases':['key','pk'],'type':'long'},"
+                        + "{'name':'pk','type':'string'},"
+                        + "{'name':'e','type':{'type':'enum','name':'E','aliases':['Current'],"
+                        + "'symbols':['A']}}]}"));
+    NameIndex index = NameIndex.of(schema);
+    Schema e = schema.getField("e").schema();
+
+    assertThat(index.find("ns.Current"), sameInstance(schema));
+    assertThat(index.find("ns.Old"), sameInstance(schema));
+    assertThat(index.find("other.Older"), sameInstance(schema));
+    assertThat(index.get("ns.Old"), nullValue());
+    assertThat(index.isNameOrAlias(schema, "ns.Old"), is(true));
+    assertThat(index.isNameOrAlias(e, "ns.Old"), is(false));
+    assertThat(index.isNameOrAlias(e, "ns.Current"), is(true));
+
+    // Fields are found by name first, and then by alias.
+    assertThat(index.field(schema, "id"), sameInstance(schema.getField("id")));
+    assertThat(index.field(schema, "key"), sameInstance(schema.getField("id")));
+    assertThat(index.field(schema, "pk"), sameInstance(schema.getField("pk")));
+    assertThat(index.field(schema, "missing"), nullValue());
+  }
+
+  @Test
+  public void testRedefined() {
+    Schema r1 = SchemaBuilder.record("R").fields().requiredInt("i").endRecord();
+    Schema r2 = SchemaBuilder.record("R").fields().requiredLong("l").endRecord();
+    Schema twice =
+        SchemaBuilder.record("Outer")
+            .fields()
+            .name("a")
+            .type(r1)
+            .noDefault()
+            .name("b")
+            .type(r2)
+            .noDefault()
+            .endRecord();
+    assertThrows(SchemaParseException.class, () -> NameIndex.of(twice));
+
+    // An equal copy of the same schema is allowed, and the first is used.
+    Schema copy = SchemaBuilder.record("R").fields().requiredInt("i").endRecord();
+    Schema equal =
+        SchemaBuilder.record("Outer")
+            .fields()
+            .name("a")
+            .type(r1)
+            .noDefault()
+            .name("b")
+            .type(copy)
+            .noDefault()
+            .endRecord();
+    assertThat(NameIndex.of(equal).get("R"), sameInstance(r1));
+  }
+
+  /**
+   * Finds the named schemas in a schema by their full names and aliases, and the fields of its
+   * records by their names and aliases.
+   *
+   * <p>The schema is walked once when the index is created, and isn't modified. Like the {@link
+   * Schema.Parser}, a name can't be used by two different schemas.
+   */
+  public static class NameIndex {
+
+    /** The named schemas by their full names. */
+    private final Map<String, Schema> names = new HashMap<>();
+
+    /** The named schemas by their full aliases. */
+    private final Map<String, Schema> aliases = new HashMap<>();
+
+    /** For each record, the fields by their names and then aliases. */
+    private final Map<Schema, Map<String, Schema.Field>> fields = new IdentityHashMap<>();
+
+    private NameIndex() {}
+
+    /**
+     * @param root The schema to index.
+     * @return An index of all the named schemas and record fields in the schema.
+     * @throws SchemaParseException if two different schemas have the same name.
+     */
+    public static NameIndex of(Schema root) {
+      NameIndex index = new NameIndex();
+      SchemaVisitor.walk(root, index::add);
+      return index;
+    }
+
+    private boolean add(Schema schema) {
+      if (!isNamed(schema)) return true;
+      Schema existing = names.putIfAbsent(schema.getFullName(), schema);
+      if (existing != null) {
+        if (!existing.equals(schema))
+          throw new SchemaParseException("Can't redefine: " + schema.getFullName());
+        return false;
+      }
+      for (String alias : schema.getAliases()) aliases.putIfAbsent(alias, schema);
+
+      if (schema.getType() == Schema.Type.RECORD) {
+        Map<String, Schema.Field> byName = new HashMap<>();
+        for (Schema.Field f : schema.getFields()) byName.put(f.name(), f);
+        for (Schema.Field f : schema.getFields())
+          for (String alias : f.aliases()) byName.putIfAbsent(alias, f);
+        fields.put(schema, byName);
+      }
+      return true;
+    }
+
+    /**
+     * @return True if the schema is a record, enum or fixed.
+     */
+    public static boolean isNamed(Schema schema) {
+      Schema.Type t = schema.getType();
+      return t == Schema.Type.RECORD || t == Schema.Type.ENUM || t == Schema.Type.FIXED;
+    }
+
+    /**
+     * @return The full names of all the named schemas.
+     */
+    public Set<String> names() {
+      return Collections.unmodifiableSet(names.keySet());
+    }
+
+    /**
+     * @return The named schema with exactly this full name, or null if there isn't one.
+     */
+    public Schema get(String fullName) {
+      return names.get(fullName);
+    }
+
+    /**
+     * @return The named schema with this full name, or with this full name as an alias, or null if
+     *     there isn't one.
+     */
+    public Schema find(String fullName) {
+      Schema schema = names.get(fullName);
+      return schema != null ? schema : aliases.get(fullName);
+    }
+
+    /**
+     * Finds a reference to a named schema the same way as the {@link Schema.Parser}.
+     *
+     * @param name The name used in the reference.
+     * @param namespace The namespace where the reference was used.
+     * @return The named schema, or null if there isn't one.
+     */
+    public Schema resolve(String name, String namespace) {
+      // A short name is never looked up in the null namespace from inside another namespace.
+      if (namespace != null && !namespace.isEmpty() && name.indexOf('.') < 0)
+        return names.get(namespace + "." + name);
+      return names.get(name);
+    }
+
+    /**
+     * @return True if the full name is the name or an alias of the named schema.
+     */
+    public boolean isNameOrAlias(Schema named, String fullName) {
+      return named.getFullName().equals(fullName) || aliases.get(fullName) == named;
+    }
+
+    /**
+     * @param record A record in the indexed schema.
+     * @param name The name or alias of the field.
+     * @return The field with that name, or with that alias if no field has the name, or null.
+     */
+    public Schema.Field field(Schema record, String name) {
+      Map<String, Schema.Field> byName = fields.get(record);
+      return byName == null ? record.getField(name) : byName.get(name);
+    }
+  }
+}
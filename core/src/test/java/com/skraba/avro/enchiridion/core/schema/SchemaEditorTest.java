@@ -0,0 +1,521 @@
+package com.skraba.avro.enchiridion.core.schema;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.skraba.avro.enchiridion.core.AvroUtil;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.SchemaCompatibility;
+import org.apache.avro.SchemaCompatibility.SchemaCompatibilityType;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests and helpers for editing the fields of a schema.
+ *
+ * <p>As shown in {@link SchemaManipulationTest}, a schema can't be modified once its fields are
+ * set, so adding a field means creating a new record with a copy of every field. A {@link
+ * SchemaEditor} does this for the records on the path to the edited field, and shares every other
+ * subschema with the original.
+ */
+public class SchemaEditorTest {
+
+  private static final Schema PERSON =
+      AvroUtil.api()
+          .parse(
+              AvroUtil.qqify(
+                  "{'type':'record','name':'Person','namespace':'com.example','doc':'Someone',"
+                      + "'version':3,'fields':["
+                      + "{'name':'id','type':'long'},"
+                      + "{'name':'name','type':['null','string'],'default':null},"
+                      + "{'name':'address','type':['null',{'type':'record','name':'Address',"
+                      + "'fields':[{'name':'street','type':'string'},"
+                      + "{'name':'geo','type':{'type':'record','name':'Geo','fields':["
+                      + "{'name':'lat','type':'double'},{'name':'lon','type':'double'}]}}]}],"
+                      + "'default':null},"
+                      + "{'name':'phones','type':{'type':'array','items':{'type':'record',"
+                      + "'name':'Phone','fields':[{'name':'number','type':'string'}]}}}]}"));
+
+  @Test
+  public void testAddField() {
+    SchemaEditor editor = SchemaEditor.of(PERSON);
+    SchemaEditor added =
+        editor.addField("", new Schema.Field("age", Schema.create(Schema.Type.INT), null, 0));
+    Schema edited = added.getSchema();
+
+    // The original is unchanged, and the new schema is a valid evolution.
+    assertThat(editor.getSchema(), sameInstance(PERSON));
+    assertThat(PERSON.getFields(), hasSize(4));
+    assertThat(edited.getFields(), hasSize(5));
+    assertThat(edited.getField("age").pos(), is(4));
+    assertThat(edited.getDoc(), is("Someone"));
+    assertThat(edited.getObjectProp("version"), is(3));
+    assertThat(
+        SchemaCompatibility.checkReaderWriterCompatibility(edited, PERSON).getType(),
+        is(SchemaCompatibilityType.COMPATIBLE));
+
+    // All of the existing field schemas are shared.
+    for (Schema.Field f : PERSON.getFields())
+      assertThat(edited.getField(f.name()).schema(), sameInstance(f.schema()));
+
+    // The schema can be reparsed.
+    assertThat(new Schema.Parser().parse(edited.toString()), is(edited));
+  }
+
+  @Test
+  public void testEditNested() {
+    Schema edited =
+        SchemaEditor.of(PERSON)
+            .addField(
+                "address.geo",
+                new Schema.Field("alt", Schema.create(Schema.Type.DOUBLE), null, 0.0))
+            .getSchema();
+
+    // Only the records on the path are copied.
+    Schema address = edited.getField("address").schema().getTypes().get(1);
+    Schema geo = address.getField("geo").schema();
+    assertThat(geo.getFields(), hasSize(3));
+    assertThat(geo.getField("lat").schema(), sameInstance(getGeo(PERSON).getField("lat").schema()));
+    assertThat(
+        address.getField("street").schema(),
+        sameInstance(getAddress(PERSON).getField("street").schema()));
+    assertThat(
+        edited.getField("phones").schema(), sameInstance(PERSON.getField("phones").schema()));
+    assertThat(edited.getField("name").schema(), sameInstance(PERSON.getField("name").schema()));
+    assertThat(new Schema.Parser().parse(edited.toString()), is(edited));
+
+    // Arrays are followed to their records.
+    edited =
+        SchemaEditor.of(PERSON)
+            .addField(
+                "phones", new Schema.Field("kind", Schema.create(Schema.Type.STRING), null, "home"))
+            .getSchema();
+    assertThat(
+        edited.getField("phones").schema().getElementType().getFields().get(1).name(), is("kind"));
+  }
+
+  @Test
+  public void testRemoveRenameRetype() {
+    Schema edited =
+        SchemaEditor.of(PERSON)
+            .removeField("phones")
+            .renameField("name", "fullName")
+            .renameField("address.geo.lat", "latitude")
+            .retype("id", Schema.create(Schema.Type.DOUBLE))
+            .getSchema();
+
+    assertThat(edited.getField("phones"), is((Schema.Field) null));
+    assertThat(edited.getField("fullName").aliases(), contains("name"));
+    assertThat(edited.getField("fullName").pos(), is(1));
+    assertThat(getGeo(edited).getField("latitude").aliases(), contains("lat"));
+    assertThat(edited.getField("id").schema().getType(), is(Schema.Type.DOUBLE));
+
+    // Data written with the original can still be read.
+    assertThat(
+        SchemaCompatibility.checkReaderWriterCompatibility(edited, PERSON).getType(),
+        is(SchemaCompatibilityType.COMPATIBLE));
+
+    // Renaming twice keeps all of the aliases.
+    Schema twice = SchemaEditor.of(edited).renameField("fullName", "displayName").getSchema();
+    assertThat(twice.getField("displayName").aliases(), containsInAnyOrder("name", "fullName"));
+
+    // A default that doesn't match the new type is an error.
+    assertThrows(
+        AvroTypeException.class,
+        () -> SchemaEditor.of(PERSON).retype("name", Schema.create(Schema.Type.STRING)));
+    assertThrows(AvroRuntimeException.class, () -> SchemaEditor.of(PERSON).removeField("nope"));
+    assertThrows(AvroRuntimeException.class, () -> SchemaEditor.of(PERSON).removeField("id.nope"));
+  }
+
+  @Test
+  public void testRecursive() {
+    Schema node =
+        AvroUtil.api()
+            .parse(
+                AvroUtil.qqify(
+                    "{'type':'record','name':'Node','fields':["
+                        + "{'name':'value','type':'int'},"
+                        + "{'name':'next','type':['null','Node'],'default':null}]}"));
+    Schema edited =
+        SchemaEditor.of(node)
+            .addField("", new Schema.Field("label", Schema.create(Schema.Type.STRING), null, ""))
+            .getSchema();
+    assertThat(edited.getField("next").schema().getTypes().get(1), sameInstance(edited));
+    assertThat(new Schema.Parser().parse(edited.toString()), is(edited));
+  }
+
+  @Test
+  public void testManyFields() {
+    SchemaBuilder.FieldAssembler<Schema> fa = SchemaBuilder.record("Wide").fields();
+    for (int i = 0; i < 2000; i++) fa = fa.optionalString("f" + i);
+    Schema wide = fa.endRecord();
+
+    SchemaEditor editor = SchemaEditor.of(wide);
+    for (int i = 0; i < 2000; i += 10) editor = editor.renameField("f" + i, "g" + i);
+    Schema edited = editor.getSchema();
+    assertThat(edited.getFields(), hasSize(2000));
+    assertThat(edited.getField("g990").aliases(), contains("f990"));
+    assertThat(edited.getField("f991").schema(), sameInstance(wide.getField("f991").schema()));
+  }
+
+  @Test
+  public void testReusedRecord() {
+    Schema schema =
+        AvroUtil.api()
+            .parse(
+                AvroUtil.qqify(
+                    "{'type':'record','name':'Person','fields':["
+                        + "{'name':'home','type':{'type':'record','name':'Addr','fields':["
+                        + "{'name':'street','type':'string'}]}},"
+                        + "{'name':'work','type':'Addr'}]}"));
+    SchemaEditor editor = SchemaEditor.of(schema);
+    Schema.Field zip = new Schema.Field("zip", Schema.create(Schema.Type.STRING), null, "");
+
+    // Editing only one of the references would change the meaning of the other.
+    AvroRuntimeException e =
+        assertThrows(AvroRuntimeException.class, () -> editor.addField("home", zip));
+    assertThat(e.getMessage(), is("Can't edit Addr, it is used more than once in the schema"));
+    assertThrows(AvroRuntimeException.class, () -> editor.removeField("work.street"));
+
+    // But the record that contains it can be edited.
+    Schema edited = editor.addField("", zip).getSchema();
+    assertThat(new Schema.Parser().parse(edited.toString()), is(edited));
+
+    // Once the other reference is removed, the record can be edited.
+    SchemaEditor homeOnly = editor.removeField("work");
+    edited = homeOnly.addField("home", zip).getSchema();
+    assertThat(edited.getField("home").schema().getFields(), hasSize(2));
+    assertThrows(AvroRuntimeException.class, () -> editor.addField("home", zip));
+
+    // And a new reference prevents it again.
+    Schema addr = homeOnly.getSchema().getField("home").schema();
+    SchemaEditor again = homeOnly.addField("", new Schema.Field("other", addr));
+    assertThrows(AvroRuntimeException.class, () -> again.addField("home", zip));
+    assertThat(again.removeField("other").addField("home", zip).getSchema(), is(edited));
+  }
+
+  private static Schema getAddress(Schema person) {
+    return person.getField("address").schema().getTypes().get(1);
+  }
+
+  private static Schema getGeo(Schema person) {
+    return getAddress(person).getField("geo").schema();
+  }
+
+  /**
+   * An immutable view of a schema with methods to edit its fields.
+   *
+   * <p>Each edit returns a new editor, and leaves the original schema and editor untouched. The
+   * field is found by a path of field names separated by dots, from the top-level record. The path
+   * follows arrays, maps and unions to the only record that they contain.
+   *
+   * <p>Every record on the path is copied with shallow copies of its fields, since Avro doesn't
+   * allow a field to belong to two records. All of the other subschemas are shared with the
+   * original. A record on the path that refers to itself (directly, or through a union, array or
+   * map) is updated to refer to its copy. A record on the path that is reused elsewhere in the
+   * schema or that is indirectly recursive can't be edited, since the other references would still
+   * use the original definition under the same name.
+   *
+   * <p>The references to each record are counted once by {@link #of(Schema)}, and each edit only
+   * updates the counts for the records that it copies, adds or removes. The cost of an edit is the
+   * width of the records on the path, and not the size of the schema.
+   */
+  public static class SchemaEditor {
+
+    private final Schema schema;
+
+    /** The number of references to each record in the schema, counted once for the root. */
+    private final References references;
+
+    private SchemaEditor(Schema schema, References references) {
+      this.schema = schema;
+      this.references = references;
+    }
+
+    /**
+     * @param schema The top-level record to edit.
+     * @return An editor for the schema.
+     */
+    public static SchemaEditor of(Schema schema) {
+      References references = new References(null);
+      count(schema, null, 1, references);
+      return new SchemaEditor(schema, references);
+    }
+
+    /**
+     * @return The edited schema.
+     */
+    public Schema getSchema() {
+      return schema;
+    }
+
+    /**
+     * @param recordPath The path to the record, or an empty string for the top-level record.
+     * @param field The field to add at the end of the record. It is copied, so it can be reused.
+     * @return An editor with the new field.
+     */
+    public SchemaEditor addField(String recordPath, Schema.Field field) {
+      String[] path = recordPath.isEmpty() ? new String[0] : recordPath.split("\\.");
+      return edit(
+          path,
+          0,
+          fields -> {
+            fields.add(new Schema.Field(field, field.schema()));
+            return fields;
+          });
+    }
+
+    /**
+     * @param fieldPath The path to the field to remove.
+     * @return An editor without the field.
+     */
+    public SchemaEditor removeField(String fieldPath) {
+      return editField(fieldPath, f -> null);
+    }
+
+    /**
+     * @param fieldPath The path to the field to rename.
+     * @param name The new name of the field. The old name is added as an alias.
+     * @return An editor with the renamed field.
+     */
+    public SchemaEditor renameField(String fieldPath, String name) {
+      return editField(
+          fieldPath,
+          f -> {
+            Schema.Field renamed =
+                new Schema.Field(name, f.schema(), f.doc(), f.defaultVal(), f.order());
+            for (Map.Entry<String, Object> e : f.getObjectProps().entrySet())
+              renamed.addProp(e.getKey(), e.getValue());
+            for (String alias : f.aliases()) renamed.addAlias(alias);
+            renamed.addAlias(f.name());
+            return renamed;
+          });
+    }
+
+    /**
+     * @param fieldPath The path to the field to change.
+     * @param type The new schema for the field. The default must still be valid.
+     * @return An editor with the changed field.
+     */
+    public SchemaEditor retype(String fieldPath, Schema type) {
+      return editField(fieldPath, f -> new Schema.Field(f, type));
+    }
+
+    /** Apply the function to one field, which returns its replacement or null to remove it. */
+    private SchemaEditor editField(String fieldPath, Function<Schema.Field, Schema.Field> fn) {
+      String[] path = fieldPath.split("\\.");
+      String name = path[path.length - 1];
+      return edit(
+          path,
+          1,
+          fields -> {
+            for (int i = 0; i < fields.size(); i++) {
+              if (fields.get(i).name().equals(name)) {
+                Schema.Field replacement = fn.apply(fields.get(i));
+                if (replacement == null) fields.remove(i);
+                else fields.set(i, replacement);
+                return fields;
+              }
+            }
+            throw new AvroRuntimeException("No field " + String.join(".", path));
+          });
+    }
+
+    /**
+     * Copy the top-level record and the records on the path below it.
+     *
+     * @param path The path of field names to the record to change.
+     * @param ignored The number of names at the end of the path that aren't followed.
+     * @param change Changes the list of copied fields in the last record.
+     * @return An editor for the copied record.
+     */
+    private SchemaEditor edit(
+        String[] path, int ignored, UnaryOperator<List<Schema.Field>> change) {
+      References edited = new References(references);
+      return new SchemaEditor(edit(schema, path, 0, path.length - ignored, change, edited), edited);
+    }
+
+    /**
+     * Add the delta to the count of every record referred to by the schema, except for the
+     * references from a record to itself. The references from a record that is added to or removed
+     * from the schema are counted too.
+     */
+    private static void count(Schema schema, Schema owner, int delta, References references) {
+      switch (schema.getType()) {
+        case RECORD:
+          if (schema == owner) return;
+          int before = references.get(schema);
+          references.put(schema, before + delta);
+          if (before == 0 || before + delta == 0)
+            for (Schema.Field f : schema.getFields()) count(f.schema(), schema, delta, references);
+          break;
+        case ARRAY:
+          count(schema.getElementType(), owner, delta, references);
+          break;
+        case MAP:
+          count(schema.getValueType(), owner, delta, references);
+          break;
+        case UNION:
+          for (Schema s : schema.getTypes()) count(s, owner, delta, references);
+          break;
+        default:
+      }
+    }
+
+    private static Schema edit(
+        Schema record,
+        String[] path,
+        int depth,
+        int end,
+        UnaryOperator<List<Schema.Field>> change,
+        References references) {
+      if (references.get(record) > 1)
+        throw new AvroRuntimeException(
+            "Can't edit " + record.getFullName() + ", it is used more than once in the schema");
+
+      Schema copy =
+          Schema.createRecord(
+              record.getName(), record.getDoc(), record.getNamespace(), record.isError());
+      for (String alias : record.getAliases()) copy.addAlias(alias);
+      for (Map.Entry<String, Object> e : record.getObjectProps().entrySet())
+        copy.addProp(e.getKey(), e.getValue());
+
+      // Shallow copies of the fields, pointing to the copy instead of the original record.
+      List<Schema.Field> fields = new ArrayList<>(record.getFields().size() + 1);
+      for (Schema.Field f : record.getFields())
+        fields.add(new Schema.Field(f, replace(f.schema(), record, copy)));
+
+      references.put(copy, references.get(record));
+
+      if (depth == end) {
+        // Only the references from the fields that were removed or added change.
+        Set<Schema.Field> before = Collections.newSetFromMap(new IdentityHashMap<>());
+        before.addAll(fields);
+        fields = change.apply(fields);
+        Set<Schema.Field> after = Collections.newSetFromMap(new IdentityHashMap<>());
+        after.addAll(fields);
+        for (Schema.Field f : before)
+          if (!after.contains(f)) count(f.schema(), copy, -1, references);
+        for (Schema.Field f : after)
+          if (!before.contains(f)) count(f.schema(), copy, 1, references);
+      } else {
+        Schema.Field f = record.getField(path[depth]);
+        Schema child = f == null ? null : findRecord(f.schema());
+        if (child == null)
+          throw new AvroRuntimeException(
+              "No record at " + String.join(".", Arrays.copyOf(path, depth + 1)));
+        Schema editedChild = edit(child, path, depth + 1, end, change, references);
+        Schema.Field old = fields.get(f.pos());
+        fields.set(f.pos(), new Schema.Field(old, replace(old.schema(), child, editedChild)));
+      }
+      copy.setFields(fields);
+      return copy;
+    }
+
+    /**
+     * The reference counts of an edited schema, as the changes to the counts of the schema it was
+     * edited from. Each edit only adds the counts for the records that it copied, added or removed.
+     */
+    private static class References {
+
+      private final References parent;
+
+      private final Map<Schema, Integer> counts = new IdentityHashMap<>();
+
+      References(References parent) {
+        this.parent = parent;
+      }
+
+      /**
+       * @return The number of references to the record, or 0 if it isn't in the schema.
+       */
+      int get(Schema record) {
+        for (References r = this; r != null; r = r.parent) {
+          Integer count = r.counts.get(record);
+          if (count != null) return count;
+        }
+        return 0;
+      }
+
+      void put(Schema record, int count) {
+        counts.put(record, count);
+      }
+    }
+
+    /**
+     * @return The only record in the schema, following arrays, maps and unions, or null if there
+     *     isn't exactly one.
+     */
+    private static Schema findRecord(Schema schema) {
+      switch (schema.getType()) {
+        case RECORD:
+          return schema;
+        case ARRAY:
+          return findRecord(schema.getElementType());
+        case MAP:
+          return findRecord(schema.getValueType());
+        case UNION:
+          Schema found = null;
+          for (Schema s : schema.getTypes()) {
+            Schema r = findRecord(s);
+            if (r != null && found != null) return null;
+            if (r != null) found = r;
+          }
+          return found;
+        default:
+          return null;
+      }
+    }
+
+    /**
+     * @return The schema with the original record replaced, following arrays, maps and unions. If
+     *     the record isn't found, the same schema instance.
+     */
+    private static Schema replace(Schema schema, Schema original, Schema replacement) {
+      if (schema == original) return replacement;
+      Schema copy;
+      switch (schema.getType()) {
+        case ARRAY:
+          Schema items = replace(schema.getElementType(), original, replacement);
+          if (items == schema.getElementType()) return schema;
+          copy = Schema.createArray(items);
+          break;
+        case MAP:
+          Schema values = replace(schema.getValueType(), original, replacement);
+          if (values == schema.getValueType()) return schema;
+          copy = Schema.createMap(values);
+          break;
+        case UNION:
+          List<Schema> types = new ArrayList<>(schema.getTypes().size());
+          boolean changed = false;
+          for (Schema s : schema.getTypes()) {
+            Schema t = replace(s, original, replacement);
+            changed |= t != s;
+            types.add(t);
+          }
+          return changed ? Schema.createUnion(types) : schema;
+        default:
+          return schema;
+      }
+      for (Map.Entry<String, Object> e : schema.getObjectProps().entrySet())
+        copy.addProp(e.getKey(), e.getValue());
+      return copy;
+    }
+  }
+}
@@ -3,27 +3,53 @@ package com.skraba.avro.enchiridion.core.schema;
 import static com.skraba.avro.enchiridion.core.SerializeToBytesTest.roundTripBytes;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.skraba.avro.enchiridion.core.AvroUtil;
+import com.skraba.avro.enchiridion.core.SerializeToBytesTest;
+import com.skraba.avro.enchiridion.core.UnionDispatchTest.UnionDispatch;
+import com.skraba.avro.enchiridion.core.schema.BinaryIdentityTest.BinaryIdentity;
+import com.skraba.avro.enchiridion.core.schema.FingerprintCacheTest.WeakSchemaMap;
 import com.skraba.avro.enchiridion.resources.AvroTestResources;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.AbstractList;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import org.apache.avro.AvroRuntimeException;
 import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericContainer;
 import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericEnumSymbol;
 import org.apache.avro.generic.GenericFixed;
 import org.apache.avro.generic.GenericRecord;
 import org.apache.avro.generic.GenericRecordBuilder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.io.EncoderFactory;
 import org.apache.avro.util.RandomData;
 import org.junit.jupiter.api.Test;
 
@@ -43,8 +69,9 @@ import org.junit.jupiter.api.Test;
  * instance over top of the existing data. The facade instances are "lazy" and created on every
  * access demand.
  *
- * <p>For deeply, deeply nested, complicated schemas, or data that is frequently read, it would be
- * worthwhile caching the facades internally.
+ * <p>For deeply, deeply nested, complicated schemas, or data that is frequently read, {@link
+ * SchemaFacade#cached} remembers the facades in a {@link FacadeCache} instead of creating them on
+ * every access.
  *
  * <p>The facades are not modifiable.
  */
@@ -134,6 +161,294 @@ public class SchemaFacadeTest {
     }
   }
 
+  @Test
+  public void wrapCachedRecord() {
+    Schema original = AvroUtil.api().parse(AvroTestResources.Recipe());
+    Schema annotated =
+        addSomeAnnotations(
+            new HashSet<>(), AvroUtil.api().parse(AvroTestResources.Recipe()), ".", true);
+
+    FacadeCache cache = new FacadeCache(1000);
+    for (Object datum : new RandomData(original, 20, 0L)) {
+      GenericRecord record = (GenericRecord) datum;
+      GenericRecord facade = cache.of(record, annotated);
+      assertThat(cache.of(record, annotated), sameInstance(facade));
+      assertTrue(GenericData.get().validate(annotated, facade));
+      GenericRecord roundTrip = roundTripBytes(annotated, facade);
+      assertThat(GenericData.get().compare(roundTrip, facade, annotated), is(0));
+
+      // Reading the same field twice returns the same facade, as well as its children.
+      List<?> steps = (List<?>) facade.get("steps");
+      assertThat(facade.get("steps"), sameInstance(steps));
+      assertThat(facade.get(record.getSchema().getField("steps").pos()), sameInstance(steps));
+      for (int i = 0; i < steps.size(); i++) {
+        GenericRecord step = (GenericRecord) steps.get(i);
+        assertThat(steps.get(i), sameInstance(step));
+        assertThat(step.getSchema(), sameInstance(annotated));
+      }
+    }
+    assertThat(cache.getHits() > 0, is(true));
+  }
+
+  @Test
+  public void wrapCachedChangedDelegate() {
+    Schema original = AvroUtil.api().parse(AvroTestResources.Recipe());
+    Schema annotated =
+        addSomeAnnotations(
+            new HashSet<>(), AvroUtil.api().parse(AvroTestResources.Recipe()), ".", true);
+    GenericRecord record = (GenericRecord) new RandomData(original, 1, 0L).iterator().next();
+    GenericRecord facade = SchemaFacade.cached(record, annotated);
+    Object steps = facade.get("steps");
+
+    // When the delegate is modified, the facade follows it.
+    record.put("steps", new GenericData.Array<>(0, original.getField("steps").schema()));
+    assertThat(facade.get("steps"), is(not(sameInstance(steps))));
+    assertThat(((List<?>) facade.get("steps")).size(), is(0));
+  }
+
+  @Test
+  public void testFacadeCacheEviction() {
+    Schema schema = SchemaBuilder.array().items().longType();
+    FacadeCache cache = new FacadeCache(2);
+    List<List<Long>> lists = new ArrayList<>();
+    List<Object> facades = new ArrayList<>();
+    for (long i = 0; i < 3; i++) {
+      lists.add(new ArrayList<>(Collections.singletonList(i)));
+      facades.add(cache.of(lists.get((int) i), schema));
+    }
+    assertThat(cache.size(), is(2));
+    assertThat(cache.getEvictions(), is(1L));
+    assertThat(cache.getMisses(), is(3L));
+
+    // The most recent are still there, but the oldest is recreated.
+    assertThat(cache.of(lists.get(2), schema), sameInstance(facades.get(2)));
+    assertThat(cache.of(lists.get(0), schema), is(not(sameInstance(facades.get(0)))));
+    assertThat(cache.of(lists.get(0), schema), is(facades.get(0)));
+  }
+
+  /** Serialize the datum with the writer. */
+  private static byte[] write(FacadeDatumWriter<Object> writer, Object datum) {
+    try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+      Encoder encoder = EncoderFactory.get().binaryEncoder(baos, null);
+      writer.write(datum, encoder);
+      encoder.flush();
+      return baos.toByteArray();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** A writer that counts the facades that are written as records. */
+  private static FacadeDatumWriter<Object> countingWriter(Schema schema, int[] facades) {
+    return new FacadeDatumWriter<Object>(schema) {
+      @Override
+      protected void writeRecord(Schema schema, Object datum, Encoder out) throws IOException {
+        if (datum instanceof SchemaFacade.WrapsDelegate) facades[0]++;
+        super.writeRecord(schema, datum, out);
+      }
+    };
+  }
+
+  @Test
+  public void writeFacadeDelegate() {
+    Schema original = AvroUtil.api().parse(AvroTestResources.Recipe());
+    Schema annotated =
+        addSomeAnnotations(
+            new HashSet<>(), AvroUtil.api().parse(AvroTestResources.Recipe()), ".", true);
+    int[] facades = {0};
+    FacadeDatumWriter<Object> writer = countingWriter(annotated, facades);
+
+    for (Object record : new RandomData(original, 20, 0L)) {
+      GenericRecord facade = SchemaFacade.of((GenericRecord) record, annotated);
+      byte[] expected = SerializeToBytesTest.toBytes(original, record);
+      assertThat(write(writer, facade), is(expected));
+      assertThat(SerializeToBytesTest.toBytes(annotated, facade), is(expected));
+
+      // The nested facades are also written directly.
+      List<?> steps = (List<?>) facade.get("steps");
+      FacadeDatumWriter<Object> stepsWriter =
+          countingWriter(annotated.getField("steps").schema(), facades);
+      assertThat(
+          write(stepsWriter, steps),
+          is(
+              SerializeToBytesTest.toBytes(
+                  original.getField("steps").schema(), ((GenericRecord) record).get("steps"))));
+    }
+    assertThat(facades[0], is(0));
+
+    // Once the schemas have been seen, the canonical forms are never compared again.
+    BinaryIdentity identity = new BinaryIdentity(100);
+    FacadeDatumWriter<Object> cached =
+        new FacadeDatumWriter<>(annotated, GenericData.get(), identity);
+    List<Object> wrapped = new ArrayList<>();
+    for (Object record : new RandomData(original, 20, 0L))
+      wrapped.add(SchemaFacade.of((GenericRecord) record, annotated));
+    for (Object facade : wrapped) write(cached, facade);
+    long compared = identity.getCompared();
+    for (Object facade : wrapped) write(cached, facade);
+    assertThat(identity.getCompared(), is(compared));
+  }
+
+  @Test
+  public void writeFacadeWithDifferentSchema() {
+    // A facade with a different name can't be replaced by its delegate.
+    Schema renamed =
+        SchemaBuilder.record("Renamed")
+            .fields()
+            .requiredLong("id")
+            .requiredString("name")
+            .endRecord();
+    GenericRecord original =
+        new GenericRecordBuilder(SIMPLE).set("id", 1L).set("name", "one").build();
+    GenericRecord facade = SchemaFacade.of(original, renamed);
+    int[] facades = {0};
+    byte[] bytes = write(countingWriter(renamed, facades), facade);
+    assertThat(bytes, is(SerializeToBytesTest.toBytes(SIMPLE, original)));
+    assertThat(facades[0], is(1));
+
+    // But one that only adds annotations can.
+    facades[0] = 0;
+    bytes =
+        write(
+            countingWriter(SIMPLE_ANNOTATED, facades), SchemaFacade.of(original, SIMPLE_ANNOTATED));
+    assertThat(bytes, is(SerializeToBytesTest.toBytes(SIMPLE, original)));
+    assertThat(facades[0], is(0));
+  }
+
+  @Test
+  public void testRecordPlanCollected() throws InterruptedException {
+    // A recursive record schema isn't kept alive by its plan.
+    Schema recursive =
+        SchemaBuilder.record("Node")
+            .fields()
+            .name("next")
+            .type()
+            .optional()
+            .type("Node")
+            .endRecord();
+    assertThat(SchemaFacade.RecordPlan.of(recursive).maxProbe, is(1));
+    WeakReference<Schema> ref = new WeakReference<>(recursive);
+    recursive = null;
+    for (int i = 0; i < 20 && ref.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertThat(ref.get(), nullValue());
+  }
+
+  @Test
+  public void testRecordPlan() {
+    Schema recipe = AvroUtil.api().parse(AvroTestResources.Recipe());
+    SchemaFacade.RecordPlan plan = SchemaFacade.RecordPlan.of(recipe);
+    assertThat(SchemaFacade.RecordPlan.of(recipe), sameInstance(plan));
+    assertThat(plan.maxProbe, is(1));
+    for (Schema.Field f : recipe.getFields()) {
+      assertThat(plan.position(f.name()), is(f.pos()));
+    }
+    assertThat(plan.position("missing"), is(-1));
+
+    // Only the fields that can contain a record, array, map, enum or fixed need a facade.
+    assertThat(plan.wrap[recipe.getField("title").pos()], is(false));
+    assertThat(plan.wrap[recipe.getField("ingredients").pos()], is(true));
+    assertThat(plan.wrap[recipe.getField("bake").pos()], is(true));
+
+    // All of the fields are found in a very wide record, even without a perfect hash.
+    SchemaBuilder.FieldAssembler<Schema> fields = SchemaBuilder.record("Wide").fields();
+    for (int i = 0; i < 10000; i++) fields = fields.requiredLong("f" + i);
+    Schema wide = fields.endRecord();
+    SchemaFacade.RecordPlan widePlan = SchemaFacade.RecordPlan.of(wide);
+    for (Schema.Field f : wide.getFields()) assertThat(widePlan.position(f.name()), is(f.pos()));
+    assertThat(widePlan.position("f10000"), is(-1));
+    assertThat(widePlan.maxProbe < 16, is(true));
+  }
+
+  /**
+   * Compares the time to create the facades over the recipes and to read every field through them
+   * with reading the original records directly.
+   *
+   * @param args The number of random recipes (default 1000), and the number of times to read them
+   *     (default 100).
+   */
+  public static void main(String... args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    int repeat = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    Schema original = AvroUtil.api().parse(AvroTestResources.Recipe());
+    Schema annotated =
+        addSomeAnnotations(
+            new HashSet<>(), AvroUtil.api().parse(AvroTestResources.Recipe()), ".", true);
+    List<GenericRecord> records = new ArrayList<>();
+    for (Object datum : new RandomData(original, count, 0L)) records.add((GenericRecord) datum);
+
+    Map<String, Function<GenericRecord, GenericRecord>> wrappers = new LinkedHashMap<>();
+    wrappers.put("raw", r -> r);
+    wrappers.put("facade", r -> SchemaFacade.of(r, annotated));
+    wrappers.put("cached", r -> SchemaFacade.cached(r, annotated));
+    String[] names = new String[original.getFields().size()];
+    for (Schema.Field f : original.getFields()) names[f.pos()] = f.name();
+
+    for (Map.Entry<String, Function<GenericRecord, GenericRecord>> wrapper : wrappers.entrySet()) {
+      // Creating the wrappers, with the first round as a warm up.
+      List<GenericRecord> wrapped = new ArrayList<>();
+      long created = 0;
+      for (int round = 0; round <= repeat; round++) {
+        wrapped = new ArrayList<>(records.size());
+        long start = System.nanoTime();
+        for (GenericRecord r : records) wrapped.add(wrapper.getValue().apply(r));
+        if (round > 0) created += System.nanoTime() - start;
+      }
+      System.out.printf(
+          "%-8s create %6.2f ns/record%n",
+          wrapper.getKey(), created / ((double) repeat * records.size()));
+
+      long[] nanos = new long[2];
+      int found = 0;
+      // The first round is a warm up.
+      for (int round = 0; round <= repeat; round++) {
+        long start = System.nanoTime();
+        for (GenericRecord r : wrapped)
+          for (int i = 0; i < names.length; i++) if (r.get(i) != null) found++;
+        long byPosition = System.nanoTime();
+        for (GenericRecord r : wrapped) for (String name : names) if (r.get(name) != null) found++;
+        if (round > 0) {
+          nanos[0] += byPosition - start;
+          nanos[1] += System.nanoTime() - byPosition;
+        }
+      }
+      double reads = (double) repeat * records.size() * names.length;
+      System.out.printf(
+          "%-8s get(int) %6.2f ns  get(String) %6.2f ns  (%d)%n",
+          wrapper.getKey(), nanos[0] / reads, nanos[1] / reads, found);
+    }
+
+    // Writing the facades with and without the fast path.
+    Map<String, DatumWriter<GenericRecord>> writers = new LinkedHashMap<>();
+    writers.put("raw", new GenericDatumWriter<>(original));
+    writers.put("facade", new GenericDatumWriter<>(annotated));
+    writers.put("delegate", new FacadeDatumWriter<>(annotated));
+    List<GenericRecord> facades = new ArrayList<>();
+    for (GenericRecord r : records) facades.add(SchemaFacade.of(r, annotated));
+    for (Map.Entry<String, DatumWriter<GenericRecord>> writer : writers.entrySet()) {
+      List<GenericRecord> written = writer.getKey().equals("raw") ? records : facades;
+      BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(new ByteArrayOutputStream(), null);
+      long nanos = 0;
+      try {
+        for (int round = 0; round <= repeat; round++) {
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          encoder = EncoderFactory.get().binaryEncoder(out, encoder);
+          long start = System.nanoTime();
+          for (GenericRecord r : written) writer.getValue().write(r, encoder);
+          encoder.flush();
+          if (round > 0) nanos += System.nanoTime() - start;
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      System.out.printf(
+          "%-8s write %8.2f ns/record%n",
+          writer.getKey(), nanos / ((double) repeat * records.size()));
+    }
+  }
+
   /** This is the factory for all of the facades and wrappers. */
   public static class SchemaFacade {
 
@@ -146,12 +461,50 @@ public class SchemaFacadeTest {
      * @return Either the original or a facade of the datum presenting the desired schema.
      */
     public static <T> T of(T datum, Schema schema) {
+      return of(datum, schema, null);
+    }
+
+    /**
+     * Wrap the given datum to conform to the given schema, reusing the facades from the shared
+     * {@link FacadeCache}.
+     *
+     * @param datum The datum to wrap.
+     * @param schema The desired schema for the datum.
+     * @param <T> The type of datum being passed in.
+     * @return Either the original or a facade of the datum presenting the desired schema.
+     */
+    public static <T> T cached(T datum, Schema schema) {
+      return of(datum, schema, FacadeCache.get());
+    }
+
+    /**
+     * @param cache If not null, the facades over the datum and all of its children are found in
+     *     this cache before being created.
+     */
+    static <T> T of(T datum, Schema schema, FacadeCache cache) {
+      if (cache == null || datum == null) return create(datum, schema, null);
+      switch (schema.getType()) {
+        case UNION:
+          int branch = UnionDispatch.get().resolve(schema, datum);
+          return of(datum, schema.getTypes().get(branch), cache);
+        case RECORD:
+        case ARRAY:
+        case MAP:
+        case ENUM:
+        case FIXED:
+          return cache.lookup(datum, schema, () -> create(datum, schema, cache));
+        default:
+          return datum;
+      }
+    }
+
+    private static <T> T create(T datum, Schema schema, FacadeCache cache) {
 
       // Complex types that can be annotated should be wrapped.
       switch (schema.getType()) {
         case RECORD:
           if (datum instanceof GenericRecord)
-            return (T) new GenericRecordFacade((GenericRecord) datum, schema);
+            return (T) new GenericRecordFacade((GenericRecord) datum, schema, cache);
           break;
 
         case ARRAY:
@@ -159,7 +512,7 @@ public class SchemaFacadeTest {
             return (T)
                 new FunctionMappedList<T, T>(
                     (List) datum,
-                    t -> SchemaFacade.of(t, schema.getElementType()),
+                    t -> SchemaFacade.of(t, schema.getElementType(), cache),
                     SchemaFacade::unwrap);
           break;
 
@@ -168,7 +521,7 @@ public class SchemaFacadeTest {
             return (T)
                 new FunctionMappedValueMap<String, T, T>(
                     (Map) datum,
-                    t -> SchemaFacade.of(t, schema.getValueType()),
+                    t -> SchemaFacade.of(t, schema.getValueType(), cache),
                     SchemaFacade::unwrap);
           break;
 
@@ -182,8 +535,8 @@ public class SchemaFacadeTest {
             return (T) new GenericFixedFacade((GenericFixed) datum, schema);
 
         case UNION:
-          int branch = GenericData.get().resolveUnion(schema, datum);
-          return of(datum, schema.getTypes().get(branch));
+          int branch = UnionDispatch.get().resolve(schema, datum);
+          return of(datum, schema.getTypes().get(branch), cache);
 
         default:
           break;
@@ -206,15 +559,42 @@ public class SchemaFacadeTest {
     /**
      * The facade over the {@link GenericRecord} returns the new schema, but also puts a facade over
      * all of its fields.
+     *
+     * <p>The field positions are found in the precompiled {@link RecordPlan} for the schema, and
+     * fields that never need a facade are returned directly.
+     *
+     * <p>When there is a cache, the facade for each field is also remembered here, for as long as
+     * the field in the delegate still contains the same instance.
      */
     private static class GenericRecordFacade
         implements GenericRecord, WrapsDelegate<GenericRecord> {
       final GenericRecord dlg;
       final Schema recordSchema;
+      final RecordPlan plan;
+      final FacadeCache cache;
+      final Slot[] slots;
 
       public GenericRecordFacade(GenericRecord dlg, Schema recordSchema) {
+        this(dlg, recordSchema, null);
+      }
+
+      GenericRecordFacade(GenericRecord dlg, Schema recordSchema, FacadeCache cache) {
         this.dlg = dlg;
         this.recordSchema = recordSchema;
+        this.plan = RecordPlan.of(recordSchema);
+        this.cache = cache;
+        this.slots = cache == null ? null : new Slot[plan.wrap.length];
+      }
+
+      private Object child(Object value, int pos) {
+        if (!plan.wrap[pos]) return value;
+        Schema schema = recordSchema.getFields().get(pos).schema();
+        if (slots == null) return SchemaFacade.of(value, schema);
+        Slot slot = slots[pos];
+        if (slot != null && slot.value == value) return slot.facade;
+        Object facade = SchemaFacade.of(value, schema, cache);
+        slots[pos] = new Slot(value, facade);
+        return facade;
       }
 
       @Override
@@ -224,7 +604,9 @@ public class SchemaFacadeTest {
 
       @Override
       public Object get(String key) {
-        return SchemaFacade.of(dlg.get(key), recordSchema.getField(key).schema());
+        int pos = plan.position(key);
+        if (pos < 0) throw new AvroRuntimeException("Not a valid schema field: " + key);
+        return child(dlg.get(key), pos);
       }
 
       @Override
@@ -234,7 +616,7 @@ public class SchemaFacadeTest {
 
       @Override
       public Object get(int i) {
-        return SchemaFacade.of(dlg.get(i), recordSchema.getFields().get(i).schema());
+        return child(dlg.get(i), i);
       }
 
       @Override
@@ -248,6 +630,154 @@ public class SchemaFacadeTest {
       }
     }
 
+    /**
+     * Everything a {@link GenericRecordFacade} needs to know about its record schema, computed once
+     * per schema instance.
+     *
+     * <p>The field names are found in an open addressing table. For each table size, a few hash
+     * multipliers are tried to find one where every name is in its own slot, which is usually
+     * possible for records with up to a hundred or so fields. Otherwise, the multiplier with the
+     * shortest probes is used.
+     */
+    static class RecordPlan {
+
+      /**
+       * The plan is kept for as long as its record schema exists. It doesn't refer to any schema,
+       * so that the record schema can be collected.
+       */
+      private static final WeakSchemaMap<RecordPlan> PLANS = new WeakSchemaMap<>();
+
+      private static final int[] MULTIPLIERS = {
+        0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F, 0x165667B1, 0xD3A2646C
+      };
+
+      /** Whether each field might need a facade, or can always be returned as is. */
+      final boolean[] wrap;
+
+      /** The field names in the table, or null for an empty slot. */
+      private final String[] names;
+
+      /** The position of the field for each name in the table. */
+      private final int[] positions;
+
+      private final int multiplier;
+
+      private final int shift;
+
+      /** The longest probe needed to find any field. */
+      final int maxProbe;
+
+      private RecordPlan(Schema record) {
+        List<Schema.Field> fields = record.getFields();
+        wrap = new boolean[fields.size()];
+        for (Schema.Field f : fields) wrap[f.pos()] = needsFacade(f.schema());
+
+        // Try the smallest tables first, and stop at the first perfect hash.
+        int bits = 1;
+        while ((1 << bits) < fields.size() * 2) bits++;
+        int bestProbe = Integer.MAX_VALUE;
+        int bestBits = bits;
+        int bestMultiplier = MULTIPLIERS[0];
+        search:
+        for (int b = bits; b < bits + 3; b++) {
+          for (int m : MULTIPLIERS) {
+            int probe = maxProbe(fields, m, b);
+            if (probe < bestProbe) {
+              bestProbe = probe;
+              bestBits = b;
+              bestMultiplier = m;
+              if (probe == 1) break search;
+            }
+          }
+        }
+
+        multiplier = bestMultiplier;
+        shift = 32 - bestBits;
+        maxProbe = bestProbe;
+        names = new String[1 << bestBits];
+        positions = new int[1 << bestBits];
+        for (Schema.Field f : fields) {
+          int i = slot(f.name().hashCode(), multiplier, shift);
+          while (names[i] != null) i = (i + 1) & (names.length - 1);
+          names[i] = f.name();
+          positions[i] = f.pos();
+        }
+      }
+
+      /**
+       * @return The plan for the record schema.
+       */
+      static RecordPlan of(Schema record) {
+        return PLANS.computeIfAbsent(record, RecordPlan::new);
+      }
+
+      /**
+       * @return The position of the field with the given name, or -1 if there isn't one.
+       */
+      int position(String name) {
+        int mask = names.length - 1;
+        for (int i = slot(name.hashCode(), multiplier, shift); ; i = (i + 1) & mask) {
+          String n = names[i];
+          if (n == null) return -1;
+          if (n == name || n.equals(name)) return positions[i];
+        }
+      }
+
+      private static int slot(int hash, int multiplier, int shift) {
+        return (hash * multiplier) >>> shift;
+      }
+
+      /**
+       * @return The longest probe needed to find any of the fields in a table with the given
+       *     multiplier and size.
+       */
+      private static int maxProbe(List<Schema.Field> fields, int multiplier, int bits) {
+        boolean[] used = new boolean[1 << bits];
+        int max = 0;
+        for (Schema.Field f : fields) {
+          int i = slot(f.name().hashCode(), multiplier, 32 - bits);
+          int probe = 1;
+          while (used[i]) {
+            i = (i + 1) & (used.length - 1);
+            probe++;
+          }
+          used[i] = true;
+          max = Math.max(max, probe);
+        }
+        return max;
+      }
+
+      /**
+       * @return False if the datum for this schema is never wrapped by {@link SchemaFacade#of}.
+       */
+      private static boolean needsFacade(Schema schema) {
+        switch (schema.getType()) {
+          case RECORD:
+          case ARRAY:
+          case MAP:
+          case ENUM:
+          case FIXED:
+            return true;
+          case UNION:
+            for (Schema branch : schema.getTypes()) if (needsFacade(branch)) return true;
+            return false;
+          default:
+            return false;
+        }
+      }
+    }
+
+    /** A field value in the delegate, and its facade. */
+    private static class Slot {
+      final Object value;
+      final Object facade;
+
+      Slot(Object value, Object facade) {
+        this.value = value;
+        this.facade = facade;
+      }
+    }
+
     /** The facade over the {@link GenericEnumSymbol} just returns the modified schema. */
     private static class GenericEnumFacade<E extends GenericEnumSymbol<E>>
         implements GenericEnumSymbol<E>, WrapsDelegate<GenericEnumSymbol<E>> {
@@ -556,4 +1086,225 @@ public class SchemaFacadeTest {
       }
     }
   }
+
+  /**
+   * Writes datum that might be facades, skipping the facade when it only adds annotations.
+   *
+   * <p>If the facade schema has the same parsing canonical form as the schema of its delegate, then
+   * they only differ by properties, docs, aliases or defaults and are written exactly the same way.
+   * The delegate is written directly, without reading every value through the facade and resolving
+   * its unions again. Otherwise, the facade is written like any other datum.
+   *
+   * <p>The answer for each pair of schemas is remembered by the {@link BinaryIdentity}, so after
+   * the first datum, each facade only costs one lookup.
+   *
+   * @param <D> The type of datum to write.
+   */
+  public static class FacadeDatumWriter<D> extends GenericDatumWriter<D> {
+
+    private final BinaryIdentity identity;
+
+    public FacadeDatumWriter(Schema schema) {
+      this(schema, GenericData.get());
+    }
+
+    public FacadeDatumWriter(Schema schema, GenericData model) {
+      this(schema, model, BinaryIdentity.get());
+    }
+
+    public FacadeDatumWriter(Schema schema, GenericData model, BinaryIdentity identity) {
+      super(schema, model);
+      this.identity = identity;
+    }
+
+    @Override
+    protected void write(Schema schema, Object datum, Encoder out) throws IOException {
+      if (datum instanceof SchemaFacade.WrapsDelegate) {
+        Object delegate = SchemaFacade.unwrap(datum);
+        Schema delegateSchema =
+            delegate instanceof GenericContainer ? ((GenericContainer) delegate).getSchema() : null;
+        // Lists and maps don't know their own schema, but their values are unwrapped too.
+        if (delegateSchema == null && !(datum instanceof GenericContainer)) delegateSchema = schema;
+        if (delegateSchema != null && identity.isIdentical(schema, delegateSchema)) {
+          super.write(delegateSchema, delegate, out);
+          return;
+        }
+      }
+      super.write(schema, datum, out);
+    }
+  }
+
+  /**
+   * Remembers the facades created for each datum and schema, so that reading the same part of a
+   * datum many times doesn't create a new facade every time.
+   *
+   * <p>The datum and the facades are only weakly referenced, so a facade is only reused while it is
+   * still in use somewhere else, and the cache doesn't keep any datum from being garbage collected.
+   * When the cache is full, the oldest facades are evicted first. This class is thread-safe.
+   */
+  public static class FacadeCache {
+
+    /** A shared instance. */
+    private static final FacadeCache INSTANCE = new FacadeCache(10000);
+
+    private final int maxSize;
+
+    private final ConcurrentHashMap<Object, WeakReference<Object>> cache =
+        new ConcurrentHashMap<>();
+
+    /** The keys in the order they were added, for eviction. */
+    private final Queue<IdentityKey> insertionOrder = new ConcurrentLinkedQueue<>();
+
+    /** The size of the queue, which can also contain keys that were already expunged. */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /** Datum that have been garbage collected are enqueued here to be expunged. */
+    private final ReferenceQueue<Object> expunged = new ReferenceQueue<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize The maximum number of facades to keep.
+     */
+    public FacadeCache(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    /** Get the shared cache. */
+    public static FacadeCache get() {
+      return INSTANCE;
+    }
+
+    /**
+     * @param datum The datum to wrap.
+     * @param schema The desired schema for the datum.
+     * @return A facade of the datum presenting the desired schema, that remembers the facades of
+     *     its children in this cache.
+     */
+    public <T> T of(T datum, Schema schema) {
+      return SchemaFacade.of(datum, schema, this);
+    }
+
+    /**
+     * @param datum The instance to look up by identity.
+     * @param schema The schema to look up by identity.
+     * @param create Creates the value if it isn't in the cache.
+     * @return The value that was cached for the datum and schema, or the newly created value.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T lookup(Object datum, Schema schema, Supplier<T> create) {
+      // A plain key is enough to probe the cache, without creating a reference.
+      WeakReference<Object> ref = cache.get(new Lookup(datum, schema));
+      Object facade = ref == null ? null : ref.get();
+      if (facade != null) {
+        hits.increment();
+        return (T) facade;
+      }
+      misses.increment();
+      expunge();
+
+      T created = create.get();
+      IdentityKey key = new IdentityKey(datum, schema, expunged);
+      if (cache.put(key, new WeakReference<>(created)) == null) {
+        insertionOrder.add(key);
+        queued.incrementAndGet();
+        while (cache.size() > maxSize || queued.get() > 2 * maxSize) {
+          IdentityKey oldest = insertionOrder.poll();
+          if (oldest == null) break;
+          queued.decrementAndGet();
+          if (cache.remove(oldest) != null) evictions.increment();
+        }
+      }
+      return created;
+    }
+
+    /**
+     * @return The number of facades currently in the cache.
+     */
+    public int size() {
+      expunge();
+      return cache.size();
+    }
+
+    private void expunge() {
+      for (Object k = expunged.poll(); k != null; k = expunged.poll()) cache.remove(k);
+    }
+
+    public long getHits() {
+      return hits.sum();
+    }
+
+    public long getMisses() {
+      return misses.sum();
+    }
+
+    public long getEvictions() {
+      return evictions.sum();
+    }
+
+    /** A weak reference to a datum and its schema, with equality based on their identity. */
+    private static class IdentityKey extends WeakReference<Object> {
+      private final Schema schema;
+      private final int hash;
+
+      IdentityKey(Object datum, Schema schema, ReferenceQueue<Object> queue) {
+        super(datum, queue);
+        this.schema = schema;
+        this.hash = hash(datum, schema);
+      }
+
+      static int hash(Object datum, Schema schema) {
+        return System.identityHashCode(datum) * 31 + System.identityHashCode(schema);
+      }
+
+      @Override
+      public int hashCode() {
+        return hash;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+        if (this == o) return true;
+        Object referent = get();
+        if (referent == null) return false;
+        if (o instanceof Lookup) return ((Lookup) o).is(referent, schema);
+        if (!(o instanceof IdentityKey)) return false;
+        IdentityKey that = (IdentityKey) o;
+        return referent == that.get() && schema == that.schema;
+      }
+    }
+
+    /** A strong key used to find an {@link IdentityKey}, equal to it while the datum exists. */
+    private static class Lookup {
+      private final Object datum;
+      private final Schema schema;
+
+      Lookup(Object datum, Schema schema) {
+        this.datum = datum;
+        this.schema = schema;
+      }
+
+      boolean is(Object datum, Schema schema) {
+        return this.datum == datum && this.schema == schema;
+      }
+
+      @Override
+      public int hashCode() {
+        return IdentityKey.hash(datum, schema);
+      }
+
+      @Override
+      public boolean equals(Object o) {
+        if (o instanceof IdentityKey) {
+          IdentityKey that = (IdentityKey) o;
+          return datum == that.get() && schema == that.schema;
+        }
+        return o instanceof Lookup && ((Lookup) o).is(datum, schema);
+      }
+    }
+  }
 }
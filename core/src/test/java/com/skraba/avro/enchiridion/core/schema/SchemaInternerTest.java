@@ -0,0 +1,369 @@
+package com.skraba.avro.enchiridion.core.schema;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import com.skraba.avro.enchiridion.core.AvroUtil;
+import com.skraba.avro.enchiridion.core.schema.FingerprintCacheTest.FingerprintCache;
+import com.skraba.avro.enchiridion.core.schema.SchemaVisitorTest.SchemaVisitor;
+import com.skraba.avro.enchiridion.resources.AvroTestResources;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.avro.LogicalType;
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests and helpers for sharing the identical parts of many schemas.
+ *
+ * <p>Every time a schema is parsed or built, all of its subschemas are new instances, even when
+ * they are exactly the same as another part of the schema (like the many {@code ["null","string"]}
+ * unions in a record). A {@link SchemaInterner} rebuilds a schema so that identical subschemas are
+ * the same instance, within one schema and across all of the schemas that it has interned.
+ */
+public class SchemaInternerTest {
+
+  /** All of the distinct instances in the schema. */
+  private static Set<Schema> instances(Schema schema) {
+    Set<Schema> found = Collections.newSetFromMap(new IdentityHashMap<>());
+    collect(schema, found);
+    return found;
+  }
+
+  private static void collect(Schema schema, Set<Schema> found) {
+    if (!found.add(schema)) return;
+    switch (schema.getType()) {
+      case RECORD:
+        for (Schema.Field f : schema.getFields()) collect(f.schema(), found);
+        break;
+      case ARRAY:
+        collect(schema.getElementType(), found);
+        break;
+      case MAP:
+        collect(schema.getValueType(), found);
+        break;
+      case UNION:
+        for (Schema s : schema.getTypes()) collect(s, found);
+        break;
+      default:
+    }
+  }
+
+  @Test
+  public void testRecipe() {
+    SchemaInterner interner = new SchemaInterner();
+    Schema recipe = AvroUtil.api().parse(AvroTestResources.Recipe());
+    Schema interned = interner.intern(recipe);
+    assertThat(interned.toString(), is(recipe.toString()));
+    assertThat(interned, is(recipe));
+    assertThat(instances(interned).size() < instances(recipe).size(), is(true));
+
+    // All of the nullable strings are the same instance.
+    Schema title = interned.getField("title").schema();
+    assertThat(interned.getField("source").schema(), sameInstance(title));
+    Schema ingredient = interned.getField("ingredients").schema().getElementType();
+    assertThat(ingredient.getField("q").schema(), sameInstance(title));
+
+    // The recursive record refers to itself.
+    assertThat(ingredient.getField("option").schema().getElementType(), sameInstance(ingredient));
+
+    // Another copy of the same schema is the same instance.
+    Schema copy = AvroUtil.api().parse(AvroTestResources.Recipe());
+    assertThat(interner.intern(copy), sameInstance(interned));
+    assertThat(interner.intern(interned), sameInstance(interned));
+    int size = interner.size();
+    interner.intern(copy);
+    assertThat(interner.size(), is(size));
+  }
+
+  @Test
+  public void testSharedAcrossSchemas() {
+    SchemaInterner interner = new SchemaInterner();
+    Schema a =
+        interner.intern(
+            SchemaBuilder.record("A").fields().optionalString("s").requiredLong("l").endRecord());
+    Schema b =
+        interner.intern(
+            SchemaBuilder.record("B").fields().requiredInt("i").optionalString("t").endRecord());
+    assertThat(b.getField("t").schema(), sameInstance(a.getField("s").schema()));
+
+    // Cloned fields, like in SchemaManipulationTest, are shared with the original.
+    List<Schema.Field> cloned = new ArrayList<>();
+    for (Schema.Field f : a.getFields()) cloned.add(new Schema.Field(f, f.schema()));
+    Schema clone = Schema.createRecord("A", null, null, false, cloned);
+    assertThat(interner.intern(clone), sameInstance(a));
+  }
+
+  @Test
+  public void testPreserveMetadata() {
+    SchemaInterner interner = new SchemaInterner();
+    Schema decimal = LogicalTypes.decimal(10, 2).addToSchema(Schema.create(Schema.Type.BYTES));
+    Schema annotated = Schema.createArray(Schema.create(Schema.Type.LONG));
+    annotated.addProp("user", "x");
+    Schema record =
+        SchemaBuilder.record("R")
+            .aliases("Old")
+            .prop("version", "1")
+            .fields()
+            .name("d")
+            .aliases("dOld")
+            .doc("A decimal")
+            .type(decimal)
+            .noDefault()
+            .name("a")
+            .type(annotated)
+            .withDefault(new ArrayList<>())
+            .endRecord();
+
+    Schema interned = interner.intern(record);
+    assertThat(interned.toString(), is(record.toString()));
+    assertThat(interned.getAliases(), is(record.getAliases()));
+    assertThat(interned.getField("d").aliases(), is(record.getField("d").aliases()));
+    LogicalType lt = interned.getField("d").schema().getLogicalType();
+    assertThat(lt, is(decimal.getLogicalType()));
+    assertThat(interned.getField("a").schema().getProp("user"), is("x"));
+
+    // Schemas that are equal but have different docs or aliases are not merged.
+    Schema other =
+        SchemaBuilder.record("R")
+            .prop("version", "1")
+            .fields()
+            .name("d")
+            .doc("Another decimal")
+            .type(decimal)
+            .noDefault()
+            .name("a")
+            .type(annotated)
+            .withDefault(new ArrayList<>())
+            .endRecord();
+    assertThat(other, is(record));
+    Schema otherInterned = interner.intern(other);
+    assertThat(otherInterned, not(sameInstance(interned)));
+    assertThat(otherInterned.toString(), is(other.toString()));
+    assertThat(otherInterned.getField("a").schema(), sameInstance(interned.getField("a").schema()));
+  }
+
+  @Test
+  public void testCopied() {
+    SchemaInterner interner = new SchemaInterner();
+    Schema original =
+        AvroUtil.api()
+            .parse(
+                AvroUtil.qqify(
+                    "{'type':'record','name':'R','fields':["
+                        + "{'name':'e','type':{'type':'enum','name':'E','symbols':['A','B'],"
+                        + "'aliases':['OldE']}},"
+                        + "{'name':'f','type':{'type':'fixed','name':'F','size':4}},"
+                        + "{'name':'d','type':{'type':'bytes','logicalType':'decimal',"
+                        + "'precision':9,'scale':2}}]}"));
+    String json = original.toString();
+    Schema interned = interner.intern(original);
+    assertThat(interned.toString(), is(json));
+
+    // Changing the original later doesn't change the interned schema.
+    for (Schema.Field f : original.getFields()) {
+      assertThat(interned.getField(f.name()).schema(), not(sameInstance(f.schema())));
+      f.schema().addProp("changed", true);
+    }
+    assertThat(interned.toString(), is(json));
+
+    // Deep schemas are walked without recursion.
+    Schema deep = SchemaVisitorTest.deep(200);
+    assertThat(interner.intern(deep).toString(), is(deep.toString()));
+  }
+
+  @Test
+  public void testRecursive() {
+    SchemaInterner interner = new SchemaInterner();
+    String json =
+        AvroUtil.qqify(
+            "{'type':'record','name':'Node','fields':["
+                + "{'name':'left','type':['null','Node']},{'name':'right','type':['null','Node']},"
+                + "{'name':'value','type':['null','string']}]}");
+    Schema node = interner.intern(AvroUtil.api().parse(json));
+    Schema left = node.getField("left").schema();
+    assertThat(node.getField("right").schema(), sameInstance(left));
+    assertThat(left.getTypes().get(1), sameInstance(node));
+    assertThat(node.toString(), is(AvroUtil.api().parse(json).toString()));
+    assertThat(interner.intern(AvroUtil.api().parse(json)), sameInstance(node));
+  }
+
+  /**
+   * Rebuilds schemas so that identical subschemas are the same instance.
+   *
+   * <p>Two subschemas are identical if they have the same full JSON, including the docs and aliases
+   * that aren't checked by {@link Schema#equals(Object)}. They're found by the {@link
+   * FingerprintCache#of(Schema)} fingerprint of the full schema, and checked with {@link
+   * Schema#equals(Object)} in case of a collision.
+   *
+   * <p>Every subschema that isn't already interned is copied, so changing the original schema later
+   * never changes an interned one. Since the interned schemas are shared, they must not be
+   * modified. Every interned schema is kept as long as this instance. This class is thread-safe.
+   */
+  public static class SchemaInterner {
+
+    private final ConcurrentHashMap<Long, Schema> pool = new ConcurrentHashMap<>();
+
+    /**
+     * @return An identical schema, sharing its subschemas with all of the other interned schemas.
+     */
+    public Schema intern(Schema schema) {
+      return new Interning().intern(schema);
+    }
+
+    /**
+     * @return The number of distinct subschemas that have been interned.
+     */
+    public int size() {
+      return pool.size();
+    }
+
+    private static long fingerprint(Schema schema) {
+      return FingerprintCache.get().of(schema).getSchemaFingerprint64();
+    }
+
+    /** The state of interning one schema. */
+    private class Interning {
+
+      /** Every original subschema and the first identical subschema found. */
+      private final Map<Schema, Schema> representative = new IdentityHashMap<>();
+
+      /** The first subschema found for each fingerprint. */
+      private final Map<Long, Schema> byFingerprint = new HashMap<>();
+
+      /** Every representative subschema and its interned instance. */
+      private final Map<Schema, Schema> interned = new IdentityHashMap<>();
+
+      /** The interned instances created here, to be added to the pool. */
+      private final Map<Long, Schema> created = new HashMap<>();
+
+      /** The records that were created but still need their fields. */
+      private final List<Schema> unfinished = new ArrayList<>();
+
+      Schema intern(Schema schema) {
+        findRepresentatives(schema);
+
+        // Create all of the records first, since the other schemas can refer to them.
+        for (Schema r : new ArrayList<>(representative.values())) {
+          if (r.getType() == Schema.Type.RECORD && !interned.containsKey(r)) {
+            Schema pooled = pooled(r);
+            if (pooled != null) interned.put(r, pooled);
+            else {
+              Schema record =
+                  Schema.createRecord(r.getName(), r.getDoc(), r.getNamespace(), r.isError());
+              for (String alias : r.getAliases()) record.addAlias(alias);
+              copyProps(r, record);
+              interned.put(r, record);
+              created.put(fingerprint(r), record);
+              unfinished.add(r);
+            }
+          }
+        }
+
+        // The fields can only be set once all the schemas they refer to exist.
+        for (Schema r : unfinished) {
+          List<Schema.Field> fields = new ArrayList<>();
+          for (Schema.Field f : r.getFields()) fields.add(new Schema.Field(f, get(f.schema())));
+          interned.get(r).setFields(fields);
+        }
+
+        // Only add the new schemas once they're complete, keeping the ones from other threads.
+        Schema root = get(schema);
+        for (Map.Entry<Long, Schema> e : created.entrySet()) {
+          Schema previous = pool.putIfAbsent(e.getKey(), e.getValue());
+          if (e.getValue() == root && previous != null && previous.equals(root)) return previous;
+        }
+        return root;
+      }
+
+      /** Walk all of the subschemas, and find one representative for each identical group. */
+      private void findRepresentatives(Schema root) {
+        // Without recursion, since the schema can be very deeply nested.
+        SchemaVisitor.walk(
+            root,
+            schema -> {
+              Schema first = byFingerprint.putIfAbsent(fingerprint(schema), schema);
+              representative.put(schema, first != null && first.equals(schema) ? first : schema);
+              return true;
+            });
+      }
+
+      /**
+       * @return The interned instance for the original schema.
+       */
+      private Schema get(Schema original) {
+        Schema r = representative.get(original);
+        Schema done = interned.get(r);
+        if (done != null) return done;
+
+        Schema pooled = pooled(r);
+        if (pooled == null) {
+          switch (r.getType()) {
+            case ARRAY:
+              pooled = Schema.createArray(get(r.getElementType()));
+              copyProps(r, pooled);
+              break;
+            case MAP:
+              pooled = Schema.createMap(get(r.getValueType()));
+              copyProps(r, pooled);
+              break;
+            case UNION:
+              List<Schema> types = new ArrayList<>();
+              for (Schema s : r.getTypes()) types.add(get(s));
+              pooled = Schema.createUnion(types);
+              break;
+            case ENUM:
+              pooled =
+                  Schema.createEnum(
+                      r.getName(),
+                      r.getDoc(),
+                      r.getNamespace(),
+                      r.getEnumSymbols(),
+                      r.getEnumDefault());
+              for (String alias : r.getAliases()) pooled.addAlias(alias);
+              copyProps(r, pooled);
+              break;
+            case FIXED:
+              pooled =
+                  Schema.createFixed(r.getName(), r.getDoc(), r.getNamespace(), r.getFixedSize());
+              for (String alias : r.getAliases()) pooled.addAlias(alias);
+              copyProps(r, pooled);
+              break;
+            default:
+              pooled = Schema.create(r.getType());
+              copyProps(r, pooled);
+          }
+          created.put(fingerprint(r), pooled);
+        }
+        interned.put(r, pooled);
+        return pooled;
+      }
+
+      /**
+       * @return The identical schema from the pool, or null if there isn't one.
+       */
+      private Schema pooled(Schema schema) {
+        Schema pooled = pool.get(fingerprint(schema));
+        return pooled != null && pooled.equals(schema) ? pooled : null;
+      }
+    }
+
+    /** Copy the logical type and properties from one schema to another. */
+    private static void copyProps(Schema from, Schema to) {
+      LogicalType lt = from.getLogicalType();
+      if (lt != null) lt.addToSchema(to);
+      for (Map.Entry<String, Object> e : from.getObjectProps().entrySet())
+        if (to.getObjectProp(e.getKey()) == null) to.addProp(e.getKey(), e.getValue());
+    }
+  }
+}
@@ -0,0 +1,728 @@
+package com.skraba.avro.enchiridion.core.schema;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.skraba.avro.enchiridion.core.AvroUtil;
+import com.skraba.avro.enchiridion.core.schema.FingerprintCacheTest.FingerprintCache;
+import com.skraba.avro.enchiridion.core.schema.NameIndexTest.NameIndex;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.avro.AvroTypeException;
+import org.apache.avro.JsonProperties;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaCompatibility;
+import org.apache.avro.SchemaCompatibility.SchemaCompatibilityType;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests and helpers for merging many record schemas into one schema that can read all of them.
+ *
+ * <p>{@link SchemaManipulationTest#testFlatMergeTwoSchemas()} copies the fields of two records into
+ * one by hand. A {@link SchemaMerger} also resolves the fields that appear in both records, by
+ * widening primitives, merging nested records or creating a union, and makes the fields that only
+ * appear in some of the records optional. Many schemas are merged in parallel as a tree.
+ */
+public class SchemaMergeTest {
+
+  private static Schema event(String fields) {
+    return AvroUtil.api()
+        .parse(
+            AvroUtil.qqify(
+                "{'type':'record','name':'Event','namespace':'com.example','fields':["
+                    + fields
+                    + "]}"));
+  }
+
+  private static final Schema P1 =
+      event("{'name':'id','type':'int'},{'name':'name','type':'string','doc':'The name'}");
+
+  private static final Schema P2 =
+      event(
+          "{'name':'id','type':'long'},"
+              + "{'name':'tags','type':{'type':'array','items':'string'},'default':[]}");
+
+  private static final Schema P3 =
+      event(
+          "{'name':'id','type':'int'},{'name':'name','type':['null','string']},"
+              + "{'name':'geo','type':{'type':'record','name':'Geo','fields':["
+              + "{'name':'lat','type':'float'}]}}");
+
+  private static final Schema P4 =
+      event(
+          "{'name':'geo','type':{'type':'record','name':'Geo','fields':["
+              + "{'name':'lat','type':'double'},{'name':'lon','type':'double'}]}},"
+              + "{'name':'kind','type':{'type':'enum','name':'Kind','symbols':['A','B']}},"
+              + "{'name':'value','type':'string'}");
+
+  private static final Schema P5 =
+      event(
+          "{'name':'kind','type':{'type':'enum','name':'Kind','symbols':['B','C']}},"
+              + "{'name':'value','type':'int'}");
+
+  private static final List<Schema> PARTITIONS = Arrays.asList(P1, P2, P3, P4, P5);
+
+  /** Check that the merged schema can read data written with each of the schemas. */
+  private static void assertCanReadAll(Schema merged, List<Schema> writers) {
+    for (Schema writer : writers)
+      assertThat(
+          writer.toString(),
+          SchemaCompatibility.checkReaderWriterCompatibility(merged, writer).getType(),
+          is(SchemaCompatibilityType.COMPATIBLE));
+  }
+
+  /** Merge two schemas with a new merger. */
+  private static Schema merge(Schema a, Schema b) {
+    try (SchemaMerger merger = new SchemaMerger(1)) {
+      return merger.merge(a, b);
+    }
+  }
+
+  @Test
+  public void testMergeTwo() {
+    try (SchemaMerger merger = new SchemaMerger(1)) {
+      Schema merged = merger.merge(P1, P2);
+      assertCanReadAll(merged, Arrays.asList(P1, P2));
+
+      // The id is widened, the name is made optional and the tags keep their default.
+      assertThat(merged.getField("id").schema().getType(), is(Schema.Type.LONG));
+      assertThat(merged.getField("name").schema().toString(), is("[\"null\",\"string\"]"));
+      assertThat(merged.getField("name").defaultVal(), is(JsonProperties.NULL_VALUE));
+      assertThat(merged.getField("name").doc(), is("The name"));
+      assertThat(merged.getField("tags").defaultVal(), is(new ArrayList<>()));
+
+      // The same pair is remembered.
+      assertThat(merger.merge(P1, P2), sameInstance(merged));
+      assertThat(merger.getHits(), is(1L));
+      assertThat(merger.merge(P1, P1), sameInstance(P1));
+    }
+  }
+
+  @Test
+  public void testMergeAll() {
+    try (SchemaMerger merger = new SchemaMerger(4)) {
+      Schema merged = merger.mergeAll(PARTITIONS);
+      assertCanReadAll(merged, PARTITIONS);
+
+      // Nested records are merged, as well as enum symbols.
+      Schema geo = merged.getField("geo").schema().getTypes().get(1);
+      assertThat(geo.getField("lat").schema().getType(), is(Schema.Type.DOUBLE));
+      assertThat(geo.getField("lon").schema().toString(), is("[\"null\",\"double\"]"));
+      Schema kind = merged.getField("kind").schema().getTypes().get(1);
+      assertThat(kind.getEnumSymbols(), contains("A", "B", "C"));
+
+      // Conflicting types become a union.
+      assertThat(merged.getField("value").schema().toString(), is("[\"null\",\"string\",\"int\"]"));
+
+      // Many copies of the same schemas are only merged once.
+      List<Schema> many = new ArrayList<>();
+      for (int i = 0; i < 1000; i++)
+        many.add(new Schema.Parser().parse(PARTITIONS.get(i % PARTITIONS.size()).toString()));
+      Schema mergedMany = merger.mergeAll(many);
+      assertThat(mergedMany, is(merged));
+      assertCanReadAll(mergedMany, PARTITIONS);
+    }
+  }
+
+  @Test
+  public void testBounded() {
+    try (SchemaMerger merger = new SchemaMerger(2, 2)) {
+      Schema merged = merger.mergeAll(PARTITIONS);
+      assertCanReadAll(merged, PARTITIONS);
+      // Only the most recent pairs are remembered.
+      assertThat(merger.size(), is(2));
+      assertThat(merger.mergeAll(PARTITIONS), is(merged));
+      assertThat(merger.size(), is(2));
+    }
+  }
+
+  @Test
+  public void testMergeProps() {
+    Schema a =
+        AvroUtil.api()
+            .parse(
+                AvroUtil.qqify(
+                    "{'type':'record','name':'R','owner':'a','fields':["
+                        + "{'name':'x','type':'int','pii':true}]}"));
+    Schema b =
+        AvroUtil.api()
+            .parse(
+                AvroUtil.qqify(
+                    "{'type':'record','name':'R','owner':'b','retention':7,'aliases':['Old'],"
+                        + "'fields':[{'name':'x','type':'int','aliases':['y'],'sort':1}]}"));
+    Schema merged = merge(a, b);
+    assertThat(merged.getProp("owner"), is("a"));
+    assertThat(merged.getObjectProp("retention"), is(7));
+    assertThat(merged.getAliases(), contains("Old"));
+    assertThat(merged.getField("x").getObjectProp("pii"), is(true));
+    assertThat(merged.getField("x").getObjectProp("sort"), is(1));
+    assertThat(merged.getField("x").aliases(), contains("y"));
+  }
+
+  @Test
+  public void testMergeRecursive() {
+    Schema v1 =
+        AvroUtil.api()
+            .parse(
+                AvroUtil.qqify(
+                    "{'type':'record','name':'Node','fields':["
+                        + "{'name':'value','type':'int'},"
+                        + "{'name':'next','type':['null','Node']}]}"));
+    Schema v2 =
+        AvroUtil.api()
+            .parse(
+                AvroUtil.qqify(
+                    "{'type':'record','name':'Node','fields':["
+                        + "{'name':'value','type':'long'},{'name':'label','type':'string'},"
+                        + "{'name':'next','type':['null','Node']}]}"));
+    Schema merged = merge(v1, v2);
+    assertThat(merged.getField("next").schema().getTypes().get(1), sameInstance(merged));
+    assertCanReadAll(merged, Arrays.asList(v1, v2));
+    assertThat(new Schema.Parser().parse(merged.toString()), is(merged));
+  }
+
+  @Test
+  public void testMergeLogicalTypes() {
+    Schema millis = event("{'name':'t','type':{'type':'long','logicalType':'timestamp-millis'}}");
+    Schema micros = event("{'name':'t','type':{'type':'long','logicalType':'timestamp-micros'}}");
+    Schema merged = merge(millis, micros);
+    assertThat(merged.getField("t").schema().toString(), is("\"long\""));
+    assertCanReadAll(merged, Arrays.asList(millis, micros));
+    assertThat(new Schema.Parser().parse(merged.toString()), is(merged));
+
+    // Fixed schemas with the same name can't be merged if they have different sizes.
+    Schema f4 = event("{'name':'f','type':{'type':'fixed','name':'F','size':4}}");
+    Schema f8 = event("{'name':'f','type':{'type':'fixed','name':'F','size':8}}");
+    AvroTypeException e = assertThrows(AvroTypeException.class, () -> merge(f4, f8));
+    assertThat(e.getMessage(), is("Can't merge fixed com.example.F with sizes 4 and 8"));
+  }
+
+  @Test
+  public void testMergeSharedNamedType() {
+    Schema a =
+        event(
+            "{'name':'home','type':{'type':'record','name':'Geo','fields':["
+                + "{'name':'lat','type':'float'}]}},{'name':'work','type':'Geo'}");
+    Schema b =
+        event(
+            "{'name':'home','type':{'type':'record','name':'Geo','fields':["
+                + "{'name':'lat','type':'double'},{'name':'lon','type':'double'}]}}");
+    Schema merged = merge(a, b);
+
+    // The optional field uses the same merged definition of the named type.
+    Schema home = merged.getField("home").schema();
+    Schema work = merged.getField("work").schema().getTypes().get(1);
+    assertThat(work, sameInstance(home));
+    assertThat(home.getField("lat").schema().getType(), is(Schema.Type.DOUBLE));
+    assertCanReadAll(merged, Arrays.asList(a, b));
+    assertThat(new Schema.Parser().parse(merged.toString()), is(merged));
+
+    // In either order.
+    Schema reversed = merge(b, a);
+    assertThat(
+        reversed.getField("work").schema().getTypes().get(1),
+        sameInstance(reversed.getField("home").schema()));
+    assertThat(new Schema.Parser().parse(reversed.toString()), is(reversed));
+  }
+
+  /**
+   * Merges schemas into one schema that can read the data written by all of them.
+   *
+   * <ul>
+   *   <li>Records with the same name are merged field by field. A field that is missing from one of
+   *       the records must have a default, or is made nullable with a null default.
+   *   <li>Numbers are widened, and bytes and strings are merged into strings.
+   *   <li>Arrays and maps merge their items and values. Enums with the same name merge their
+   *       symbols.
+   *   <li>Anything else becomes a union, with the branches from both schemas.
+   *   <li>Docs, properties and aliases are merged, the first schema taking precedence.
+   * </ul>
+   *
+   * <p>The merged pairs are remembered by the fingerprints of their full schemas, and checked
+   * against the original schemas. When the cache is full, the oldest pairs are evicted first. The
+   * merged schemas are shared, and must not be modified. This class is thread-safe, and should be
+   * closed to release its threads.
+   */
+  public static class SchemaMerger implements AutoCloseable {
+
+    /** The pool used to merge many schemas. */
+    private final ForkJoinPool pool;
+
+    private final int maxSize;
+
+    private final ConcurrentHashMap<Key, Merged> merged = new ConcurrentHashMap<>();
+
+    /** The keys in the order they were added, for eviction. */
+    private final Queue<Key> insertionOrder = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param threads The number of threads to use when merging many schemas.
+     */
+    public SchemaMerger(int threads) {
+      this(threads, 1000);
+    }
+
+    /**
+     * @param threads The number of threads to use when merging many schemas.
+     * @param maxSize The maximum number of merged pairs to remember.
+     */
+    public SchemaMerger(int threads, int maxSize) {
+      this.pool = new ForkJoinPool(threads);
+      this.maxSize = maxSize;
+    }
+
+    /** Stop the threads used to merge many schemas. */
+    @Override
+    public void close() {
+      pool.shutdown();
+    }
+
+    /**
+     * @return A schema that can read the data written by either schema.
+     */
+    public Schema merge(Schema a, Schema b) {
+      if (a == b) return a;
+      Key key = new Key(fingerprint(a), fingerprint(b));
+      if (key.a == key.b && a.equals(b)) return a;
+      Merged result = merged.get(key);
+      if (result != null && result.isFor(a, b)) {
+        hits.increment();
+        return result.merged;
+      }
+      misses.increment();
+      Schema m = new Merge(a, b).merge(a, b);
+      // In the unlikely case of a fingerprint collision, the first pair stays in the cache.
+      result = merged.putIfAbsent(key, new Merged(a, b, m));
+      if (result == null) {
+        insertionOrder.add(key);
+        while (merged.size() > maxSize) {
+          Key oldest = insertionOrder.poll();
+          if (oldest == null) break;
+          merged.remove(oldest);
+        }
+      }
+      return result != null && result.isFor(a, b) ? result.merged : m;
+    }
+
+    /**
+     * Merge all of the schemas in parallel, as a tree. Identical schemas are only merged once.
+     *
+     * @param schemas The schemas to merge, at least one.
+     * @return A schema that can read the data written by any of the schemas.
+     */
+    public Schema mergeAll(List<Schema> schemas) {
+      List<Schema> todo = new ArrayList<>(new LinkedHashSet<>(schemas));
+      if (todo.isEmpty()) throw new IllegalArgumentException("No schemas to merge");
+      return pool.invoke(new MergeTask(todo, 0, todo.size()));
+    }
+
+    /** Merges a range of the schemas by splitting it in two. */
+    private class MergeTask extends RecursiveTask<Schema> {
+      private final List<Schema> schemas;
+      private final int from;
+      private final int to;
+
+      MergeTask(List<Schema> schemas, int from, int to) {
+        this.schemas = schemas;
+        this.from = from;
+        this.to = to;
+      }
+
+      @Override
+      protected Schema compute() {
+        if (to - from == 1) return schemas.get(from);
+        int mid = (from + to) >>> 1;
+        MergeTask left = new MergeTask(schemas, from, mid);
+        left.fork();
+        Schema right = new MergeTask(schemas, mid, to).compute();
+        return merge(left.join(), right);
+      }
+    }
+
+    private static long fingerprint(Schema schema) {
+      return FingerprintCache.get().of(schema).getSchemaFingerprint64();
+    }
+
+    /**
+     * @return The number of pairs currently remembered.
+     */
+    public int size() {
+      return merged.size();
+    }
+
+    public long getHits() {
+      return hits.sum();
+    }
+
+    public long getMisses() {
+      return misses.sum();
+    }
+
+    /** A merged schema, with the two schemas that it was merged from. */
+    private static class Merged {
+      private final Schema a;
+      private final Schema b;
+      private final Schema merged;
+
+      Merged(Schema a, Schema b, Schema merged) {
+        this.a = a;
+        this.b = b;
+        this.merged = merged;
+      }
+
+      /**
+       * @return True if this was merged from the same two schemas.
+       */
+      boolean isFor(Schema a, Schema b) {
+        return (this.a == a || this.a.equals(a)) && (this.b == b || this.b.equals(b));
+      }
+    }
+
+    /**
+     * The state of merging two schemas.
+     *
+     * <p>A name always refers to the same schema in the merged schema, so every named schema is
+     * merged from all of its definitions in both schemas, wherever it is used. Any part of either
+     * schema that is copied into the merged schema is rebuilt to use these merged definitions.
+     */
+    private static class Merge {
+
+      /** Properties that belong to the logical type of a schema. */
+      private static final Set<String> LOGICAL_TYPE_PROPS =
+          new HashSet<>(Arrays.asList("logicalType", "precision", "scale"));
+
+      private final NameIndex namesA;
+
+      private final NameIndex namesB;
+
+      /** The named schemas that have been merged or are being merged, to handle recursion. */
+      private final Map<String, Schema> named = new HashMap<>();
+
+      Merge(Schema a, Schema b) {
+        namesA = NameIndex.of(a);
+        namesB = NameIndex.of(b);
+      }
+
+      Schema merge(Schema a, Schema b) {
+        if (a.getType() != Schema.Type.UNION && b.getType() != Schema.Type.UNION) {
+          Schema m = mergeSame(a, b);
+          if (m != null) return m;
+        }
+        return mergeUnion(branches(a), branches(b));
+      }
+
+      private static List<Schema> branches(Schema s) {
+        return s.getType() == Schema.Type.UNION ? s.getTypes() : Arrays.asList(s);
+      }
+
+      /**
+       * @return The name of the schema in a union.
+       */
+      private static String unionKey(Schema s) {
+        return s.getFullName();
+      }
+
+      /**
+       * @return The schema merged from two schemas that aren't unions, or null if they can only be
+       *     merged into a union.
+       */
+      private Schema mergeSame(Schema a, Schema b) {
+        if (a.getType() != b.getType()) return widen(a, b);
+        switch (a.getType()) {
+          case RECORD:
+          case ENUM:
+          case FIXED:
+            return a.getFullName().equals(b.getFullName()) ? named(a.getFullName()) : null;
+          case ARRAY:
+            return copyProps(
+                Schema.createArray(merge(a.getElementType(), b.getElementType())), a, b);
+          case MAP:
+            return copyProps(Schema.createMap(merge(a.getValueType(), b.getValueType())), a, b);
+          default:
+            if (a.equals(b)) return a;
+            if (Objects.equals(a.getLogicalType(), b.getLogicalType())) return a;
+            // The same primitive with different logical types can only be read as the primitive.
+            return copyProps(Schema.create(a.getType()), a, b);
+        }
+      }
+
+      /**
+       * @return A copy of a schema from either side, using the merged named schemas.
+       */
+      private Schema rebuild(Schema s) {
+        switch (s.getType()) {
+          case RECORD:
+          case ENUM:
+          case FIXED:
+            return named(s.getFullName());
+          case UNION:
+            List<Schema> types = new ArrayList<>();
+            for (Schema branch : s.getTypes()) types.add(rebuild(branch));
+            return Schema.createUnion(types);
+          case ARRAY:
+            return copyProps(Schema.createArray(rebuild(s.getElementType())), s, s);
+          case MAP:
+            return copyProps(Schema.createMap(rebuild(s.getValueType())), s, s);
+          default:
+            return s;
+        }
+      }
+
+      /**
+       * @return The named schema merged from its definitions in both schemas.
+       * @throws AvroTypeException if the definitions can't be merged.
+       */
+      private Schema named(String fullName) {
+        Schema existing = named.get(fullName);
+        if (existing != null) return existing;
+        Schema a = namesA.get(fullName);
+        Schema b = namesB.get(fullName);
+        if (a == null) a = b;
+        if (b == null) b = a;
+        if (a.getType() != b.getType())
+          throw new AvroTypeException(
+              "Can't merge " + a.getType() + " and " + b.getType() + " named " + fullName);
+        switch (a.getType()) {
+          case RECORD:
+            return mergeRecord(a, b);
+          case ENUM:
+            return define(mergeEnum(a, b));
+          default:
+            return define(mergeFixed(a, b));
+        }
+      }
+
+      private Schema define(Schema schema) {
+        named.put(schema.getFullName(), schema);
+        return schema;
+      }
+
+      /** Numbers are widened, and bytes and strings are merged into strings. */
+      private static Schema widen(Schema a, Schema b) {
+        if (a.getLogicalType() != null || b.getLogicalType() != null) return null;
+        int ra = numericRank(a.getType());
+        int rb = numericRank(b.getType());
+        if (ra >= 0 && rb >= 0) return ra >= rb ? a : b;
+        if (a.getType() == Schema.Type.STRING && b.getType() == Schema.Type.BYTES) return a;
+        if (a.getType() == Schema.Type.BYTES && b.getType() == Schema.Type.STRING) return b;
+        return null;
+      }
+
+      private static int numericRank(Schema.Type type) {
+        switch (type) {
+          case INT:
+            return 0;
+          case LONG:
+            return 1;
+          case FLOAT:
+            return 2;
+          case DOUBLE:
+            return 3;
+          default:
+            return -1;
+        }
+      }
+
+      /** Merge each branch of b into the matching branch of a, or add it to the end. */
+      private Schema mergeUnion(List<Schema> as, List<Schema> bs) {
+        List<Schema> out = new ArrayList<>();
+        for (Schema a : as) out.add(rebuild(a));
+        for (Schema b : bs) {
+          // Prefer a branch with the same name, then one that it can be widened with.
+          int match = -1;
+          Schema m = null;
+          for (int i = 0; i < out.size() && m == null; i++)
+            if (unionKey(out.get(i)).equals(unionKey(b)) && (m = mergeSame(out.get(i), b)) != null)
+              match = i;
+          for (int i = 0; i < out.size() && m == null; i++)
+            if ((m = widen(out.get(i), b)) != null) match = i;
+
+          if (m == null) {
+            for (Schema o : out)
+              if (unionKey(o).equals(unionKey(b)))
+                throw new AvroTypeException(
+                    "Can't merge two different " + unionKey(b) + " in a union");
+            out.add(rebuild(b));
+            continue;
+          }
+          out.set(match, m);
+          // Widening can make the branch the same as another one.
+          for (int i = out.size() - 1; i >= 0; i--)
+            if (i != match && unionKey(out.get(i)).equals(unionKey(m))) out.remove(i);
+        }
+
+        // Keep null first if it was first in either union, so that a null default is still valid.
+        if (as.get(0).getType() == Schema.Type.NULL || bs.get(0).getType() == Schema.Type.NULL)
+          for (int i = 1; i < out.size(); i++)
+            if (out.get(i).getType() == Schema.Type.NULL) out.add(0, out.remove(i));
+        return out.size() == 1 ? out.get(0) : Schema.createUnion(out);
+      }
+
+      private Schema mergeRecord(Schema a, Schema b) {
+        Schema record =
+            define(
+                Schema.createRecord(
+                    a.getName(),
+                    a.getDoc() != null ? a.getDoc() : b.getDoc(),
+                    a.getNamespace(),
+                    a.isError()));
+        for (String alias : a.getAliases()) record.addAlias(alias);
+        for (String alias : b.getAliases()) record.addAlias(alias);
+        copyProps(record, a, b);
+
+        List<Schema.Field> fields = new ArrayList<>();
+        for (Schema.Field fa : a.getFields()) {
+          Schema.Field fb = b.getField(fa.name());
+          fields.add(fb == null ? optional(fa) : mergeField(fa, fb));
+        }
+        for (Schema.Field fb : b.getFields())
+          if (a.getField(fb.name()) == null) fields.add(optional(fb));
+        record.setFields(fields);
+        return record;
+      }
+
+      private static Schema mergeEnum(Schema a, Schema b) {
+        Set<String> symbols = new LinkedHashSet<>(a.getEnumSymbols());
+        symbols.addAll(b.getEnumSymbols());
+        Schema e =
+            Schema.createEnum(
+                a.getName(),
+                a.getDoc() != null ? a.getDoc() : b.getDoc(),
+                a.getNamespace(),
+                new ArrayList<>(symbols),
+                a.getEnumDefault() != null ? a.getEnumDefault() : b.getEnumDefault());
+        for (String alias : a.getAliases()) e.addAlias(alias);
+        for (String alias : b.getAliases()) e.addAlias(alias);
+        return copyProps(e, a, b);
+      }
+
+      private static Schema mergeFixed(Schema a, Schema b) {
+        if (a.getFixedSize() != b.getFixedSize())
+          throw new AvroTypeException(
+              "Can't merge fixed "
+                  + a.getFullName()
+                  + " with sizes "
+                  + a.getFixedSize()
+                  + " and "
+                  + b.getFixedSize());
+        Schema f =
+            Schema.createFixed(
+                a.getName(),
+                a.getDoc() != null ? a.getDoc() : b.getDoc(),
+                a.getNamespace(),
+                a.getFixedSize());
+        if (a.getLogicalType() != null && a.getLogicalType().equals(b.getLogicalType()))
+          a.getLogicalType().addToSchema(f);
+        for (String alias : a.getAliases()) f.addAlias(alias);
+        for (String alias : b.getAliases()) f.addAlias(alias);
+        return copyProps(f, a, b);
+      }
+
+      private Schema.Field mergeField(Schema.Field fa, Schema.Field fb) {
+        Schema schema = merge(fa.schema(), fb.schema());
+        String doc = fa.doc() != null ? fa.doc() : fb.doc();
+        Schema.Field f = null;
+        for (Schema.Field withDefault : new Schema.Field[] {fa, fb}) {
+          if (f == null && withDefault.hasDefaultValue()) {
+            try {
+              f = new Schema.Field(fa.name(), schema, doc, withDefault.defaultVal(), fa.order());
+            } catch (AvroTypeException e) {
+              // The default doesn't match the merged schema.
+            }
+          }
+        }
+        if (f == null) f = new Schema.Field(fa.name(), schema, doc, null, fa.order());
+        for (String alias : fa.aliases()) f.addAlias(alias);
+        for (String alias : fb.aliases()) f.addAlias(alias);
+        copyProps(f, fa, fb);
+        return f;
+      }
+
+      /** A copy of a field that is missing from some records, with a default. */
+      private Schema.Field optional(Schema.Field field) {
+        Schema schema = rebuild(field.schema());
+        if (field.hasDefaultValue()) return new Schema.Field(field, schema);
+        Schema.Field f =
+            new Schema.Field(
+                field.name(),
+                nullable(schema),
+                field.doc(),
+                JsonProperties.NULL_VALUE,
+                field.order());
+        for (String alias : field.aliases()) f.addAlias(alias);
+        copyProps(f, field, field);
+        return f;
+      }
+
+      /**
+       * @return The schema in a union with null as the first branch.
+       */
+      private static Schema nullable(Schema schema) {
+        if (schema.getType() == Schema.Type.NULL) return schema;
+        List<Schema> types = new ArrayList<>();
+        types.add(Schema.create(Schema.Type.NULL));
+        for (Schema s : branches(schema)) if (s.getType() != Schema.Type.NULL) types.add(s);
+        return Schema.createUnion(types);
+      }
+
+      /**
+       * Copy all of the properties from a, and the ones from b that aren't in a. The logical type
+       * of a schema isn't copied, since it might not apply to both schemas.
+       */
+      private static <T extends JsonProperties> T copyProps(
+          T to, JsonProperties a, JsonProperties b) {
+        for (JsonProperties from : new JsonProperties[] {a, b}) {
+          boolean logical = from instanceof Schema && ((Schema) from).getLogicalType() != null;
+          for (Map.Entry<String, Object> e : from.getObjectProps().entrySet())
+            if (!(logical && LOGICAL_TYPE_PROPS.contains(e.getKey()))
+                && to.getObjectProp(e.getKey()) == null) to.addProp(e.getKey(), e.getValue());
+        }
+        return to;
+      }
+    }
+
+    /** The fingerprints of the two merged schemas. */
+    private static class Key {
+      private final long a;
+      private final long b;
+
+      Key(long a, long b) {
+        this.a = a;
+        this.b = b;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Key)) return false;
+        Key key = (Key) o;
+        return a == key.a && b == key.b;
+      }
+
+      @Override
+      public int hashCode() {
+        return Objects.hash(a, b);
+      }
+    }
+  }
+}
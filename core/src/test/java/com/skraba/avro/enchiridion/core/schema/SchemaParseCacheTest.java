@@ -0,0 +1,298 @@
+package com.skraba.avro.enchiridion.core.schema;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.skraba.avro.enchiridion.core.AvroUtil;
+import com.skraba.avro.enchiridion.resources.AvroTestResources;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaParseException;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests and helpers for sharing the schemas parsed from the same JSON text.
+ *
+ * <p>Every {@link Schema.Parser} builds a new schema from scratch, even if the same JSON has been
+ * parsed many times before. A {@link SchemaParseCache} remembers the schema for each JSON text, so
+ * that callers that only read the schema can share a single instance.
+ */
+public class SchemaParseCacheTest {
+
+  /** A simple record with the given name. */
+  private static String record(String name) {
+    return AvroUtil.qqify(
+        "{'type':'record','name':'" + name + "','fields':[{'name':'id','type':'long'}]}");
+  }
+
+  @Test
+  public void testBasic() {
+    SchemaParseCache cache = new SchemaParseCache(10);
+    String json = AvroTestResources.Recipe();
+    Schema schema = cache.parse(json);
+    assertThat(schema, is(new Schema.Parser().parse(json)));
+    assertThat(cache.getMisses(), is(1L));
+
+    // An equal string from a different instance is found in the cache.
+    assertThat(cache.parse(new String(json.toCharArray())), sameInstance(schema));
+    assertThat(cache.getHits(), is(1L));
+    assertThat(cache.size(), is(1));
+
+    // Errors are not remembered.
+    assertThrows(SchemaParseException.class, () -> cache.parse("{"));
+    assertThrows(SchemaParseException.class, () -> cache.parse("{"));
+    assertThat(cache.size(), is(1));
+  }
+
+  @Test
+  public void testPrefilterCollisions() {
+    // Two texts with the same length that only differ in a character that isn't sampled.
+    String a = record("A" + repeat('x', 200) + "a" + repeat('x', 200));
+    String b = record("A" + repeat('x', 200) + "b" + repeat('x', 200));
+    assertThat(SchemaParseCache.prefilter(a), is(SchemaParseCache.prefilter(b)));
+
+    SchemaParseCache cache = new SchemaParseCache(10);
+    Schema sa = cache.parse(a);
+    Schema sb = cache.parse(b);
+    assertThat(sa, not(sb));
+    assertThat(cache.size(), is(2));
+    assertThat(cache.parse(a), sameInstance(sa));
+    assertThat(cache.parse(b), sameInstance(sb));
+  }
+
+  @Test
+  public void testEviction() {
+    SchemaParseCache cache = new SchemaParseCache(2);
+    Schema a = cache.parse(record("A"));
+    cache.parse(record("B"));
+    cache.parse(record("C"));
+    assertThat(cache.size(), is(2));
+    assertThat(cache.getEvictions(), is(1L));
+
+    // The oldest was evicted and is parsed again.
+    assertThat(cache.parse(record("A")), not(sameInstance(a)));
+    assertThat(cache.getMisses(), is(4L));
+  }
+
+  @Test
+  public void testConcurrent() throws Exception {
+    SchemaParseCache cache = new SchemaParseCache(100);
+    List<String> texts = new ArrayList<>();
+    for (int i = 0; i < 20; i++) texts.add(record("R" + i));
+
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Schema[]>> results = new ArrayList<>();
+      for (int t = 0; t < 8; t++)
+        results.add(
+            pool.submit(
+                () -> {
+                  Schema[] seen = new Schema[texts.size()];
+                  for (int n = 0; n < 100; n++)
+                    for (int i = 0; i < texts.size(); i++)
+                      seen[i] = cache.parse(new String(texts.get(i).toCharArray()));
+                  return seen;
+                }));
+      // Every thread sees the same instance for the same text.
+      Schema[] first = results.get(0).get();
+      for (Future<Schema[]> f : results)
+        for (int i = 0; i < texts.size(); i++) assertThat(f.get()[i], sameInstance(first[i]));
+    } finally {
+      pool.shutdownNow();
+    }
+    assertThat(cache.size(), is(20));
+    assertThat(cache.getHits() + cache.getMisses(), is(8L * 100 * 20));
+  }
+
+  @Test
+  public void testApi() {
+    String json = AvroTestResources.SimpleRecord();
+    assertThat(AvroUtil.api().parseShared(json), sameInstance(AvroUtil.api().parseShared(json)));
+    // The plain parse always returns a new schema that can be modified.
+    assertThat(AvroUtil.api().parse(json), not(sameInstance(AvroUtil.api().parse(json))));
+
+    assertThat(
+        AvroUtil.sample().createSimple('e'), sameInstance(AvroUtil.sample().createSimple('e')));
+    assertThat(
+        AvroUtil.sample().createSimple('F'), sameInstance(AvroUtil.sample().createSimple('F')));
+  }
+
+  private static String repeat(char c, int n) {
+    StringBuilder sb = new StringBuilder(n);
+    for (int i = 0; i < n; i++) sb.append(c);
+    return sb.toString();
+  }
+
+  /**
+   * A bounded cache of schemas by their JSON text.
+   *
+   * <p>The text is first hashed by sampling a few of its characters, which is cheap even for very
+   * large schemas. Only the texts with the same sampled hash are compared in full. When the cache
+   * is full, the oldest schemas are evicted first.
+   *
+   * <p>Avro schemas can still be modified after they are parsed, for example by adding properties.
+   * Since the schemas from this cache are shared, they must be treated as immutable. This class is
+   * thread-safe.
+   */
+  public static class SchemaParseCache {
+
+    /** A shared instance. */
+    private static final SchemaParseCache INSTANCE = new SchemaParseCache(1000);
+
+    /** The number of characters sampled in the text for the prefilter hash. */
+    private static final int SAMPLES = 32;
+
+    private final int maxSize;
+
+    /** The parsed schemas, chained by their prefilter hash. */
+    private final ConcurrentHashMap<Long, Entry> buckets = new ConcurrentHashMap<>();
+
+    /** The entries in the order they were added, for eviction. */
+    private final Queue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize The maximum number of schemas to keep.
+     */
+    public SchemaParseCache(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    /** Get the shared cache. */
+    public static SchemaParseCache get() {
+      return INSTANCE;
+    }
+
+    /**
+     * @return A shared schema parsed from the JSON text with a new {@link Schema.Parser}.
+     */
+    public Schema parse(String json) {
+      return parse(json, s -> new Schema.Parser().parse(s));
+    }
+
+    /**
+     * @param json The JSON text of the schema.
+     * @param parser Used to parse the text if it isn't already in the cache.
+     * @return A shared schema parsed from the JSON text.
+     */
+    public Schema parse(String json, Function<String, Schema> parser) {
+      long key = prefilter(json);
+      Schema schema = find(buckets.get(key), json);
+      if (schema != null) {
+        hits.increment();
+        return schema;
+      }
+      misses.increment();
+
+      // Parse outside of the lock, but only keep the first schema if two threads race.
+      Schema parsed = parser.apply(json);
+      Entry[] added = {null};
+      Entry head =
+          buckets.compute(
+              key,
+              (k, chain) -> {
+                if (find(chain, json) != null) return chain;
+                added[0] = new Entry(key, json, parsed, chain);
+                return added[0];
+              });
+      if (added[0] == null) return find(head, json);
+
+      insertionOrder.add(added[0]);
+      if (size.incrementAndGet() > maxSize) evict();
+      return parsed;
+    }
+
+    private void evict() {
+      while (size.get() > maxSize) {
+        Entry oldest = insertionOrder.poll();
+        if (oldest == null) break;
+        buckets.computeIfPresent(oldest.key, (k, chain) -> without(chain, oldest));
+        size.decrementAndGet();
+        evictions.increment();
+      }
+    }
+
+    private static Schema find(Entry chain, String json) {
+      for (Entry e = chain; e != null; e = e.next) if (e.json.equals(json)) return e.schema;
+      return null;
+    }
+
+    /**
+     * The entries in the chain are never modified, so the chain is rebuilt without the entry. The
+     * entries in front of it are copied, but keep the same schema instance.
+     */
+    private static Entry without(Entry chain, Entry removed) {
+      if (chain == null) return null;
+      if (chain.schema == removed.schema) return chain.next;
+      Entry rest = without(chain.next, removed);
+      return rest == chain.next ? chain : new Entry(chain.key, chain.json, chain.schema, rest);
+    }
+
+    /**
+     * A hash of the length and some evenly spaced characters of the text.
+     *
+     * <p>This is visible for testing.
+     */
+    static long prefilter(String json) {
+      int length = json.length();
+      long h = length;
+      int step = Math.max(1, length / SAMPLES);
+      for (int i = 0; i < length; i += step) h = h * 31 + json.charAt(i);
+      return length == 0 ? h : h * 31 + json.charAt(length - 1);
+    }
+
+    /**
+     * @return The number of schemas currently in the cache.
+     */
+    public int size() {
+      return size.get();
+    }
+
+    public long getHits() {
+      return hits.sum();
+    }
+
+    public long getMisses() {
+      return misses.sum();
+    }
+
+    public long getEvictions() {
+      return evictions.sum();
+    }
+
+    /** A parsed schema, and the next one with the same prefilter hash. */
+    private static class Entry {
+      private final long key;
+      private final String json;
+      private final Schema schema;
+      private final Entry next;
+
+      Entry(long key, String json, Schema schema, Entry next) {
+        this.key = key;
+        this.json = json;
+        this.schema = schema;
+        this.next = next;
+      }
+    }
+  }
+}
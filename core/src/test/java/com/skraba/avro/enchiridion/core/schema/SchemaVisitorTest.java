@@ -0,0 +1,518 @@
+package com.skraba.avro.enchiridion.core.schema;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.skraba.avro.enchiridion.core.AvroUtil;
+import com.skraba.avro.enchiridion.resources.AvroTestResources;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.LogicalType;
+import org.apache.avro.Schema;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests and helpers for walking and rebuilding schemas without recursion.
+ *
+ * <p>Helpers like {@link SchemaFacadeTest#addSomeAnnotations} walk the schema with recursive calls
+ * and a set of visited schemas. This uses one stack frame per level of nesting, and looks up the
+ * {@link Schema#hashCode()} of every subschema, which is itself recursive. The {@link
+ * SchemaVisitor} uses an explicit stack, and remembers the schemas it has already seen by identity.
+ */
+public class SchemaVisitorTest {
+
+  /**
+   * @param depth The number of nested records.
+   * @return A record containing an optional record, etc. without using JSON, which has a limited
+   *     nesting depth.
+   */
+  public static Schema deep(int depth) {
+    Schema child = Schema.create(Schema.Type.NULL);
+    for (int i = depth - 1; i >= 0; i--) {
+      List<Schema.Field> fields = new ArrayList<>();
+      fields.add(new Schema.Field("id", Schema.create(Schema.Type.LONG)));
+      if (child.getType() == Schema.Type.NULL) fields.add(new Schema.Field("child", child));
+      else
+        fields.add(
+            new Schema.Field(
+                "child",
+                Schema.createUnion(Schema.create(Schema.Type.NULL), child),
+                null,
+                Schema.Field.NULL_DEFAULT_VALUE));
+      child = Schema.createRecord("Deep" + i, null, "ns", false, fields);
+    }
+    return child;
+  }
+
+  /** The same count as {@link SchemaVisitor#walk}, but recursive and by equality. */
+  private static int recursiveWalk(Set<Schema> visited, Schema schema) {
+    if (!visited.add(schema)) return 0;
+    int count = 1;
+    switch (schema.getType()) {
+      case RECORD:
+        for (Schema.Field f : schema.getFields()) count += recursiveWalk(visited, f.schema());
+        break;
+      case ARRAY:
+        count += recursiveWalk(visited, schema.getElementType());
+        break;
+      case MAP:
+        count += recursiveWalk(visited, schema.getValueType());
+        break;
+      case UNION:
+        for (Schema s : schema.getTypes()) count += recursiveWalk(visited, s);
+        break;
+      default:
+    }
+    return count;
+  }
+
+  /** The maximum number of records nested inside each other, counting recursion once. */
+  private static final SchemaVisitor.Fold<Integer> RECORD_DEPTH =
+      new SchemaVisitor.Fold<Integer>() {
+        @Override
+        public Integer apply(Schema schema, List<Integer> children) {
+          int max = 0;
+          for (int child : children) max = Math.max(max, child);
+          return schema.getType() == Schema.Type.RECORD ? max + 1 : max;
+        }
+
+        @Override
+        public Integer cycle(Schema schema) {
+          return 0;
+        }
+      };
+
+  @Test
+  public void testWalkRecipe() {
+    Schema recipe = AvroUtil.api().parse(AvroTestResources.Recipe());
+
+    // Every distinct instance is visited once, in the order they appear in the schema.
+    List<Schema> visited = new ArrayList<>();
+    int count = SchemaVisitor.walk(recipe, visited::add);
+    assertThat(count, is(visited.size()));
+    assertThat(visited.get(0), sameInstance(recipe));
+    assertThat(visited.get(1), sameInstance(recipe.getField("title").schema()));
+    Set<Schema> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+    distinct.addAll(visited);
+    assertThat(distinct.size(), is(count));
+
+    // Equal subschemas are only visited once by the recursive walk.
+    assertThat(recursiveWalk(new HashSet<>(), recipe) < count, is(true));
+
+    // The children of a skipped schema aren't visited.
+    int records =
+        SchemaVisitor.walk(
+            recipe, s -> s.getType() == Schema.Type.RECORD || s.getType() == Schema.Type.UNION);
+    assertThat(records < count, is(true));
+  }
+
+  @Test
+  public void testFold() {
+    Schema recipe = AvroUtil.api().parse(AvroTestResources.Recipe());
+    assertThat(SchemaVisitor.fold(recipe, RECORD_DEPTH), is(2));
+    assertThat(
+        SchemaVisitor.fold(AvroUtil.api().parse(AvroTestResources.Recursive()), RECORD_DEPTH),
+        is(1));
+    assertThat(
+        SchemaVisitor.fold(
+            AvroUtil.api().parse(AvroTestResources.RecursiveIndirect()), RECORD_DEPTH),
+        is(2));
+    assertThat(
+        SchemaVisitor.fold(AvroUtil.api().parse(AvroTestResources.SimpleArray()), RECORD_DEPTH),
+        is(0));
+  }
+
+  @Test
+  public void testTransform() {
+    Schema recipe = AvroUtil.api().parse(AvroTestResources.Recipe());
+    String original = recipe.toString();
+
+    Schema annotated =
+        SchemaVisitor.transform(
+            recipe,
+            new SchemaVisitor.Transform() {
+              @Override
+              public Schema schema(Schema original, Schema copy) {
+                if (copy.getType() != Schema.Type.UNION)
+                  copy.addProp("ann", original.getType().getName());
+                return copy;
+              }
+
+              @Override
+              public Schema.Field field(Schema.Field original, Schema.Field copy) {
+                copy.addProp("ann", original.name());
+                return copy;
+              }
+            });
+
+    // The original is unchanged, and every subschema in the copy is annotated.
+    assertThat(recipe.toString(), is(original));
+    assertThat(annotated, not(recipe));
+    assertThat(annotated.getProp("ann"), is("record"));
+    assertThat(annotated.getField("title").getProp("ann"), is("title"));
+    SchemaVisitor.walk(
+        annotated, s -> s.getType() == Schema.Type.UNION || s.getProp("ann") != null || fail(s));
+
+    // The recursive record refers to its copy.
+    Schema ingredient = annotated.getField("ingredients").schema().getElementType();
+    assertThat(ingredient.getField("option").schema().getElementType(), sameInstance(ingredient));
+
+    // Without any changes, the copy is identical.
+    Schema copy = SchemaVisitor.transform(recipe, new SchemaVisitor.Transform() {});
+    assertThat(copy, not(sameInstance(recipe)));
+    assertThat(copy.toString(), is(original));
+
+    // A record can't be replaced, since its copy is already used by recursive references.
+    assertThrows(
+        AvroRuntimeException.class,
+        () ->
+            SchemaVisitor.transform(
+                recipe,
+                new SchemaVisitor.Transform() {
+                  @Override
+                  public Schema schema(Schema original, Schema copy) {
+                    return original;
+                  }
+                }));
+  }
+
+  @Test
+  public void testReplacePrimitives() {
+    Schema recipe = AvroUtil.api().parse(AvroTestResources.Recipe());
+    Schema.Type[] found = {null};
+    Schema replaced =
+        SchemaVisitor.transform(
+            recipe,
+            new SchemaVisitor.Transform() {
+              @Override
+              public Schema schema(Schema original, Schema copy) {
+                if (copy.getType() == Schema.Type.FLOAT) return Schema.create(Schema.Type.DOUBLE);
+                return copy;
+              }
+            });
+    SchemaVisitor.walk(
+        replaced,
+        s -> {
+          if (s.getType() == Schema.Type.FLOAT) found[0] = s.getType();
+          return true;
+        });
+    assertThat(found[0], nullValue());
+    assertThat(replaced.toString(), is(recipe.toString().replace("\"float\"", "\"double\"")));
+  }
+
+  @Test
+  public void testVeryDeep() {
+    Schema deep = deep(10000);
+    // A record, a long, a union and a null at every level.
+    assertThat(SchemaVisitor.walk(deep, s -> true), is(10000 * 4 - 1));
+    assertThat(SchemaVisitor.fold(deep, RECORD_DEPTH), is(10000));
+
+    Schema copy =
+        SchemaVisitor.transform(
+            deep,
+            new SchemaVisitor.Transform() {
+              @Override
+              public Schema schema(Schema original, Schema copy) {
+                if (copy.getType() == Schema.Type.RECORD) copy.addProp("level", copy.getName());
+                return copy;
+              }
+            });
+    Schema last = copy;
+    for (int i = 1; i < 10000; i++) last = last.getField("child").schema().getTypes().get(1);
+    assertThat(last.getName(), is("Deep9999"));
+    assertThat(last.getProp("level"), is("Deep9999"));
+    assertThat(deep.getProp("level"), nullValue());
+  }
+
+  /**
+   * Compares the time to walk the recipe and very deep schemas recursively and with the {@link
+   * SchemaVisitor}.
+   *
+   * @param args The depths of the generated schemas (default 100,1000,10000), and the number of
+   *     times to walk each schema (default 1000).
+   */
+  public static void main(String... args) {
+    String[] depths = args.length > 0 ? args[0].split(",") : new String[] {"100", "1000", "10000"};
+    int repeat = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+    Map<String, Schema> schemas = new LinkedHashMap<>();
+    schemas.put("Recipe", AvroUtil.api().parse(AvroTestResources.Recipe()));
+    for (String depth : depths)
+      schemas.put("deep(" + depth.trim() + ")", deep(Integer.parseInt(depth.trim())));
+
+    Map<String, Function<Schema, Object>> walkers = new LinkedHashMap<>();
+    walkers.put("recursive", s -> recursiveWalk(new HashSet<>(), s));
+    walkers.put("walk", s -> SchemaVisitor.walk(s, x -> true));
+    walkers.put("fold", s -> SchemaVisitor.fold(s, RECORD_DEPTH));
+    walkers.put("transform", s -> SchemaVisitor.transform(s, new SchemaVisitor.Transform() {}));
+
+    for (Map.Entry<String, Schema> schema : schemas.entrySet()) {
+      for (Map.Entry<String, Function<Schema, Object>> walker : walkers.entrySet()) {
+        String result;
+        try {
+          // Warm up once before measuring.
+          walker.getValue().apply(schema.getValue());
+          long start = System.nanoTime();
+          for (int i = 0; i < repeat; i++) walker.getValue().apply(schema.getValue());
+          result = String.format("%10.3f ms", (System.nanoTime() - start) / 1e6 / repeat);
+        } catch (StackOverflowError e) {
+          result = "stack overflow";
+        }
+        System.out.printf("%-14s %-10s %s%n", schema.getKey(), walker.getKey(), result);
+      }
+    }
+  }
+
+  private static boolean fail(Schema s) {
+    throw new AssertionError("Not annotated: " + s);
+  }
+
+  /**
+   * Walks and rebuilds schemas with an explicit stack instead of recursion, so that very deeply
+   * nested schemas don't run out of stack space.
+   *
+   * <p>Every distinct instance of a subschema is only handled once. Records that contain themselves
+   * are detected when they're found again while they're still being handled.
+   */
+  public static class SchemaVisitor {
+
+    /**
+     * Computes a value for every distinct subschema from the values of its children.
+     *
+     * @param <T> The type of the computed value.
+     */
+    public interface Fold<T> {
+
+      /**
+       * @param schema The subschema.
+       * @param children The values of its fields, element, value or union branches, in order.
+       * @return The value for the subschema, which is remembered for all other references to it.
+       */
+      T apply(Schema schema, List<T> children);
+
+      /**
+       * @param record A record that contains itself, and is still being computed.
+       * @return The value to use for the recursive reference.
+       */
+      T cycle(Schema record);
+    }
+
+    /**
+     * Modifies the copies of the subschemas while rebuilding a schema. The copies can be modified
+     * in place and returned, or replaced by another schema.
+     */
+    public interface Transform {
+
+      /**
+       * @param original The original subschema.
+       * @param copy A new copy of the subschema, with all of its children already transformed.
+       * @return The schema to use instead of the original. Records can only be modified in place,
+       *     since other subschemas might already refer to the copy.
+       */
+      default Schema schema(Schema original, Schema copy) {
+        return copy;
+      }
+
+      /**
+       * @param original The original field.
+       * @param copy A new copy of the field, with its schema already transformed.
+       * @return The field to use instead of the original.
+       */
+      default Schema.Field field(Schema.Field original, Schema.Field copy) {
+        return copy;
+      }
+    }
+
+    /**
+     * Visits every distinct instance of a subschema once, parents before children and in the order
+     * they appear in the schema.
+     *
+     * @param root The schema to walk.
+     * @param enter Called on every subschema, and returns false if its children should be skipped.
+     * @return The number of subschemas that were visited.
+     */
+    public static int walk(Schema root, Predicate<Schema> enter) {
+      Set<Schema> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+      Deque<Schema> stack = new ArrayDeque<>();
+      stack.push(root);
+      while (!stack.isEmpty()) {
+        Schema schema = stack.pop();
+        if (!visited.add(schema) || !enter.test(schema)) continue;
+        List<Schema> children = children(schema);
+        for (int i = children.size() - 1; i >= 0; i--) stack.push(children.get(i));
+      }
+      return visited.size();
+    }
+
+    /**
+     * Computes a value for the schema, starting from its leaves.
+     *
+     * @param root The schema to compute.
+     * @param fold How to compute the value of each subschema.
+     * @return The value computed for the root schema.
+     */
+    public static <T> T fold(Schema root, Fold<T> fold) {
+      return postOrder(root, fold::cycle, fold::apply);
+    }
+
+    /**
+     * Rebuilds a copy of the schema, starting from its leaves. The original schema is not modified.
+     *
+     * @param root The schema to copy.
+     * @param transform How to modify each of the copies.
+     * @return The transformed copy.
+     */
+    public static Schema transform(Schema root, Transform transform) {
+      Map<Schema, Schema> records = new IdentityHashMap<>();
+      return postOrder(
+          root,
+          record -> records.computeIfAbsent(record, SchemaVisitor::copyRecord),
+          (schema, children) -> {
+            if (schema.getType() == Schema.Type.RECORD) {
+              Schema record = records.computeIfAbsent(schema, SchemaVisitor::copyRecord);
+              List<Schema.Field> fields = new ArrayList<>(children.size());
+              for (Schema.Field f : schema.getFields())
+                fields.add(transform.field(f, new Schema.Field(f, children.get(f.pos()))));
+              record.setFields(fields);
+              if (transform.schema(schema, record) != record)
+                throw new AvroRuntimeException("Can't replace the record " + schema.getFullName());
+              return record;
+            }
+            return transform.schema(schema, copy(schema, children));
+          });
+    }
+
+    /**
+     * The engine for {@link #fold} and {@link #transform}.
+     *
+     * <p>The first time a subschema is found, all of its unfinished children are pushed onto the
+     * stack. The second time, all of its children are finished and it can be completed. The
+     * subschemas that have been started but not finished are exactly the ones on the path to the
+     * current subschema, so finding one of them again is a cycle.
+     */
+    private static <T> T postOrder(
+        Schema root, Function<Schema, T> cycle, BiFunction<Schema, List<T>, T> complete) {
+      Map<Schema, T> done = new IdentityHashMap<>();
+      Set<Schema> started = Collections.newSetFromMap(new IdentityHashMap<>());
+      Deque<Schema> stack = new ArrayDeque<>();
+      stack.push(root);
+      while (!stack.isEmpty()) {
+        Schema schema = stack.peek();
+        if (done.containsKey(schema)) {
+          stack.pop();
+        } else if (started.add(schema)) {
+          List<Schema> children = children(schema);
+          for (int i = children.size() - 1; i >= 0; i--) {
+            Schema child = children.get(i);
+            if (!done.containsKey(child) && !started.contains(child)) stack.push(child);
+          }
+        } else {
+          stack.pop();
+          List<Schema> children = children(schema);
+          List<T> values = new ArrayList<>(children.size());
+          for (Schema child : children)
+            values.add(done.containsKey(child) ? done.get(child) : cycle.apply(child));
+          done.put(schema, complete.apply(schema, values));
+        }
+      }
+      return done.get(root);
+    }
+
+    /**
+     * @return The direct children of the schema.
+     */
+    private static List<Schema> children(Schema schema) {
+      switch (schema.getType()) {
+        case RECORD:
+          List<Schema> fields = new ArrayList<>(schema.getFields().size());
+          for (Schema.Field f : schema.getFields()) fields.add(f.schema());
+          return fields;
+        case ARRAY:
+          return Collections.singletonList(schema.getElementType());
+        case MAP:
+          return Collections.singletonList(schema.getValueType());
+        case UNION:
+          return schema.getTypes();
+        default:
+          return Collections.emptyList();
+      }
+    }
+
+    /**
+     * @return A new record with the same name, doc, aliases and properties but no fields.
+     */
+    private static Schema copyRecord(Schema record) {
+      Schema copy =
+          Schema.createRecord(
+              record.getName(), record.getDoc(), record.getNamespace(), record.isError());
+      copyNamed(record, copy);
+      return copy;
+    }
+
+    /**
+     * @return A copy of a schema that isn't a record, using the already copied children.
+     */
+    private static Schema copy(Schema schema, List<Schema> children) {
+      Schema copy;
+      switch (schema.getType()) {
+        case ARRAY:
+          copy = Schema.createArray(children.get(0));
+          break;
+        case MAP:
+          copy = Schema.createMap(children.get(0));
+          break;
+        case UNION:
+          return Schema.createUnion(children);
+        case ENUM:
+          copy =
+              Schema.createEnum(
+                  schema.getName(),
+                  schema.getDoc(),
+                  schema.getNamespace(),
+                  schema.getEnumSymbols(),
+                  schema.getEnumDefault());
+          copyNamed(schema, copy);
+          return copy;
+        case FIXED:
+          copy =
+              Schema.createFixed(
+                  schema.getName(), schema.getDoc(), schema.getNamespace(), schema.getFixedSize());
+          copyNamed(schema, copy);
+          return copy;
+        default:
+          copy = Schema.create(schema.getType());
+      }
+      copyProps(schema, copy);
+      return copy;
+    }
+
+    private static void copyNamed(Schema from, Schema to) {
+      for (String alias : from.getAliases()) to.addAlias(alias);
+      copyProps(from, to);
+    }
+
+    /** Copy the logical type and properties from one schema to another. */
+    private static void copyProps(Schema from, Schema to) {
+      LogicalType lt = from.getLogicalType();
+      if (lt != null) lt.addToSchema(to);
+      for (Map.Entry<String, Object> e : from.getObjectProps().entrySet())
+        if (to.getObjectProp(e.getKey()) == null) to.addProp(e.getKey(), e.getValue());
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package com.skraba.avro.enchiridion.testkit;
 
+import java.util.function.BiFunction;
 import org.apache.avro.Schema;
 import org.apache.avro.SchemaCompatibility;
 import org.apache.avro.generic.GenericContainer;
@@ -51,7 +52,18 @@ public class AvroAssertions extends Assertions {
     }
 
     public CompatibilityPairAssert compatibilityWith(Schema reader) {
-      return assertThat(SchemaCompatibility.checkReaderWriterCompatibility(reader, actual));
+      return compatibilityWith(reader, SchemaCompatibility::checkReaderWriterCompatibility);
+    }
+
+    /**
+     * @param reader The reader schema, where the actual schema is the writer.
+     * @param checker A function from the reader and writer schemas to their compatibility, for
+     *     example a cached lookup.
+     */
+    public CompatibilityPairAssert compatibilityWith(
+        Schema reader,
+        BiFunction<Schema, Schema, SchemaCompatibility.SchemaPairCompatibility> checker) {
+      return assertThat(checker.apply(reader, actual));
     }
 
     public NamedSchemaAssert isNamed() {